@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Arrays;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.appenginefan.toolkit.persistence.MapBasedPersistenceBenchmark.Cursor;
+import com.appenginefan.toolkit.persistence.TestData.Person;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+
+/**
+ * Measures the cost of converting values in the adapters,
+ * on top of an in-memory byte array store. Comparing
+ * scanKeys with scanValues shows what the lazy conversion
+ * of scan results saves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+  @Param( { "string", "long", "object", "protobuf" })
+  public String codec;
+
+  /**
+   * Length of the strings stored (ignored for longs).
+   */
+  @Param( { "16", "1024" })
+  public int valueSize;
+
+  private Persistence<Object> persistence;
+
+  private Function<Object, Object> store;
+
+  @SuppressWarnings("unchecked")
+  @Setup
+  public void setUp() {
+    Persistence<byte[]> bytes =
+        new MapBasedPersistence<byte[]>();
+    char[] chars = new char[valueSize];
+    Arrays.fill(chars, 'x');
+    String text = new String(chars);
+    Object value;
+    Persistence<?> typed;
+    if ("string".equals(codec)) {
+      typed = new StringPersistence(bytes);
+      value = text;
+    } else if ("long".equals(codec)) {
+      typed = new LongPersistence(bytes);
+      value = 1234567890123L;
+    } else if ("object".equals(codec)) {
+      typed = new ObjectPersistence<String>(bytes);
+      value = text;
+    } else if ("protobuf".equals(codec)) {
+      typed =
+          new ProtocolBufferPersistence<Person>(bytes, Person
+              .getDefaultInstance());
+      value =
+          Person.newBuilder().setName(text).setEmail(
+              "someone@example.com").build();
+    } else {
+      throw new IllegalArgumentException(codec);
+    }
+    persistence = (Persistence<Object>) typed;
+    store = Functions.constant(value);
+    for (String key : MapBasedPersistenceBenchmark.KEY_NAMES) {
+      persistence.mutate(key, store);
+    }
+  }
+
+  @Benchmark
+  public Object get(Cursor cursor) {
+    return persistence.get(cursor.nextKey());
+  }
+
+  @Benchmark
+  public Object mutate(Cursor cursor) {
+    return persistence.mutate(cursor.nextKey(), store);
+  }
+
+  @Benchmark
+  public void scanKeys(Cursor cursor, Blackhole blackhole) {
+    for (Entry<String, Object> entry : persistence.scan(
+        cursor.nextKey(), "l", 100)) {
+      blackhole.consume(entry.getKey());
+    }
+  }
+
+  @Benchmark
+  public void scanValues(Cursor cursor, Blackhole blackhole) {
+    for (Entry<String, Object> entry : persistence.scan(
+        cursor.nextKey(), "l", 100)) {
+      blackhole.consume(entry.getValue());
+    }
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object getContended(Cursor cursor) {
+    return persistence.get(cursor.nextKey());
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.appenginefan.toolkit.unittests.TestInitializer;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.base.Function;
+
+/**
+ * Measures EntityBasedPersistence against the local
+ * datastore that the unit tests use. The numbers do not
+ * include real RPC latency, but show the cost of the
+ * persistence layer and of the datastore API itself.
+ * 
+ * The state is per thread because the App Engine
+ * environment is bound to the thread that set it up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EntityBasedPersistenceBenchmark {
+
+  private static final int KEYS = 256;
+
+  @Param( { "16", "1024" })
+  public int valueSize;
+
+  private TestInitializer initializer;
+
+  private EntityBasedPersistence persistence;
+
+  private Function<Entity, Entity> store;
+
+  private int next;
+
+  @Setup
+  public void setUp() throws Exception {
+    initializer = new TestInitializer();
+    initializer.setUp();
+    persistence = new EntityBasedPersistence("benchmark");
+    final Blob value = new Blob(new byte[valueSize]);
+    store = new Function<Entity, Entity>() {
+      @Override
+      public Entity apply(Entity entity) {
+        entity.setProperty("value", value);
+        return entity;
+      }
+    };
+    for (int i = 0; i < KEYS; i++) {
+      persistence.mutate(
+          MapBasedPersistenceBenchmark.KEY_NAMES[i], store);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    initializer.tearDown(true);
+  }
+
+  private String nextKey() {
+    next = (next + 1) % KEYS;
+    return MapBasedPersistenceBenchmark.KEY_NAMES[next];
+  }
+
+  @Benchmark
+  public Entity get() {
+    return persistence.get(nextKey());
+  }
+
+  @Benchmark
+  public Entity mutate() {
+    return persistence.mutate(nextKey(), store);
+  }
+
+  @Benchmark
+  public List<Entry<String, Entity>> scan() {
+    return persistence.scan(nextKey(), "l", 20);
+  }
+}
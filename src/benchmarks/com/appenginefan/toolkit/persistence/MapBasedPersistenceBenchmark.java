@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+
+/**
+ * Measures the in-memory store on its own, as a baseline
+ * for the other benchmarks. The contended variants run the
+ * same operations from four threads at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MapBasedPersistenceBenchmark {
+
+  static final int KEYS = 1024;
+
+  @Param( { "16", "1024", "65536" })
+  public int valueSize;
+
+  private Persistence<byte[]> persistence;
+
+  private Function<Object, byte[]> store;
+
+  /**
+   * Keys are picked round robin, separately for each thread.
+   */
+  @State(Scope.Thread)
+  public static class Cursor {
+
+    private int next;
+
+    String nextKey() {
+      next = (next + 1) % KEYS;
+      return KEY_NAMES[next];
+    }
+  }
+
+  static final String[] KEY_NAMES = new String[KEYS];
+
+  static {
+    for (int i = 0; i < KEYS; i++) {
+      KEY_NAMES[i] = String.format("key%06d", i);
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    persistence = new MapBasedPersistence<byte[]>();
+    store = Functions.constant(new byte[valueSize]);
+    for (int i = 0; i < KEYS; i++) {
+      persistence.mutate(KEY_NAMES[i], store);
+    }
+  }
+
+  @Benchmark
+  public byte[] get(Cursor cursor) {
+    return persistence.get(cursor.nextKey());
+  }
+
+  @Benchmark
+  public byte[] mutate(Cursor cursor) {
+    return persistence.mutate(cursor.nextKey(), store);
+  }
+
+  @Benchmark
+  public List<Entry<String, byte[]>> scan(Cursor cursor) {
+    return persistence.scan(cursor.nextKey(), "l", 100);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] getContended(Cursor cursor) {
+    return persistence.get(cursor.nextKey());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] mutateContended(Cursor cursor) {
+    return persistence.mutate(cursor.nextKey(), store);
+  }
+}
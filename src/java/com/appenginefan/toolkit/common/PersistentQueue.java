@@ -23,7 +23,6 @@ import java.util.Map.Entry;
 import com.appenginefan.toolkit.persistence.Persistence;
 import com.appenginefan.toolkit.persistence.StoreException;
 import com.appenginefan.toolkit.persistence.Utilities;
-import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
 
@@ -147,20 +146,11 @@ public class PersistentQueue<T> {
   public boolean offer(final T element) {
     Preconditions.checkNotNull(element);
     try {
-      store.mutate(encode(idGenerator.increment(1)),
-          new Function<T, T>() {
-            @Override
-            public T apply(T arg0) {
-              if (arg0 != null) {
-                throw new StoreException();
-              }
-              return element;
-            }
-          });
+      return Utilities.putIfAbsent(store, encode(idGenerator
+          .increment(1)), element);
     } catch (StoreException e) {
       return false;
     }
-    return true;
   }
 
   /**
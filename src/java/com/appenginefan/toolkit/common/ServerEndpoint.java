@@ -27,6 +27,7 @@ import com.appenginefan.toolkit.common.data.ProtoSchema.Message;
 import com.appenginefan.toolkit.common.data.ProtoSchema.Property;
 import com.appenginefan.toolkit.persistence.Persistence;
 import com.appenginefan.toolkit.persistence.ProtocolBufferPersistence;
+import com.appenginefan.toolkit.persistence.Utilities;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
@@ -108,25 +109,20 @@ public class ServerEndpoint {
     isModified = false;
     while(key == null) {
       
-      // Create random key and try to insert
+      // Create random key and try to insert; a key collision
+      // leaves the existing entry alone
       key = getRandomKey();
-      store.mutate(key, new Function<ConnectionState, ConnectionState>(){
-        @Override
-        public ConnectionState apply(ConnectionState oldState) {
-          
-          // If oldState exists, that means there was a key collision
-          if (oldState != null) {
-            key = null;
-            return oldState;
-          }
-          
-          // No collision, so store a new empty object
-          cachedSecret = String.valueOf(Math.random());
-          return lastKnownState = ConnectionState
-                                  .newBuilder()
-                                  .setRandomSecret(cachedSecret)
-                                  .build();
-        }});
+      String secret = String.valueOf(Math.random());
+      ConnectionState state = ConnectionState
+                              .newBuilder()
+                              .setRandomSecret(secret)
+                              .build();
+      if (Utilities.putIfAbsent(store, key, state)) {
+        cachedSecret = secret;
+        lastKnownState = state;
+      } else {
+        key = null;
+      }
     }
   }
 
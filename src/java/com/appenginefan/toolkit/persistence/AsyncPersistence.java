@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Function;
+
+/**
+ * A counterpart to Persistence whose operations return
+ * immediately and deliver their result through a Future.
+ * Code that needs several independent lookups can start all
+ * of them first and then wait for the results, so that it
+ * pays for the slowest call instead of the sum of all calls.
+ * 
+ * Errors that a Persistence would throw are reported by
+ * Future.get(), wrapped into an ExecutionException. The
+ * arguments are checked right away, though, so null keys or
+ * functions still cause an immediate NullPointerException.
+ */
+public interface AsyncPersistence<T> {
+
+  /**
+   * Asynchronous version of Persistence.get().
+   */
+  public Future<T> getAsync(String key);
+
+  /**
+   * Asynchronous version of Persistence.getAll().
+   */
+  public Future<Map<String, T>> getAllAsync(
+      Collection<String> keys);
+
+  /**
+   * Asynchronous version of Persistence.mutate(). The
+   * mutator may run in a different thread than the caller.
+   */
+  public Future<T> mutateAsync(String key,
+      Function<? super T, ? extends T> mutator);
+
+  /**
+   * Asynchronous version of Persistence.scan().
+   */
+  public Future<List<Map.Entry<String, T>>> scanAsync(
+      String start, String end, int max);
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A Bloom filter over strings: a set that may claim to
+ * contain strings that were never added (with a configurable
+ * probability), but never forgets a string that was added.
+ * Strings cannot be removed. Safe to use from several
+ * threads.
+ */
+final class BloomFilter {
+
+  private final AtomicLongArray bits;
+
+  private final long bitCount;
+
+  private final int hashCount;
+
+  /**
+   * Creates a filter sized for a number of strings.
+   * 
+   * @param expected
+   *          how many strings will be added
+   * @param falsePositiveRate
+   *          how often mightContain() may return true for a
+   *          string that was not added, once the expected
+   *          number of strings were added
+   */
+  BloomFilter(long expected, double falsePositiveRate) {
+    Preconditions.checkArgument(expected > 0,
+        "expected must be positive");
+    Preconditions.checkArgument(falsePositiveRate > 0
+        && falsePositiveRate < 1,
+        "falsePositiveRate must be between 0 and 1");
+    long bitsNeeded =
+        (long) Math.ceil(-expected
+            * Math.log(falsePositiveRate)
+            / (Math.log(2) * Math.log(2)));
+    int words =
+        (int) Math.min(Integer.MAX_VALUE, Math.max(1,
+            (bitsNeeded + 63) / 64));
+    this.bits = new AtomicLongArray(words);
+    this.bitCount = words * 64L;
+    this.hashCount =
+        Math.max(1, (int) Math.round((double) bitCount
+            / expected * Math.log(2)));
+  }
+
+  int getHashCount() {
+    return hashCount;
+  }
+
+  long getBitCount() {
+    return bitCount;
+  }
+
+  /**
+   * A 64 bit FNV-1a hash of the characters, with a final mix
+   * so that similar keys spread over the whole range.
+   */
+  private static long hash(String value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * Returns the i-th bit index of a hash, using two halves
+   * of the hash to simulate independent hash functions.
+   */
+  private long index(long hash, int i) {
+    int low = (int) hash;
+    int high = (int) (hash >>> 32);
+    long combined = low + (long) i * high;
+    return (combined & Long.MAX_VALUE) % bitCount;
+  }
+
+  void add(String value) {
+    long hash = hash(value);
+    for (int i = 0; i < hashCount; i++) {
+      long index = index(hash, i);
+      int word = (int) (index >>> 6);
+      long mask = 1L << index;
+      long current;
+      while (((current = bits.get(word)) & mask) == 0
+          && !bits.compareAndSet(word, current, current
+              | mask)) {
+        // try again
+      }
+    }
+  }
+
+  boolean mightContain(String value) {
+    long hash = hash(value);
+    for (int i = 0; i < hashCount; i++) {
+      long index = index(hash, i);
+      if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Answers lookups of keys that do not exist without asking
+ * the backend. A Bloom filter of all keys in the backend is
+ * built when the object is created, by paging through the
+ * keys, and every key written through this object is added
+ * to it. get() and getAll() skip keys that the filter has
+ * never seen. Deleted keys stay in the filter until the next
+ * rebuild(), which only makes the filter less effective.
+ * 
+ * <b>Caveat:</b> the filter only knows about keys written
+ * through this object. If other processes (like other App
+ * Engine instances) write to the same backend, new keys
+ * stay invisible to get() here until the filter is rebuilt.
+ * Only use this class for data that has a single writer, or
+ * where reading slightly stale data is acceptable and
+ * rebuild() is called regularly.
+ */
+public class BloomFilterPersistence<T> extends
+    ForwardingPersistence<T> {
+
+  private static final int PAGE_SIZE = 1000;
+
+  private static final String END =
+      String.valueOf(Character.MAX_VALUE);
+
+  private final Persistence<T> backend;
+
+  private final long expectedKeys;
+
+  private final double falsePositiveRate;
+
+  private volatile BloomFilter filter;
+
+  /**
+   * While a rebuild is running, the filter being built.
+   */
+  private BloomFilter next;
+
+  /**
+   * Guards next, and replacing filter.
+   */
+  private final Object lock = new Object();
+
+  private final AtomicLong skipped = new AtomicLong();
+
+  private final AtomicLong falsePositives = new AtomicLong();
+
+  /**
+   * Constructor. Reads all keys of the backend.
+   * 
+   * @param backend
+   *          the persistence to filter lookups for
+   * @param expectedKeys
+   *          roughly how many keys the backend will hold;
+   *          determines the size of the filter
+   * @param falsePositiveRate
+   *          the share of lookups for missing keys that may
+   *          still go to the backend, e.g. 0.01
+   */
+  public BloomFilterPersistence(Persistence<T> backend,
+      long expectedKeys, double falsePositiveRate) {
+    Preconditions.checkNotNull(backend);
+    this.backend = backend;
+    this.expectedKeys = expectedKeys;
+    this.falsePositiveRate = falsePositiveRate;
+    this.filter =
+        new BloomFilter(expectedKeys, falsePositiveRate);
+    rebuild();
+  }
+
+  @Override
+  protected Persistence<T> delegate() {
+    return backend;
+  }
+
+  /**
+   * Builds a new filter from the keys currently in the
+   * backend. Keys written while the rebuild runs end up in
+   * both the old and the new filter.
+   */
+  public synchronized void rebuild() {
+    BloomFilter fresh =
+        new BloomFilter(expectedKeys, falsePositiveRate);
+    synchronized (lock) {
+      next = fresh;
+    }
+    try {
+      String from = "";
+      while (true) {
+        List<String> keys =
+            backend.keyScan(from, END, PAGE_SIZE);
+        if (keys.isEmpty()) {
+          break;
+        }
+        for (String key : keys) {
+          fresh.add(key);
+        }
+        from = keys.get(keys.size() - 1) + Character.MIN_VALUE;
+      }
+      synchronized (lock) {
+        filter = fresh;
+      }
+    } finally {
+      synchronized (lock) {
+        next = null;
+      }
+    }
+  }
+
+  /**
+   * Returns how many lookups were answered without asking
+   * the backend.
+   */
+  public long getSkippedCount() {
+    return skipped.get();
+  }
+
+  /**
+   * Returns how many lookups went to the backend because of
+   * the filter, but found nothing.
+   */
+  public long getFalsePositiveCount() {
+    return falsePositives.get();
+  }
+
+  /**
+   * Adds a key to the filter. Writes call this both before
+   * and after they reach the backend: before, so that there
+   * is no moment in which the backend holds a key that the
+   * filter does not know, and after, so that a rebuild that
+   * started in between (and may have missed the key) gets
+   * it, too.
+   */
+  private void add(String key) {
+    synchronized (lock) {
+      filter.add(key);
+      if (next != null) {
+        next.add(key);
+      }
+    }
+  }
+
+  @Override
+  public T get(String key) {
+    Preconditions.checkNotNull(key);
+    if (!filter.mightContain(key)) {
+      skipped.incrementAndGet();
+      return null;
+    }
+    T result = backend.get(key);
+    if (result == null) {
+      falsePositives.incrementAndGet();
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, T> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    BloomFilter current = filter;
+    List<String> candidates = Lists.newArrayList();
+    for (String key : keys) {
+      if (current.mightContain(Preconditions.checkNotNull(key))) {
+        candidates.add(key);
+      }
+    }
+    skipped.addAndGet(keys.size() - candidates.size());
+    if (candidates.isEmpty()) {
+      return Maps.newLinkedHashMap();
+    }
+    Map<String, T> result = backend.getAll(candidates);
+    falsePositives.addAndGet(candidates.size() - result.size());
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    Preconditions.checkNotNull(entries);
+    for (String key : entries.keySet()) {
+      add(Preconditions.checkNotNull(key));
+    }
+    backend.putAll(entries);
+    for (String key : entries.keySet()) {
+      add(key);
+    }
+  }
+
+  @Override
+  public T mutate(String key,
+      Function<? super T, ? extends T> mutator) {
+    Preconditions.checkNotNull(key);
+    add(key);
+    T result = backend.mutate(key, mutator);
+    add(key);
+    return result;
+  }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A read-through cache in front of another persistence.
+ * Values that were read or written through this object are
+ * kept in memory (least recently used entries get evicted
+ * first), so repeated reads of the same keys do not hit the
+ * backend. Writes go to the backend first and then refresh
+ * the cache, unless they overlapped with other writes, in
+ * which case the keys are only removed from the cache.
+ *
+ * The cache only knows about changes made through this
+ * object. If other processes write to the same backend,
+ * reads may return stale data until the entry is evicted.
+ * Also, like MapBasedPersistence, the cache does not make
+ * defensive copies, so cached values must not be modified.
+ */
+public class CachingPersistence<T> extends
+    ForwardingPersistence<T> {
+
+  private final Persistence<T> backend;
+
+  private final Function<? super T, Integer> weigher;
+
+  private final long maxWeight;
+
+  private final LinkedHashMap<String, Weighted<T>> cache =
+      new LinkedHashMap<String, Weighted<T>>(16, 0.75f, true);
+
+  private long totalWeight;
+
+  private long writeCount;
+
+  private volatile boolean populateOnScan;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Constructor for a cache that is limited by the number of
+   * entries.
+   *
+   * @param backend
+   *          the persistence to cache
+   * @param maxEntries
+   *          the maximum number of values to keep in memory
+   */
+  public CachingPersistence(Persistence<T> backend,
+      int maxEntries) {
+    this(backend, maxEntries, Functions.constant(1));
+  }
+
+  /**
+   * Constructor for a cache that is limited by an arbitrary
+   * weight per entry, usually the size of the value in
+   * bytes.
+   *
+   * @param backend
+   *          the persistence to cache
+   * @param maxWeight
+   *          the maximum total weight of all values in
+   *          memory
+   * @param weigher
+   *          computes the (non-negative) weight of a value
+   */
+  public CachingPersistence(Persistence<T> backend,
+      long maxWeight, Function<? super T, Integer> weigher) {
+    Preconditions.checkNotNull(backend);
+    Preconditions.checkNotNull(weigher);
+    Preconditions.checkArgument(maxWeight > 0,
+        "maxWeight must be positive");
+    this.backend = backend;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+
+  @Override
+  protected Persistence<T> delegate() {
+    return backend;
+  }
+
+  /**
+   * If set to true, the values returned by scan() and
+   * scanReverse() are put into the cache as well. Note that
+   * this forces the values of lazily converted scan results
+   * (see PersistenceAdapter) to be converted right away.
+   */
+  public void setPopulateOnScan(boolean populateOnScan) {
+    this.populateOnScan = populateOnScan;
+  }
+
+  /**
+   * How many reads were served from memory.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * How many reads had to go to the backend.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * How many entries were dropped to stay within the limit.
+   */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public void invalidateAll() {
+    synchronized (cache) {
+      writeCount++;
+      cache.clear();
+      totalWeight = 0;
+    }
+  }
+
+  @Override
+  public T get(String key) {
+    Preconditions.checkNotNull(key);
+    long writesBefore;
+    synchronized (cache) {
+      Weighted<T> cached = cache.get(key);
+      if (cached != null) {
+        hits.incrementAndGet();
+        return cached.value;
+      }
+      writesBefore = writeCount;
+    }
+    misses.incrementAndGet();
+    T value = backend.get(key);
+    if (value != null) {
+      synchronized (cache) {
+        if (writeCount == writesBefore) {
+          store(key, value);
+        }
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public Map<String, T> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, T> found = Maps.newHashMap();
+    List<String> missing = Lists.newArrayList();
+    long writesBefore;
+    synchronized (cache) {
+      for (String key : keys) {
+        Weighted<T> cached =
+            cache.get(Preconditions.checkNotNull(key));
+        if (cached != null) {
+          found.put(key, cached.value);
+        } else {
+          missing.add(key);
+        }
+      }
+      writesBefore = writeCount;
+    }
+    hits.addAndGet(found.size());
+    if (!missing.isEmpty()) {
+      misses.addAndGet(missing.size());
+      Map<String, T> loaded = backend.getAll(missing);
+      synchronized (cache) {
+        if (writeCount == writesBefore) {
+          for (Entry<String, T> entry : loaded.entrySet()) {
+            store(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+      found.putAll(loaded);
+    }
+    Map<String, T> result = Maps.newLinkedHashMap();
+    for (String key : keys) {
+      T value = found.get(key);
+      if (value != null) {
+        result.put(key, value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Marks the start of a write. Reads, scans and other writes
+   * that overlap with it will not put their results into the
+   * cache, since they cannot tell whether they saw the value
+   * before or after this write.
+   * 
+   * @return the token to pass to endWrite()
+   */
+  private long beginWrite() {
+    synchronized (cache) {
+      return ++writeCount;
+    }
+  }
+
+  /**
+   * Marks the end of a write. Removes the written keys from
+   * the cache, and caches the new values unless another
+   * write started or ended in the meantime.
+   * 
+   * @param writtenOrNull
+   *          the values that were written, or null if the
+   *          write failed or deleted the keys
+   */
+  private void endWrite(long token, Collection<String> keys,
+      Map<String, ? extends T> writtenOrNull) {
+    synchronized (cache) {
+      boolean alone = (writeCount == token);
+      writeCount++;
+      for (String key : keys) {
+        invalidate(key);
+      }
+      if (alone && writtenOrNull != null) {
+        for (Entry<String, ? extends T> entry : writtenOrNull
+            .entrySet()) {
+          store(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    long token = beginWrite();
+    boolean success = false;
+    try {
+      backend.putAll(entries);
+      success = true;
+    } finally {
+      endWrite(token, entries.keySet(), success ? entries
+          : null);
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    long token = beginWrite();
+    try {
+      backend.deleteAll(keys);
+    } finally {
+      endWrite(token, keys, null);
+    }
+  }
+
+  @Override
+  public T mutate(String key,
+      Function<? super T, ? extends T> mutator) {
+    long token = beginWrite();
+    T result = null;
+    try {
+      result = backend.mutate(key, mutator);
+      return result;
+    } finally {
+      endWrite(token, Collections.singleton(key),
+          (result == null) ? null : Collections.singletonMap(
+              key, result));
+    }
+  }
+
+  private long currentWriteCount() {
+    synchronized (cache) {
+      return writeCount;
+    }
+  }
+
+  @Override
+  public List<Entry<String, T>> scan(String start,
+      String end, int max) {
+    long writesBefore = currentWriteCount();
+    return populate(backend.scan(start, end, max),
+        writesBefore);
+  }
+
+  @Override
+  public List<Entry<String, T>> scanReverse(String start,
+      String end, int max) {
+    long writesBefore = currentWriteCount();
+    return populate(backend.scanReverse(start, end, max),
+        writesBefore);
+  }
+
+  /**
+   * Puts the results of a scan into the cache, if this
+   * cache is configured to do so and no write overlapped
+   * with the scan.
+   */
+  private List<Entry<String, T>> populate(
+      List<Entry<String, T>> scanResult, long writesBefore) {
+    if (populateOnScan) {
+      synchronized (cache) {
+        if (writeCount != writesBefore) {
+          return scanResult;
+        }
+        for (Entry<String, T> entry : scanResult) {
+          if (entry.getValue() != null) {
+            store(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+    }
+    return scanResult;
+  }
+
+  /**
+   * Puts a value into the cache and evicts old entries if
+   * necessary. Must be called while holding the lock.
+   */
+  private void store(String key, T value) {
+    int weight = weigher.apply(value);
+    Preconditions.checkState(weight >= 0,
+        "negative weight: " + weight);
+    invalidate(key);
+    if (weight > maxWeight) {
+      return;
+    }
+    cache.put(key, new Weighted<T>(value, weight));
+    totalWeight += weight;
+    Iterator<Weighted<T>> eldest = cache.values().iterator();
+    while (totalWeight > maxWeight) {
+      totalWeight -= eldest.next().weight;
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Removes a value from the cache. Must be called while
+   * holding the lock.
+   */
+  private void invalidate(String key) {
+    Weighted<T> old = cache.remove(key);
+    if (old != null) {
+      totalWeight -= old.weight;
+    }
+  }
+
+  /**
+   * A cached value, together with its weight.
+   */
+  private static class Weighted<T> {
+
+    final T value;
+
+    final int weight;
+
+    Weighted(T value, int weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A byte array persistence for values that are too large
+ * for a single entity. Every key has a small manifest in one
+ * store; values that fit into a chunk are kept in the
+ * manifest itself, larger ones are split into chunks that
+ * live in a second store, under the keys
+ * <i>key/generation/index</i>.
+ * 
+ * Every write of a large value uses a new, random
+ * generation. The chunks are written first, and the value
+ * only becomes visible once the manifest that points to
+ * them has been stored, so readers never see a half
+ * written value. The chunks of the previous generation are
+ * deleted afterwards. If the process dies in between, or
+ * two putAll() calls race for the same key, unreferenced
+ * chunks can be left behind; they waste space, but are
+ * never read.
+ * 
+ * Chunks are written in batches that are bounded in size,
+ * like single entities are. Reads get the manifests first
+ * and then all chunks they need in such batches. If the chunk store is an
+ * AsyncPersistence, the batches are fetched in parallel.
+ */
+public class ChunkedPersistence extends
+    ForwardingPersistence<byte[]> {
+
+  /**
+   * Leaves room for the key and the entity overhead below the
+   * datastore's limit of 1MB per entity.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1000 * 1024;
+
+  private static final byte INLINE = 0;
+
+  private static final byte CHUNKED = 1;
+
+  /**
+   * Marker, generation, length and chunk size.
+   */
+  private static final int MANIFEST_LENGTH = 1 + 8 + 4 + 4;
+
+  /**
+   * The most chunks read or written in one call to the chunk
+   * store.
+   */
+  private static final int CHUNKS_PER_BATCH = 8;
+
+  /**
+   * The most chunk data, in bytes, read or written in one
+   * call to the chunk store (unless a single chunk is larger),
+   * so that batches stay below the datastore's limits on the
+   * size of a single call.
+   */
+  static final int BYTES_PER_BATCH = DEFAULT_CHUNK_SIZE;
+
+  /**
+   * How often a read is tried again when chunks disappear
+   * under it because the value was replaced at the same
+   * time.
+   */
+  private static final int READ_ATTEMPTS = 3;
+
+  private static final Random GENERATIONS = new Random();
+
+  private final Persistence<byte[]> manifests;
+
+  private final Persistence<byte[]> chunks;
+
+  private final int chunkSize;
+
+  private final int chunksPerBatch;
+
+  /**
+   * Constructor that uses chunks of DEFAULT_CHUNK_SIZE.
+   */
+  public ChunkedPersistence(Persistence<byte[]> manifests,
+      Persistence<byte[]> chunks) {
+    this(manifests, chunks, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param manifests
+   *          stores the manifests (and the small values)
+   * @param chunks
+   *          stores the chunks of large values. Must not be
+   *          shared with other data.
+   * @param chunkSize
+   *          the largest value, in bytes, that either store
+   *          is asked to hold
+   */
+  public ChunkedPersistence(Persistence<byte[]> manifests,
+      Persistence<byte[]> chunks, int chunkSize) {
+    Preconditions.checkNotNull(manifests);
+    Preconditions.checkNotNull(chunks);
+    Preconditions.checkArgument(chunkSize >= MANIFEST_LENGTH,
+        "chunkSize must be at least " + MANIFEST_LENGTH);
+    this.manifests = manifests;
+    this.chunks = chunks;
+    this.chunkSize = chunkSize;
+    this.chunksPerBatch =
+        Math.max(1, Math.min(CHUNKS_PER_BATCH, BYTES_PER_BATCH
+            / chunkSize));
+  }
+
+  @Override
+  protected Persistence<byte[]> delegate() {
+    return manifests;
+  }
+
+  static String chunkKey(String key, long generation,
+      int index) {
+    return String.format("%s/%016x/%d", key, generation,
+        index);
+  }
+
+  /**
+   * Lists the chunk keys a manifest refers to, or an empty
+   * list for values stored inline.
+   */
+  private static List<String> chunkKeys(String key,
+      byte[] manifest) {
+    checkManifest(manifest);
+    List<String> result = Lists.newArrayList();
+    if (manifest[0] == CHUNKED) {
+      ByteBuffer buffer = ByteBuffer.wrap(manifest, 1,
+          MANIFEST_LENGTH - 1);
+      long generation = buffer.getLong();
+      int length = buffer.getInt();
+      int size = buffer.getInt();
+      int count = (length + size - 1) / size;
+      for (int i = 0; i < count; i++) {
+        result.add(chunkKey(key, generation, i));
+      }
+    }
+    return result;
+  }
+
+  private static void checkManifest(byte[] stored) {
+    boolean valid =
+        stored.length > 0
+            && (stored[0] == INLINE || stored[0] == CHUNKED
+                && stored.length == MANIFEST_LENGTH);
+    if (!valid) {
+      throw new StoreException(
+          "value was not written by ChunkedPersistence");
+    }
+  }
+
+  /**
+   * Turns a value into a manifest, and adds the chunks it
+   * needs (if any) to a batch of chunks to write.
+   */
+  private byte[] split(String key, byte[] value,
+      Map<String, byte[]> chunkBatch) {
+    if (value.length < chunkSize) {
+      return ByteBuffer.allocate(1 + value.length).put(INLINE)
+          .put(value).array();
+    }
+    long generation = GENERATIONS.nextLong();
+    for (int i = 0; i * chunkSize < value.length; i++) {
+      int offset = i * chunkSize;
+      byte[] chunk =
+          new byte[Math.min(chunkSize, value.length - offset)];
+      System.arraycopy(value, offset, chunk, 0, chunk.length);
+      chunkBatch.put(chunkKey(key, generation, i), chunk);
+    }
+    return ByteBuffer.allocate(MANIFEST_LENGTH).put(CHUNKED)
+        .putLong(generation).putInt(value.length).putInt(
+            chunkSize).array();
+  }
+
+  /**
+   * Puts a value back together.
+   * 
+   * @return the value, or null if chunks are missing
+   */
+  private static byte[] assemble(String key, byte[] manifest,
+      Map<String, byte[]> fetched) {
+    checkManifest(manifest);
+    if (manifest[0] == INLINE) {
+      byte[] result = new byte[manifest.length - 1];
+      System.arraycopy(manifest, 1, result, 0, result.length);
+      return result;
+    }
+    int length = ByteBuffer.wrap(manifest, 9, 4).getInt();
+    byte[] result = new byte[length];
+    int offset = 0;
+    for (String chunkKey : chunkKeys(key, manifest)) {
+      byte[] chunk = fetched.get(chunkKey);
+      if (chunk == null) {
+        return null;
+      }
+      if (offset + chunk.length > length) {
+        throw new StoreException("chunk " + chunkKey
+            + " is too long");
+      }
+      System.arraycopy(chunk, 0, result, offset, chunk.length);
+      offset += chunk.length;
+    }
+    if (offset != length) {
+      throw new StoreException("chunks of " + key
+          + " are too short");
+    }
+    return result;
+  }
+
+  /**
+   * Writes chunks in batches of chunksPerBatch.
+   */
+  private void writeChunks(Map<String, byte[]> chunkBatch) {
+    List<Entry<String, byte[]>> entries =
+        Lists.newArrayList(chunkBatch.entrySet());
+    for (int i = 0; i < entries.size(); i += chunksPerBatch) {
+      Map<String, byte[]> batch = Maps.newLinkedHashMap();
+      for (Entry<String, byte[]> entry : entries.subList(i,
+          Math.min(entries.size(), i + chunksPerBatch))) {
+        batch.put(entry.getKey(), entry.getValue());
+      }
+      chunks.putAll(batch);
+    }
+  }
+
+  /**
+   * Gets chunks in batches of chunksPerBatch, in parallel if
+   * the chunk store allows it.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<String, byte[]> fetchChunks(List<String> keys) {
+    Map<String, byte[]> result = Maps.newHashMap();
+    if (!(chunks instanceof AsyncPersistence<?>)
+        || keys.size() <= chunksPerBatch) {
+      for (int i = 0; i < keys.size(); i += chunksPerBatch) {
+        result.putAll(chunks.getAll(keys.subList(i, Math.min(
+            keys.size(), i + chunksPerBatch))));
+      }
+      return result;
+    }
+    AsyncPersistence<byte[]> async =
+        (AsyncPersistence<byte[]>) chunks;
+    List<Future<Map<String, byte[]>>> batches =
+        Lists.newArrayList();
+    for (int i = 0; i < keys.size(); i += chunksPerBatch) {
+      batches.add(async.getAllAsync(Lists.newArrayList(keys
+          .subList(i, Math.min(keys.size(), i
+              + chunksPerBatch)))));
+    }
+    try {
+      for (Future<Map<String, byte[]>> batch : batches) {
+        result.putAll(batch.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StoreException("interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new StoreException("could not read chunks", e
+          .getCause());
+    } finally {
+      for (Future<Map<String, byte[]>> batch : batches) {
+        batch.cancel(true);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Turns manifests into values, fetching all chunks they
+   * need at once.
+   * 
+   * @param unresolved
+   *          collects the keys whose chunks are gone, because
+   *          the value was replaced since the manifest was
+   *          read
+   */
+  private Map<String, byte[]> resolveAll(
+      Map<String, byte[]> stored, Collection<String> unresolved) {
+    List<String> needed = Lists.newArrayList();
+    for (Entry<String, byte[]> entry : stored.entrySet()) {
+      if (entry.getValue() != null) {
+        needed.addAll(chunkKeys(entry.getKey(), entry
+            .getValue()));
+      }
+    }
+    Map<String, byte[]> fetched =
+        needed.isEmpty() ? Collections.<String, byte[]> emptyMap()
+            : fetchChunks(needed);
+    Map<String, byte[]> result = Maps.newLinkedHashMap();
+    for (Entry<String, byte[]> entry : stored.entrySet()) {
+      if (entry.getValue() == null) {
+        continue;
+      }
+      byte[] value =
+          assemble(entry.getKey(), entry.getValue(), fetched);
+      if (value == null) {
+        unresolved.add(entry.getKey());
+      } else {
+        result.put(entry.getKey(), value);
+      }
+    }
+    return result;
+  }
+
+  private void deleteChunksOf(Map<String, byte[]> stored) {
+    List<String> obsolete = Lists.newArrayList();
+    for (Entry<String, byte[]> entry : stored.entrySet()) {
+      if (entry.getValue() != null) {
+        obsolete.addAll(chunkKeys(entry.getKey(), entry
+            .getValue()));
+      }
+    }
+    if (!obsolete.isEmpty()) {
+      chunks.deleteAll(obsolete);
+    }
+  }
+
+  @Override
+  public byte[] get(String key) {
+    Preconditions.checkNotNull(key);
+    return getAll(Collections.singletonList(key)).get(key);
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, byte[]> result = Maps.newLinkedHashMap();
+    Collection<String> pending = keys;
+    for (int attempt = 0; !pending.isEmpty(); attempt++) {
+      if (attempt == READ_ATTEMPTS) {
+        throw new StoreException("chunks keep disappearing for "
+            + pending);
+      }
+      List<String> unresolved = Lists.newArrayList();
+      result.putAll(resolveAll(manifests.getAll(pending),
+          unresolved));
+      pending = unresolved;
+    }
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends byte[]> entries) {
+    Preconditions.checkNotNull(entries);
+    Map<String, byte[]> stored = Maps.newLinkedHashMap();
+    Map<String, byte[]> chunkBatch = Maps.newLinkedHashMap();
+    for (Entry<String, ? extends byte[]> entry : entries
+        .entrySet()) {
+      Preconditions.checkNotNull(entry.getValue());
+      stored.put(entry.getKey(), split(entry.getKey(), entry
+          .getValue(), chunkBatch));
+    }
+    if (stored.isEmpty()) {
+      return;
+    }
+    Map<String, byte[]> replaced;
+    try {
+      if (!chunkBatch.isEmpty()) {
+        writeChunks(chunkBatch);
+      }
+      replaced = manifests.getAll(stored.keySet());
+      manifests.putAll(stored);
+    } catch (RuntimeException e) {
+      if (!chunkBatch.isEmpty()) {
+        chunks.deleteAll(chunkBatch.keySet());
+      }
+      throw e;
+    }
+    deleteChunksOf(replaced);
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, byte[]> replaced = manifests.getAll(keys);
+    manifests.deleteAll(keys);
+    deleteChunksOf(replaced);
+  }
+
+  /**
+   * The manifest is changed in a single mutation of the
+   * manifest store. Chunks of the new value are written from
+   * within the mutator, before the manifest, and chunks
+   * written by attempts that did not succeed are deleted
+   * again.
+   * 
+   * @throws StoreException
+   *           if the chunks of the current value disappear
+   *           during the mutation, because another write
+   *           replaced it
+   */
+  @Override
+  public byte[] mutate(final String key,
+      final Function<? super byte[], ? extends byte[]> mutator) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(mutator);
+    final List<String> attempted = Lists.newArrayList();
+    final byte[][] replaced = new byte[1][];
+    final byte[][] result = new byte[1][];
+    byte[] stored;
+    try {
+      stored =
+          manifests.mutate(key, new Function<byte[], byte[]>() {
+            @Override
+            public byte[] apply(byte[] current) {
+              replaced[0] = current;
+              byte[] value = null;
+              if (current != null) {
+                List<String> unresolved = Lists.newArrayList();
+                value =
+                    resolveAll(Collections.singletonMap(key,
+                        current), unresolved).get(key);
+                if (value == null) {
+                  throw new StoreException("chunks of " + key
+                      + " were replaced concurrently");
+                }
+              }
+              result[0] = mutator.apply(value);
+              if (result[0] == null) {
+                return null;
+              }
+              Map<String, byte[]> chunkBatch =
+                  Maps.newLinkedHashMap();
+              byte[] manifest = split(key, result[0], chunkBatch);
+              if (!chunkBatch.isEmpty()) {
+                attempted.addAll(chunkBatch.keySet());
+                writeChunks(chunkBatch);
+              }
+              return manifest;
+            }
+          });
+    } catch (RuntimeException e) {
+      if (!attempted.isEmpty()) {
+        chunks.deleteAll(attempted);
+      }
+      throw e;
+    }
+    List<String> obsolete = Lists.newArrayList(attempted);
+    if (stored != null) {
+      obsolete.removeAll(chunkKeys(key, stored));
+    }
+    if (replaced[0] != null) {
+      obsolete.addAll(chunkKeys(key, replaced[0]));
+    }
+    if (!obsolete.isEmpty()) {
+      chunks.deleteAll(obsolete);
+    }
+    return result[0];
+  }
+
+  /**
+   * Resolves scanned manifests, and reads the values that
+   * were replaced during the scan again.
+   */
+  private List<Entry<String, byte[]>> resolveScanned(
+      List<Entry<String, byte[]>> scanned) {
+    Map<String, byte[]> stored = Maps.newLinkedHashMap();
+    for (Entry<String, byte[]> entry : scanned) {
+      stored.put(entry.getKey(), entry.getValue());
+    }
+    List<String> unresolved = Lists.newArrayList();
+    Map<String, byte[]> values = resolveAll(stored, unresolved);
+    if (!unresolved.isEmpty()) {
+      values.putAll(getAll(unresolved));
+    }
+    List<Entry<String, byte[]>> result = Lists.newArrayList();
+    for (Entry<String, byte[]> entry : scanned) {
+      byte[] value = values.get(entry.getKey());
+      if (value != null) {
+        result.add(Maps.immutableEntry(entry.getKey(), value));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Entries that are deleted while the scan runs are left
+   * out, so fewer than max entries may be returned even if
+   * the range holds more.
+   */
+  @Override
+  public List<Entry<String, byte[]>> scan(String start,
+      String end, int max) {
+    return resolveScanned(manifests.scan(start, end, max));
+  }
+
+  @Override
+  public List<Entry<String, byte[]>> scanReverse(
+      String start, String end, int max) {
+    return resolveScanned(manifests.scanReverse(start, end,
+        max));
+  }
+
+  /**
+   * Unlike scans, an iteration fetches the chunks of each
+   * large value separately, when it gets to the value.
+   */
+  @Override
+  public CloseableIterator<Entry<String, byte[]>> iterate(
+      String start, String end) {
+    final CloseableIterator<Entry<String, byte[]>> entries =
+        manifests.iterate(start, end);
+    class Resolving extends
+        AbstractIterator<Entry<String, byte[]>> implements
+        CloseableIterator<Entry<String, byte[]>> {
+      @Override
+      protected Entry<String, byte[]> computeNext() {
+        while (entries.hasNext()) {
+          Entry<String, byte[]> entry = entries.next();
+          List<Entry<String, byte[]>> resolved =
+              resolveScanned(Collections.singletonList(entry));
+          if (!resolved.isEmpty()) {
+            return resolved.get(0);
+          }
+        }
+        return endOfData();
+      }
+
+      @Override
+      public void close() {
+        entries.close();
+      }
+    }
+    return new Resolving();
+  }
+}
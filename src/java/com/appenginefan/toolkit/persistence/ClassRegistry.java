@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Assigns numeric IDs to the classes that
+ * CompactObjectPersistence may store, and caches what it
+ * needs to know about their fields. IDs are written into
+ * the stored data instead of class names, so they must
+ * never change or be reused once data has been written.
+ *
+ * Registered classes need a constructor without arguments
+ * (it may be private). All fields that are neither static
+ * nor transient are stored, including those of super
+ * classes. Fields are identified by a 16 bit hash of their
+ * name, so fields can be added and removed without breaking
+ * existing data; renaming a field loses its stored value.
+ * Enums can be registered as well and are stored by
+ * ordinal.
+ *
+ * A registry is usually filled once at startup and then
+ * shared; it is safe to use from several threads.
+ */
+public class ClassRegistry {
+
+  private final Map<Integer, ClassInfo> byId =
+      new ConcurrentHashMap<Integer, ClassInfo>();
+
+  private final Map<Class<?>, ClassInfo> byClass =
+      new ConcurrentHashMap<Class<?>, ClassInfo>();
+
+  /**
+   * Registers a class.
+   *
+   * @param id
+   *          a non-negative number that identifies the class
+   *          in stored data
+   * @param type
+   *          the class to register
+   * @return this registry, to allow chaining
+   * @throws IllegalArgumentException
+   *           if the ID or class is already taken, or if the
+   *           class cannot be stored
+   */
+  public synchronized ClassRegistry register(int id,
+      Class<?> type) {
+    Preconditions.checkArgument(id >= 0, "negative id: " + id);
+    Preconditions.checkNotNull(type);
+    Preconditions.checkArgument(!byId.containsKey(id),
+        "id already registered: " + id);
+    Preconditions.checkArgument(!byClass.containsKey(type),
+        "class already registered: " + type.getName());
+    ClassInfo info = new ClassInfo(id, type);
+    byId.put(id, info);
+    byClass.put(type, info);
+    return this;
+  }
+
+  ClassInfo forId(int id) {
+    ClassInfo result = byId.get(id);
+    if (result == null) {
+      throw new StoreException("unknown class id: " + id);
+    }
+    return result;
+  }
+
+  ClassInfo forClass(Class<?> type) {
+    ClassInfo result = byClass.get(type);
+    if (result == null) {
+      throw new StoreException("class not registered: "
+          + type.getName());
+    }
+    return result;
+  }
+
+  /**
+   * Folds the hash code of a field name into 16 bits.
+   */
+  static int fieldKey(String name) {
+    int hash = name.hashCode();
+    return (hash ^ (hash >>> 16)) & 0xFFFF;
+  }
+
+  /**
+   * What the serializer needs to know about a registered
+   * class.
+   */
+  static final class ClassInfo {
+
+    final int id;
+
+    final Class<?> type;
+
+    final Object[] enumConstants;
+
+    final Constructor<?> constructor;
+
+    /**
+     * The stored fields, sorted by name.
+     */
+    final Field[] fields;
+
+    final int[] fieldKeys;
+
+    private final Map<Integer, Field> fieldsByKey;
+
+    ClassInfo(int id, Class<?> type) {
+      this.id = id;
+      this.type = type;
+      if (type.isEnum()) {
+        enumConstants = type.getEnumConstants();
+        constructor = null;
+        fields = new Field[0];
+        fieldKeys = new int[0];
+        fieldsByKey = Collections.emptyMap();
+        return;
+      }
+      enumConstants = null;
+      Preconditions.checkArgument(!type.isInterface()
+          && !Modifier.isAbstract(type.getModifiers()),
+          "cannot instantiate " + type.getName());
+      try {
+        constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+      } catch (NoSuchMethodException e) {
+        throw new IllegalArgumentException(type.getName()
+            + " has no constructor without arguments");
+      }
+      List<Field> stored = Lists.newArrayList();
+      for (Class<?> c = type; c != Object.class; c =
+          c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          int modifiers = field.getModifiers();
+          if (!Modifier.isStatic(modifiers)
+              && !Modifier.isTransient(modifiers)) {
+            field.setAccessible(true);
+            stored.add(field);
+          }
+        }
+      }
+      Collections.sort(stored, new Comparator<Field>() {
+        @Override
+        public int compare(Field a, Field b) {
+          return a.getName().compareTo(b.getName());
+        }
+      });
+      fields = stored.toArray(new Field[stored.size()]);
+      fieldKeys = new int[fields.length];
+      fieldsByKey = Maps.newHashMap();
+      for (int i = 0; i < fields.length; i++) {
+        fieldKeys[i] = fieldKey(fields[i].getName());
+        Field clash = fieldsByKey.put(fieldKeys[i], fields[i]);
+        Preconditions.checkArgument(clash == null,
+            "fields " + clash + " and " + fields[i]
+                + " cannot be told apart");
+      }
+    }
+
+    /**
+     * Returns the field with the given key, or null if the
+     * class has no such field (any more).
+     */
+    Field field(int key) {
+      return fieldsByKey.get(key);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Iterator;
+
+/**
+ * An iterator that may hold on to resources in the store
+ * (like an open query) and should therefore be closed once
+ * the caller is done with it, even if it was not iterated
+ * to the end.
+ */
+public interface CloseableIterator<E> extends Iterator<E> {
+
+  /**
+   * Releases the resources held by this iterator. Calling
+   * close more than once has no effect. After closing, the
+   * iterator does not fetch any more data from the store.
+   */
+  public void close();
+
+}
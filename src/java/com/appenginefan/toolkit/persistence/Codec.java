@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+/**
+ * Converts values to and from bytes. Codecs are used by
+ * CodecPersistence and must be thread safe.
+ *
+ * @param <T>
+ *          the type of values that this codec converts
+ */
+public interface Codec<T> {
+
+  /**
+   * Appends the encoded form of a value to a buffer. The
+   * buffer may be reused after this call returns, so
+   * implementations must not hold on to it.
+   *
+   * @throws StoreException
+   *           if the value cannot be encoded
+   */
+  void encode(T nonNullValue, CodecBuffer out);
+
+  /**
+   * Decodes a value from a slice of an array. The array may
+   * be reused after this call returns, so the result must
+   * not refer to it.
+   *
+   * @throws StoreException
+   *           if the data cannot be decoded
+   */
+  T decode(byte[] data, int offset, int length);
+}
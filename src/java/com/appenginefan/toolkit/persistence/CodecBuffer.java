@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A growable byte array that codecs write to. Unlike a
+ * ByteArrayOutputStream, it is not synchronized, gives
+ * access to its internal array, and can be borrowed from a
+ * per-thread pool (see acquire() and release()), so that
+ * encoding a value usually does not need any temporary
+ * buffers.
+ */
+public final class CodecBuffer extends OutputStream {
+
+  private static final int INITIAL_SIZE = 256;
+
+  /**
+   * Buffers that have grown beyond this size are not kept
+   * in the pool, so that a single large value does not tie
+   * up memory forever.
+   */
+  private static final int MAX_POOLED_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<CodecBuffer> POOL =
+      new ThreadLocal<CodecBuffer>();
+
+  private byte[] buffer;
+
+  private int size;
+
+  public CodecBuffer() {
+    this(INITIAL_SIZE);
+  }
+
+  public CodecBuffer(int initialCapacity) {
+    Preconditions.checkArgument(initialCapacity >= 0);
+    buffer = new byte[initialCapacity];
+  }
+
+  /**
+   * Borrows an empty buffer from the pool of the current
+   * thread, or creates a new one if the pooled buffer is
+   * already in use.
+   */
+  public static CodecBuffer acquire() {
+    CodecBuffer result = POOL.get();
+    if (result == null) {
+      return new CodecBuffer();
+    }
+    POOL.set(null);
+    result.reset();
+    return result;
+  }
+
+  /**
+   * Returns a buffer to the pool of the current thread. The
+   * buffer must not be used afterwards.
+   */
+  public static void release(CodecBuffer buffer) {
+    if (buffer.buffer.length <= MAX_POOLED_SIZE) {
+      POOL.set(buffer);
+    }
+  }
+
+  /**
+   * Makes sure that at least the given number of bytes can
+   * be written without growing the buffer again.
+   */
+  public void ensureRemaining(int count) {
+    int needed = size + count;
+    if (needed > buffer.length) {
+      buffer =
+          Arrays.copyOf(buffer, Math.max(needed,
+              buffer.length * 2));
+    }
+  }
+
+  @Override
+  public void write(int b) {
+    ensureRemaining(1);
+    buffer[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) {
+    ensureRemaining(length);
+    System.arraycopy(bytes, offset, buffer, size, length);
+    size += length;
+  }
+
+  /**
+   * Marks bytes that were written directly into the array
+   * returned by array() as part of the content.
+   */
+  public void advance(int count) {
+    Preconditions.checkArgument(count >= 0
+        && size + count <= buffer.length);
+    size += count;
+  }
+
+  /**
+   * Returns the internal array. Only the first size() bytes
+   * are content; the array may be replaced when the buffer
+   * grows.
+   */
+  public byte[] array() {
+    return buffer;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void reset() {
+    size = 0;
+  }
+
+  /**
+   * Returns a copy of the content.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+}
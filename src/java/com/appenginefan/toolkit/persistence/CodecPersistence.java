@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A MarshallingPersistence that converts values with a
+ * Codec. Values are encoded into a pooled buffer, so writes
+ * do not allocate more than the resulting array.
+ */
+public class CodecPersistence<T> extends
+    MarshallingPersistence<T> {
+
+  private final Codec<T> codec;
+
+  /**
+   * Constructor.
+   *
+   * @param backend
+   *          the persistence that stores the bytes
+   * @param codec
+   *          converts values to and from bytes
+   */
+  public CodecPersistence(Persistence<byte[]> backend,
+      Codec<T> codec) {
+    super(backend);
+    this.codec = Preconditions.checkNotNull(codec);
+  }
+
+  @Override
+  protected byte[] makeArray(T nonNullValue) {
+    CodecBuffer buffer = CodecBuffer.acquire();
+    try {
+      codec.encode(nonNullValue, buffer);
+      return buffer.toByteArray();
+    } finally {
+      CodecBuffer.release(buffer);
+    }
+  }
+
+  @Override
+  protected T makeType(byte[] nonNullValue) {
+    return codec.decode(nonNullValue, 0, nonNullValue.length);
+  }
+}
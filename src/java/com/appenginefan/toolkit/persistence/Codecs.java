@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * Codecs for the value types that this package supports
+ * out of the box.
+ */
+public final class Codecs {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private Codecs() {
+  }
+
+  /**
+   * Encodes strings as UTF-8.
+   */
+  public static Codec<String> utf8() {
+    return Utf8Codec.INSTANCE;
+  }
+
+  /**
+   * Encodes longs as eight bytes, least significant byte
+   * first.
+   */
+  public static Codec<Long> longs() {
+    return LongCodec.INSTANCE;
+  }
+
+  /**
+   * Uses Java serialization.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T extends Serializable> Codec<T> serializable() {
+    return (Codec<T>) SerializableCodec.INSTANCE;
+  }
+
+  /**
+   * Uses the protocol buffer wire format.
+   *
+   * @param prototype
+   *          an instance of the message type, used to create
+   *          builders when decoding
+   */
+  public static <T extends Message> Codec<T> protocolBuffer(
+      T prototype) {
+    return new ProtocolBufferCodec<T>(prototype);
+  }
+
+  /**
+   * Decodes only some fields of protocol buffers and skips
+   * the rest. Since required fields may be missing, the
+   * decoded messages are not checked for completeness. This
+   * codec cannot encode.
+   *
+   * @param prototype
+   *          an instance of the message type, used to create
+   *          builders when decoding
+   * @param fieldNumbers
+   *          the numbers of the fields to decode
+   */
+  public static <T extends Message> Codec<T> protocolBufferProjection(
+      T prototype, int... fieldNumbers) {
+    return new ProjectionCodec<T>(prototype, fieldNumbers);
+  }
+
+  /**
+   * Returns how many bytes the UTF-8 codec writes for a
+   * string.
+   */
+  static int utf8Length(String value) {
+    int length = value.length();
+    int result = 0;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        result++;
+      } else if (c < 0x800) {
+        result += 2;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        result += 4;
+        i++;
+      } else if (c >= Character.MIN_SURROGATE
+          && c <= Character.MAX_SURROGATE) {
+        result++;
+      } else {
+        result += 3;
+      }
+    }
+    return result;
+  }
+
+  private static class Utf8Codec implements Codec<String> {
+
+    static final Utf8Codec INSTANCE = new Utf8Codec();
+
+    /**
+     * Writes the characters straight into the buffer instead
+     * of going through String.getBytes(), which would create
+     * a temporary array.
+     */
+    @Override
+    public void encode(String value, CodecBuffer out) {
+      int length = value.length();
+      out.ensureRemaining(length * 3);
+      byte[] array = out.array();
+      int position = out.size();
+      for (int i = 0; i < length; i++) {
+        char c = value.charAt(i);
+        if (c < 0x80) {
+          array[position++] = (byte) c;
+        } else if (c < 0x800) {
+          array[position++] = (byte) (0xC0 | (c >> 6));
+          array[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)
+            && i + 1 < length
+            && Character.isLowSurrogate(value.charAt(i + 1))) {
+          int codePoint =
+              Character.toCodePoint(c, value.charAt(++i));
+          array[position++] = (byte) (0xF0 | (codePoint >> 18));
+          array[position++] =
+              (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+          array[position++] =
+              (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+          array[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (c >= Character.MIN_SURROGATE
+            && c <= Character.MAX_SURROGATE) {
+          array[position++] = (byte) '?';
+        } else {
+          array[position++] = (byte) (0xE0 | (c >> 12));
+          array[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          array[position++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+      out.advance(position - out.size());
+    }
+
+    @Override
+    public String decode(byte[] data, int offset, int length) {
+      return new String(data, offset, length, UTF8);
+    }
+  }
+
+  private static class LongCodec implements Codec<Long> {
+
+    static final LongCodec INSTANCE = new LongCodec();
+
+    @Override
+    public void encode(Long value, CodecBuffer out) {
+      long asPrimitiveValue = value.longValue();
+      out.ensureRemaining(8);
+      byte[] array = out.array();
+      int position = out.size();
+      for (int i = 0; i < 8; i++) {
+        array[position + i] =
+            (byte) (asPrimitiveValue >>> (i * 8));
+      }
+      out.advance(8);
+    }
+
+    @Override
+    public Long decode(byte[] data, int offset, int length) {
+      if (length != 8) {
+        throw new AssertionError("Invalid byte array length: "
+            + length);
+      }
+      long result = 0;
+      for (int i = 7; i >= 0; i--) {
+        result <<= 8;
+        result = result ^ ((long) data[offset + i] & 0xFF);
+      }
+      return result;
+    }
+  }
+
+  private static class SerializableCodec implements
+      Codec<Serializable> {
+
+    static final SerializableCodec INSTANCE =
+        new SerializableCodec();
+
+    @Override
+    public void encode(Serializable value, CodecBuffer out) {
+      try {
+        ObjectOutputStream stream = new ObjectOutputStream(out);
+        stream.writeObject(value);
+        stream.flush();
+      } catch (IOException e) {
+        throw new StoreException("Object serialization failed",
+            e);
+      }
+    }
+
+    @Override
+    public Serializable decode(byte[] data, int offset,
+        int length) {
+      try {
+        return (Serializable) new ObjectInputStream(
+            new ByteArrayInputStream(data, offset, length))
+            .readObject();
+      } catch (ClassCastException e) {
+        throw new StoreException(
+            "Object deserialization failed", e);
+      } catch (IOException e) {
+        throw new StoreException(
+            "Object deserialization failed", e);
+      } catch (ClassNotFoundException e) {
+        throw new StoreException(
+            "Object deserialization failed", e);
+      }
+    }
+  }
+
+  private static class ProtocolBufferCodec<T extends Message>
+      implements Codec<T> {
+
+    /**
+     * One builder per thread. Generated builders can be used
+     * again after build() once they are cleared, which saves
+     * creating a new builder for every value.
+     */
+    final ThreadLocal<Message.Builder> builders;
+
+    ProtocolBufferCodec(final T prototype) {
+      Preconditions.checkNotNull(prototype);
+      builders = new ThreadLocal<Message.Builder>() {
+        @Override
+        protected Message.Builder initialValue() {
+          return prototype.newBuilderForType();
+        }
+      };
+    }
+
+    /**
+     * Serializes straight into the buffer's array.
+     */
+    @Override
+    public void encode(T value, CodecBuffer out) {
+      int size = value.getSerializedSize();
+      out.ensureRemaining(size);
+      try {
+        CodedOutputStream stream =
+            CodedOutputStream.newInstance(out.array(), out
+                .size(), size);
+        value.writeTo(stream);
+        stream.checkNoSpaceLeft();
+      } catch (IOException e) {
+        throw new StoreException(
+            "ProtocolBuffer serialization failed", e);
+      }
+      out.advance(size);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T decode(byte[] data, int offset, int length) {
+      try {
+        return (T) builders.get().clear().mergeFrom(data,
+            offset, length).build();
+      } catch (InvalidProtocolBufferException e) {
+        throw new StoreException(
+            "ProtocolBuffer deserialization failed", e);
+      }
+    }
+  }
+
+  private static class ProjectionCodec<T extends Message>
+      extends ProtocolBufferCodec<T> {
+
+    private final int[] fieldNumbers;
+
+    ProjectionCodec(T prototype, int... fieldNumbers) {
+      super(prototype);
+      this.fieldNumbers = fieldNumbers.clone();
+      Arrays.sort(this.fieldNumbers);
+    }
+
+    @Override
+    public void encode(T value, CodecBuffer out) {
+      throw new UnsupportedOperationException(
+          "projections are read-only");
+    }
+
+    /**
+     * Copies the wanted fields into a pooled buffer, and only
+     * parses that.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public T decode(byte[] data, int offset, int length) {
+      CodecBuffer selected = CodecBuffer.acquire();
+      try {
+        int position = offset;
+        int limit = offset + length;
+        while (position < limit) {
+          int start = position;
+          long tag = readVarint(data, position, limit);
+          position = skipVarint(data, position, limit);
+          position = skipValue(data, position, limit, tag);
+          if (Arrays.binarySearch(fieldNumbers,
+              (int) (tag >>> 3)) >= 0) {
+            selected.write(data, start, position - start);
+          }
+        }
+        return (T) builders.get().clear().mergeFrom(
+            selected.array(), 0, selected.size())
+            .buildPartial();
+      } catch (InvalidProtocolBufferException e) {
+        throw new StoreException(
+            "ProtocolBuffer deserialization failed", e);
+      } finally {
+        CodecBuffer.release(selected);
+      }
+    }
+
+    private static long readVarint(byte[] data, int position,
+        int limit) {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (position >= limit) {
+          break;
+        }
+        int b = data[position++];
+        result |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new StoreException("malformed protocol buffer");
+    }
+
+    /**
+     * Returns the position after a varint. This is not
+     * derived from its value, since encoders may pad varints
+     * with redundant bytes.
+     */
+    private static int skipVarint(byte[] data, int position,
+        int limit) {
+      for (int i = 0; i < 10 && position < limit; i++) {
+        if ((data[position++] & 0x80) == 0) {
+          return position;
+        }
+      }
+      throw new StoreException("malformed protocol buffer");
+    }
+
+    /**
+     * Returns the position after the value of a field.
+     */
+    private static int skipValue(byte[] data, int position,
+        int limit, long tag) {
+      long end;
+      switch ((int) (tag & 7)) {
+      case 0:
+        end = skipVarint(data, position, limit);
+        break;
+      case 1:
+        end = position + 8L;
+        break;
+      case 2: {
+        long length = readVarint(data, position, limit);
+        if (length < 0) {
+          throw new StoreException("malformed protocol buffer");
+        }
+        end = skipVarint(data, position, limit) + length;
+        break;
+      }
+      case 3:
+        while (true) {
+          if (position >= limit) {
+            throw new StoreException("malformed protocol buffer");
+          }
+          long inner = readVarint(data, position, limit);
+          position = skipVarint(data, position, limit);
+          if ((inner & 7) == 4) {
+            if ((inner >>> 3) != (tag >>> 3)) {
+              throw new StoreException("malformed protocol buffer");
+            }
+            return position;
+          }
+          position = skipValue(data, position, limit, inner);
+        }
+      case 5:
+        end = position + 4L;
+        break;
+      default:
+        throw new StoreException("malformed protocol buffer");
+      }
+      if (end < position || end > limit) {
+        throw new StoreException("malformed protocol buffer");
+      }
+      return (int) end;
+    }
+  }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Map.Entry;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A replacement for ObjectPersistence that does not use
+ * Java serialization. Instead of class descriptors, the
+ * stored data contains small numbers from a ClassRegistry,
+ * and fields are read and written through cached
+ * reflection, which makes the data several times smaller and
+ * faster to decode.
+ *
+ * Besides registered classes, the following types can be
+ * stored, both as the value itself and in fields: null,
+ * boxed primitives, strings, byte arrays, dates, and lists,
+ * sets and maps of supported types. Lists are restored as
+ * ArrayLists, sets as LinkedHashSets (or TreeSets for sorted
+ * sets) and maps as LinkedHashMaps (or TreeMaps); if a field
+ * is declared with another concrete collection type, the
+ * restored elements are copied into a new instance of that
+ * type. Sorted collections always use the natural ordering.
+ * Values must be trees: shared references are stored twice,
+ * and cycles are not supported.
+ *
+ * Every stored value starts with a format version byte, so
+ * that the format can evolve later on.
+ */
+public class CompactObjectPersistence<T> extends
+    CodecPersistence<T> {
+
+  /**
+   * Constructor.
+   *
+   * @param backend
+   *          the persistence that stores the bytes
+   * @param registry
+   *          the classes that may occur in stored values
+   * @param type
+   *          the type of values in this persistence
+   */
+  public CompactObjectPersistence(Persistence<byte[]> backend,
+      ClassRegistry registry, Class<T> type) {
+    super(backend, new CompactCodec<T>(registry, type));
+  }
+
+  /**
+   * The codec behind CompactObjectPersistence.
+   */
+  static final class CompactCodec<T> implements Codec<T> {
+
+    static final int VERSION = 1;
+
+    private static final Charset UTF8 =
+        Charset.forName("UTF-8");
+
+    private static final int NULL = 0;
+
+    private static final int FALSE = 1;
+
+    private static final int TRUE = 2;
+
+    private static final int BYTE = 3;
+
+    private static final int SHORT = 4;
+
+    private static final int CHAR = 5;
+
+    private static final int INT = 6;
+
+    private static final int LONG = 7;
+
+    private static final int FLOAT = 8;
+
+    private static final int DOUBLE = 9;
+
+    private static final int STRING = 10;
+
+    private static final int BYTES = 11;
+
+    private static final int DATE = 12;
+
+    private static final int LIST = 13;
+
+    private static final int SET = 14;
+
+    private static final int SORTED_SET = 15;
+
+    private static final int MAP = 16;
+
+    private static final int SORTED_MAP = 17;
+
+    private static final int ENUM = 18;
+
+    private static final int OBJECT = 19;
+
+    private final ClassRegistry registry;
+
+    private final Class<T> type;
+
+    CompactCodec(ClassRegistry registry, Class<T> type) {
+      this.registry = Preconditions.checkNotNull(registry);
+      this.type = Preconditions.checkNotNull(type);
+    }
+
+    @Override
+    public void encode(T value, CodecBuffer out) {
+      out.write(VERSION);
+      write(value, out);
+    }
+
+    @Override
+    public T decode(byte[] data, int offset, int length) {
+      Reader in = new Reader(data, offset, length);
+      int version = in.readByte();
+      if (version != VERSION) {
+        throw new StoreException("unknown format version: "
+            + version);
+      }
+      Object result = read(in);
+      try {
+        return type.cast(result);
+      } catch (ClassCastException e) {
+        throw new StoreException("Object deserialization failed",
+            e);
+      }
+    }
+
+    private static void writeVarint(long value, CodecBuffer out) {
+      while ((value & ~0x7FL) != 0) {
+        out.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      out.write((int) value);
+    }
+
+    private static long zigZag(long value) {
+      return (value << 1) ^ (value >> 63);
+    }
+
+    private void write(Object value, CodecBuffer out) {
+      if (value == null) {
+        out.write(NULL);
+      } else if (value instanceof String) {
+        String s = (String) value;
+        out.write(STRING);
+        writeVarint(Codecs.utf8Length(s), out);
+        Codecs.utf8().encode(s, out);
+      } else if (value instanceof Integer) {
+        out.write(INT);
+        writeVarint(zigZag((Integer) value), out);
+      } else if (value instanceof Long) {
+        out.write(LONG);
+        writeVarint(zigZag((Long) value), out);
+      } else if (value instanceof Boolean) {
+        out.write(((Boolean) value) ? TRUE : FALSE);
+      } else if (value instanceof Double) {
+        out.write(DOUBLE);
+        writeFixed(Double.doubleToLongBits((Double) value), 8,
+            out);
+      } else if (value instanceof Float) {
+        out.write(FLOAT);
+        writeFixed(Float.floatToIntBits((Float) value), 4, out);
+      } else if (value instanceof Byte) {
+        out.write(BYTE);
+        out.write((Byte) value);
+      } else if (value instanceof Short) {
+        out.write(SHORT);
+        writeVarint(zigZag((Short) value), out);
+      } else if (value instanceof Character) {
+        out.write(CHAR);
+        writeVarint((Character) value, out);
+      } else if (value instanceof byte[]) {
+        byte[] bytes = (byte[]) value;
+        out.write(BYTES);
+        writeVarint(bytes.length, out);
+        out.write(bytes, 0, bytes.length);
+      } else if (value instanceof Date) {
+        out.write(DATE);
+        writeVarint(zigZag(((Date) value).getTime()), out);
+      } else if (value instanceof List<?>) {
+        writeCollection(LIST, (List<?>) value, out);
+      } else if (value instanceof SortedSet<?>) {
+        writeCollection(SORTED_SET, (SortedSet<?>) value, out);
+      } else if (value instanceof Set<?>) {
+        writeCollection(SET, (Set<?>) value, out);
+      } else if (value instanceof Map<?, ?>) {
+        Map<?, ?> map = (Map<?, ?>) value;
+        out.write((map instanceof SortedMap<?, ?>) ? SORTED_MAP
+            : MAP);
+        writeVarint(map.size(), out);
+        for (Entry<?, ?> entry : map.entrySet()) {
+          write(entry.getKey(), out);
+          write(entry.getValue(), out);
+        }
+      } else if (value instanceof Enum<?>) {
+        Enum<?> constant = (Enum<?>) value;
+        out.write(ENUM);
+        writeVarint(registry.forClass(
+            constant.getDeclaringClass()).id, out);
+        writeVarint(constant.ordinal(), out);
+      } else {
+        writeObject(value, out);
+      }
+    }
+
+    private static void writeFixed(long bits, int bytes,
+        CodecBuffer out) {
+      for (int i = 0; i < bytes; i++) {
+        out.write((int) (bits >>> (i * 8)));
+      }
+    }
+
+    private void writeCollection(int tag, Collection<?> values,
+        CodecBuffer out) {
+      out.write(tag);
+      writeVarint(values.size(), out);
+      for (Object element : values) {
+        write(element, out);
+      }
+    }
+
+    /**
+     * Writes a registered class: its ID, the number of
+     * non-null fields, and then the key and value of each
+     * of these fields.
+     */
+    private void writeObject(Object value, CodecBuffer out) {
+      ClassRegistry.ClassInfo info =
+          registry.forClass(value.getClass());
+      try {
+        Object[] values = new Object[info.fields.length];
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+          values[i] = info.fields[i].get(value);
+          if (values[i] != null) {
+            count++;
+          }
+        }
+        out.write(OBJECT);
+        writeVarint(info.id, out);
+        writeVarint(count, out);
+        for (int i = 0; i < values.length; i++) {
+          if (values[i] != null) {
+            out.write(info.fieldKeys[i] >>> 8);
+            out.write(info.fieldKeys[i]);
+            write(values[i], out);
+          }
+        }
+      } catch (IllegalAccessException e) {
+        throw new StoreException("Object serialization failed",
+            e);
+      }
+    }
+
+    private Object read(Reader in) {
+      int tag = in.readByte();
+      switch (tag) {
+      case NULL:
+        return null;
+      case FALSE:
+        return Boolean.FALSE;
+      case TRUE:
+        return Boolean.TRUE;
+      case BYTE:
+        return (byte) in.readByte();
+      case SHORT:
+        return (short) in.readSignedVarint();
+      case CHAR:
+        return (char) in.readVarint();
+      case INT:
+        return (int) in.readSignedVarint();
+      case LONG:
+        return in.readSignedVarint();
+      case FLOAT:
+        return Float.intBitsToFloat((int) in.readFixed(4));
+      case DOUBLE:
+        return Double.longBitsToDouble(in.readFixed(8));
+      case STRING: {
+        int length = in.readLength();
+        String result =
+            new String(in.data, in.position, length, UTF8);
+        in.position += length;
+        return result;
+      }
+      case BYTES: {
+        int length = in.readLength();
+        byte[] result = new byte[length];
+        System.arraycopy(in.data, in.position, result, 0,
+            length);
+        in.position += length;
+        return result;
+      }
+      case DATE:
+        return new Date(in.readSignedVarint());
+      case LIST:
+        return readCollection(new ArrayList<Object>(), in);
+      case SET:
+        return readCollection(new LinkedHashSet<Object>(), in);
+      case SORTED_SET:
+        return readCollection(new TreeSet<Object>(), in);
+      case MAP:
+        return readMap(new LinkedHashMap<Object, Object>(), in);
+      case SORTED_MAP:
+        return readMap(new TreeMap<Object, Object>(), in);
+      case ENUM: {
+        Object[] constants =
+            registry.forId(in.readId()).enumConstants;
+        int ordinal = in.readId();
+        if (constants == null || ordinal >= constants.length) {
+          throw new StoreException("unknown enum constant");
+        }
+        return constants[ordinal];
+      }
+      case OBJECT:
+        return readObject(in);
+      default:
+        throw new StoreException("unknown tag: " + tag);
+      }
+    }
+
+    private Collection<Object> readCollection(
+        Collection<Object> result, Reader in) {
+      int size = in.readLength();
+      for (int i = 0; i < size; i++) {
+        result.add(read(in));
+      }
+      return result;
+    }
+
+    private Map<Object, Object> readMap(
+        Map<Object, Object> result, Reader in) {
+      int size = in.readLength();
+      for (int i = 0; i < size; i++) {
+        Object key = read(in);
+        result.put(key, read(in));
+      }
+      return result;
+    }
+
+    /**
+     * Reads a registered class. Fields that the class does
+     * not have (any more) are skipped; fields that are not in
+     * the data keep the value that the constructor gave them.
+     */
+    private Object readObject(Reader in) {
+      ClassRegistry.ClassInfo info =
+          registry.forId(in.readId());
+      if (info.constructor == null) {
+        throw new StoreException(info.type.getName()
+            + " is not a class");
+      }
+      try {
+        Object result = info.constructor.newInstance();
+        int count = in.readLength();
+        for (int i = 0; i < count; i++) {
+          int key = (in.readByte() << 8) | in.readByte();
+          Object value = read(in);
+          Field field = info.field(key);
+          if (field != null) {
+            field.set(result, adapt(field.getType(), value));
+          }
+        }
+        return result;
+      } catch (InstantiationException e) {
+        throw new StoreException(
+            "Object deserialization failed", e);
+      } catch (IllegalAccessException e) {
+        throw new StoreException(
+            "Object deserialization failed", e);
+      } catch (InvocationTargetException e) {
+        throw new StoreException(
+            "Object deserialization failed", e);
+      } catch (IllegalArgumentException e) {
+        throw new StoreException(
+            "Object deserialization failed", e);
+      }
+    }
+
+    /**
+     * Copies a restored collection into the concrete type
+     * that a field is declared with, if necessary.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object adapt(Class<?> fieldType, Object value)
+        throws InstantiationException, IllegalAccessException {
+      if (value == null || fieldType.isInstance(value)
+          || fieldType.isPrimitive() || fieldType.isInterface()) {
+        return value;
+      }
+      if (value instanceof Collection<?>
+          && Collection.class.isAssignableFrom(fieldType)) {
+        Collection<Object> copy =
+            (Collection<Object>) fieldType.newInstance();
+        copy.addAll((Collection<?>) value);
+        return copy;
+      }
+      if (value instanceof Map<?, ?>
+          && Map.class.isAssignableFrom(fieldType)) {
+        Map<Object, Object> copy =
+            (Map<Object, Object>) fieldType.newInstance();
+        copy.putAll((Map<?, ?>) value);
+        return copy;
+      }
+      return value;
+    }
+  }
+
+  /**
+   * Reads from a slice of an array.
+   */
+  private static final class Reader {
+
+    final byte[] data;
+
+    final int limit;
+
+    int position;
+
+    Reader(byte[] data, int offset, int length) {
+      this.data = data;
+      this.position = offset;
+      this.limit = offset + length;
+    }
+
+    private void require(int count) {
+      if (count < 0 || limit - position < count) {
+        throw new StoreException("unexpected end of data");
+      }
+    }
+
+    int readByte() {
+      require(1);
+      return data[position++] & 0xFF;
+    }
+
+    long readVarint() {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = readByte();
+        result |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new StoreException("malformed varint");
+    }
+
+    long readSignedVarint() {
+      long raw = readVarint();
+      return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    int readId() {
+      long result = readVarint();
+      if (result < 0 || result > Integer.MAX_VALUE) {
+        throw new StoreException("malformed id");
+      }
+      return (int) result;
+    }
+
+    /**
+     * Reads a size and checks that there is at least one
+     * byte of data for each element.
+     */
+    int readLength() {
+      long result = readVarint();
+      if (result < 0 || result > Integer.MAX_VALUE) {
+        throw new StoreException("malformed length");
+      }
+      if (result > limit - position) {
+        require((int) result);
+      }
+      return (int) result;
+    }
+
+    long readFixed(int bytes) {
+      long result = 0;
+      for (int i = 0; i < bytes; i++) {
+        result |= (long) readByte() << (i * 8);
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Compresses the values of a byte array based persistence.
+ * Values that are shorter than a threshold, or that do not
+ * get any smaller, are stored as they are. Compressed
+ * values are stored as a marker byte followed by the
+ * deflated data.
+ *
+ * Values that were written before compression was turned on
+ * can still be read: anything that does not start with the
+ * marker byte is returned unchanged, and so is anything that
+ * starts with the marker but turns out not to be valid
+ * compressed data. To keep this unambiguous for new data,
+ * values that happen to start with the marker byte are
+ * always stored compressed.
+ *
+ * Like all adapters, this class converts the values of
+ * scans lazily, so keys can be scanned without paying for
+ * decompression.
+ */
+public class CompressingPersistence extends
+    MarshallingPersistence<byte[]> {
+
+  /**
+   * Marks compressed values. Never occurs in UTF-8 text, and
+   * is not the first byte of serialized Java objects.
+   */
+  static final byte MAGIC = (byte) 0xFE;
+
+  private static final int DEFAULT_THRESHOLD = 256;
+
+  private static final ThreadLocal<Deflater> DEFLATER =
+      new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+          return new Deflater(Deflater.BEST_SPEED);
+        }
+      };
+
+  private static final ThreadLocal<Inflater> INFLATER =
+      new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+          return new Inflater();
+        }
+      };
+
+  private final int threshold;
+
+  private final AtomicLong bytesIn = new AtomicLong();
+
+  private final AtomicLong bytesOut = new AtomicLong();
+
+  private final AtomicLong compressionNanos = new AtomicLong();
+
+  private final AtomicLong decompressionNanos =
+      new AtomicLong();
+
+  /**
+   * Constructor that compresses values of 256 bytes or more.
+   */
+  public CompressingPersistence(Persistence<byte[]> backend) {
+    this(backend, DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param backend
+   *          the persistence that stores the compressed data
+   * @param threshold
+   *          values shorter than this many bytes are not
+   *          compressed
+   */
+  public CompressingPersistence(Persistence<byte[]> backend,
+      int threshold) {
+    super(backend);
+    Preconditions.checkArgument(threshold >= 0,
+        "threshold must not be negative");
+    this.threshold = threshold;
+  }
+
+  /**
+   * Returns the total size of all values written, before
+   * compression.
+   */
+  public long getBytesBeforeCompression() {
+    return bytesIn.get();
+  }
+
+  /**
+   * Returns the total size of all values written, as
+   * handed to the backend.
+   */
+  public long getBytesAfterCompression() {
+    return bytesOut.get();
+  }
+
+  /**
+   * Returns how much of the original size was written to the
+   * backend (smaller is better), or 1 if nothing has been
+   * written yet.
+   */
+  public double getCompressionRatio() {
+    long before = bytesIn.get();
+    return (before == 0) ? 1.0 : (double) bytesOut.get()
+        / before;
+  }
+
+  /**
+   * Returns the time spent compressing, in nanoseconds.
+   */
+  public long getCompressionNanos() {
+    return compressionNanos.get();
+  }
+
+  /**
+   * Returns the time spent decompressing, in nanoseconds.
+   */
+  public long getDecompressionNanos() {
+    return decompressionNanos.get();
+  }
+
+  @Override
+  protected byte[] makeArray(byte[] nonNullValue) {
+    boolean forced =
+        nonNullValue.length > 0 && nonNullValue[0] == MAGIC;
+    byte[] result = nonNullValue;
+    if (forced || nonNullValue.length >= threshold) {
+      long start = System.nanoTime();
+      byte[] compressed = compress(nonNullValue, forced);
+      compressionNanos.addAndGet(System.nanoTime() - start);
+      if (compressed != null) {
+        result = compressed;
+      }
+    }
+    bytesIn.addAndGet(nonNullValue.length);
+    bytesOut.addAndGet(result.length);
+    return result;
+  }
+
+  /**
+   * Deflates a value and puts the marker in front.
+   *
+   * @param force
+   *          if false, gives up (and returns null) as soon as
+   *          the result would not be smaller than the input
+   */
+  private static byte[] compress(byte[] value, boolean force) {
+    Deflater deflater = DEFLATER.get();
+    try {
+      deflater.setInput(value);
+      deflater.finish();
+      byte[] buffer = new byte[Math.max(value.length, 64)];
+      buffer[0] = MAGIC;
+      int length = 1;
+      while (!deflater.finished()) {
+        if (length == buffer.length) {
+          if (!force) {
+            return null;
+          }
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        length +=
+            deflater.deflate(buffer, length, buffer.length
+                - length);
+      }
+      if (!force && length >= value.length) {
+        return null;
+      }
+      return Arrays.copyOf(buffer, length);
+    } finally {
+      deflater.reset();
+    }
+  }
+
+  @Override
+  protected byte[] makeType(byte[] nonNullValue) {
+    if (nonNullValue.length == 0 || nonNullValue[0] != MAGIC) {
+      return nonNullValue;
+    }
+    long start = System.nanoTime();
+    byte[] result = decompress(nonNullValue);
+    decompressionNanos.addAndGet(System.nanoTime() - start);
+    return (result == null) ? nonNullValue : result;
+  }
+
+  /**
+   * Inflates a value that starts with the marker byte.
+   *
+   * @return the original data, or null if the value is not
+   *         valid compressed data
+   */
+  private static byte[] decompress(byte[] value) {
+    Inflater inflater = INFLATER.get();
+    try {
+      inflater.setInput(value, 1, value.length - 1);
+      byte[] buffer = new byte[Math.max(value.length * 4, 64)];
+      int length = 0;
+      while (!inflater.finished()) {
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int inflated =
+            inflater.inflate(buffer, length, buffer.length
+                - length);
+        if (inflated == 0
+            && (inflater.needsInput() || inflater
+                .needsDictionary())) {
+          return null;
+        }
+        length += inflated;
+      }
+      if (inflater.getRemaining() > 0) {
+        return null;
+      }
+      return Arrays.copyOf(buffer, length);
+    } catch (DataFormatException e) {
+      return null;
+    } finally {
+      inflater.reset();
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An in-memory store like MapBasedPersistence, but built
+ * for many concurrent threads. Reads and scans do not take
+ * any locks; mutations only lock the key they change (or
+ * rather, one of a fixed number of lock stripes that the key
+ * hashes to), so writes to different keys rarely block each
+ * other.
+ *
+ * Like MapBasedPersistence, this store does not make
+ * defensive copies of its content, and nothing is persisted
+ * beyond the lifetime of the virtual machine.
+ */
+public class ConcurrentMapBasedPersistence<T> implements
+    Persistence<T> {
+
+  private static final int DEFAULT_STRIPES = 256;
+
+  private final ConcurrentSkipListMap<String, T> store =
+      new ConcurrentSkipListMap<String, T>();
+
+  private final Object[] locks;
+
+  /**
+   * Factory method
+   */
+  public static <T> ConcurrentMapBasedPersistence<T> newInstance() {
+    return new ConcurrentMapBasedPersistence<T>();
+  }
+
+  /**
+   * Constructor with a default number of lock stripes.
+   */
+  public ConcurrentMapBasedPersistence() {
+    this(DEFAULT_STRIPES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param stripes
+   *          the number of locks that mutations are spread
+   *          over. More stripes mean less contention between
+   *          writers of different keys.
+   */
+  public ConcurrentMapBasedPersistence(int stripes) {
+    Preconditions.checkArgument(stripes > 0,
+        "there must be at least one lock stripe");
+    locks = new Object[stripes];
+    for (int i = 0; i < stripes; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Finds the lock that guards a particular key.
+   */
+  private Object lockFor(String key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return locks[(hash & Integer.MAX_VALUE) % locks.length];
+  }
+
+  @Override
+  public T get(String key) {
+    Preconditions.checkNotNull(key);
+    return store.get(key);
+  }
+
+  @Override
+  public Map<String, T> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, T> result = Maps.newLinkedHashMap();
+    for (String key : keys) {
+      T value = get(key);
+      if (value != null) {
+        result.put(key, value);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    Preconditions.checkNotNull(entries);
+    for (Entry<String, ? extends T> entry : entries
+        .entrySet()) {
+      Preconditions.checkNotNull(entry.getValue());
+      synchronized (lockFor(entry.getKey())) {
+        store.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    for (String key : keys) {
+      synchronized (lockFor(key)) {
+        store.remove(key);
+      }
+    }
+  }
+
+  @Override
+  public T mutate(String key,
+      Function<? super T, ? extends T> mutator) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(mutator);
+    synchronized (lockFor(key)) {
+      T toSave = mutator.apply(store.get(key));
+      if (toSave != null) {
+        store.put(key, toSave);
+      } else {
+        store.remove(key);
+      }
+      return toSave;
+    }
+  }
+
+  /**
+   * Copies up to max entries from a view of the store.
+   */
+  private static <T> List<Entry<String, T>> copy(
+      Map<String, T> view, int max) {
+    Preconditions.checkArgument(max > -1);
+    List<Entry<String, T>> result = Lists.newArrayList();
+    for (Entry<String, T> entry : view.entrySet()) {
+      if (result.size() >= max) {
+        break;
+      }
+      result.add(Maps.immutableEntry(entry.getKey(), entry
+          .getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Returns a live view of the given range.
+   */
+  private ConcurrentNavigableMap<String, T> range(
+      String start, String end) {
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    return store.subMap(start, end);
+  }
+
+  @Override
+  public List<Entry<String, T>> scan(String start,
+      String end, int max) {
+    return copy(range(start, end), max);
+  }
+
+  @Override
+  public List<Entry<String, T>> scanReverse(String start,
+      String end, int max) {
+    return copy(range(start, end).descendingMap(), max);
+  }
+
+  @Override
+  public List<String> keyScan(String start, String end,
+      int max) {
+    return copyKeys(range(start, end).keySet(), max);
+  }
+
+  @Override
+  public List<String> keyScanReverse(String start,
+      String end, int max) {
+    return copyKeys(range(start, end).descendingKeySet(),
+        max);
+  }
+
+  /**
+   * Copies up to max keys from a view of the store.
+   */
+  private static List<String> copyKeys(
+      Collection<String> view, int max) {
+    Preconditions.checkArgument(max > -1);
+    List<String> result = new ArrayList<String>();
+    for (String key : view) {
+      if (result.size() >= max) {
+        break;
+      }
+      result.add(key);
+    }
+    return result;
+  }
+
+  /**
+   * Walks the live map directly. The iterator is weakly
+   * consistent: it reflects some, but not necessarily all,
+   * changes made while iterating.
+   */
+  @Override
+  public CloseableIterator<Entry<String, T>> iterate(
+      String start, String end) {
+    final Iterator<Entry<String, T>> iterator =
+        range(start, end).entrySet().iterator();
+    return new CloseableIterator<Entry<String, T>>() {
+
+      private boolean closed;
+
+      @Override
+      public boolean hasNext() {
+        return !closed && iterator.hasNext();
+      }
+
+      @Override
+      public Entry<String, T> next() {
+        Entry<String, T> entry = iterator.next();
+        return Maps.immutableEntry(entry.getKey(), entry
+            .getValue());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void close() {
+        closed = true;
+      }
+    };
+  }
+}
@@ -29,7 +29,7 @@ import com.google.appengine.api.datastore.Entity;
  * store.
  */
 public class DatastorePersistence extends
-    PersistenceAdapter<Entity, byte[]> {
+    VersionedPersistenceAdapter<Entity, byte[]> {
 
   private static final String PROPERTY = "blob";
 
@@ -37,6 +37,13 @@ public class DatastorePersistence extends
 
   private static final String MODIFIED = "changed_at";
 
+  /**
+   * Kind of the temporary entities created for blind writes.
+   * EntityBasedPersistence copies their properties into
+   * properly keyed entities before they are stored.
+   */
+  private static final String UNKEYED = "aef:unkeyed";
+
   /**
    * Constructor.
    *
@@ -67,6 +74,38 @@ public class DatastorePersistence extends
     super(new EntityBasedPersistence(partition));
   }
 
+  /**
+   * Constructor.
+   *
+   * @param entities
+   *          the entity store to write to. Usually an
+   *          EntityBasedPersistence, possibly wrapped into a
+   *          cache like VersionedMemcachePersistence.
+   */
+  public DatastorePersistence(
+      VersionedPersistence<Entity> entities) {
+    super(entities);
+  }
+
+  /**
+   * Creates a persistence whose reads are served from
+   * memcache whenever possible (see MemcachePersistence).
+   *
+   * @param partition
+   *          determines what &quot;partition&quot; to store
+   *          the data in. Different stores must use
+   *          different partitions, or unspecified behavior
+   *          will occur.
+   * @return a persistence object
+   */
+  public static DatastorePersistence createMemcached(
+      String partition) {
+    return new DatastorePersistence(
+        new VersionedMemcachePersistence(
+            new EntityBasedPersistence(partition), null,
+            partition));
+  }
+
   @Override
   protected byte[] makeType(Entity entity) {
     if (entity == null || !entity.hasProperty(PROPERTY)) {
@@ -80,6 +119,9 @@ public class DatastorePersistence extends
     if (data == null) {
       return null;
     }
+    if (entity == null) {
+      entity = new Entity(UNKEYED);
+    }
     if (entity.hasProperty(CREATED)) {
       entity.setProperty(CREATED, System.currentTimeMillis());
     }
@@ -19,10 +19,17 @@
 package com.appenginefan.toolkit.persistence;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
@@ -33,28 +40,53 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 /**
  * A datastore-based persistence that operates on entities.
+ * 
+ * The asynchronous operations run in the calling thread
+ * unless an executor is set, since the App Engine runtime
+ * does not allow starting threads (and this SDK has no
+ * asynchronous datastore calls).
  */
 public class EntityBasedPersistence implements
-    Persistence<Entity> {
+    VersionedPersistence<Entity>, AsyncPersistence<Entity> {
 
   private static final String PREFIX = "aef:";
 
-  private static final int NUM_RETRIES = 10;
+  /**
+   * The property that holds the version of an entity.
+   */
+  static final String VERSION = "aef:version";
+
+  private static final int DEFAULT_PAGE_SIZE = 100;
 
   private final DatastoreService service;
 
   private final String kind;
 
+  private volatile int pageSize = DEFAULT_PAGE_SIZE;
+
+  private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+  private final AtomicLong retryCount = new AtomicLong();
+
+  private final AtomicLong giveUpCount = new AtomicLong();
+
+  private final AtomicLong lastBlindVersion = new AtomicLong();
+
+  private volatile AsyncPersistence<Entity> async =
+      new ExecutorAsyncPersistence<Entity>(this, null);
+
   private static String escape(String key) {
     Preconditions.checkNotNull(key);
     return ":" + key;
@@ -103,6 +135,84 @@ public class EntityBasedPersistence implements
     this(null, partition);
   }
 
+  /**
+   * Sets how many entities iterate() fetches per datastore
+   * call. Larger pages mean fewer round trips, but more
+   * entities held in memory at a time.
+   * 
+   * @param pageSize
+   *          a positive number of entities
+   */
+  public void setPageSize(int pageSize) {
+    Preconditions.checkArgument(pageSize > 0,
+        "pageSize must be positive");
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Sets how mutate() retries transactions that failed
+   * because of concurrent modifications. The default is
+   * RetryPolicy.DEFAULT.
+   */
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    Preconditions.checkNotNull(retryPolicy);
+    this.retryPolicy = retryPolicy;
+  }
+
+  /**
+   * Returns how often mutate() has retried a transaction in
+   * this partition.
+   */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * Returns how often mutate() has given up and thrown a
+   * StoreException in this partition.
+   */
+  public long getGiveUpCount() {
+    return giveUpCount.get();
+  }
+
+  /**
+   * Sets the executor that the asynchronous operations run
+   * on, for example one created by
+   * ExecutorAsyncPersistence.newBoundedExecutor().
+   * 
+   * @param executorOrNull
+   *          the executor, or null to run the operations in
+   *          the calling thread
+   */
+  public void setExecutor(ExecutorService executorOrNull) {
+    this.async =
+        new ExecutorAsyncPersistence<Entity>(this,
+            executorOrNull);
+  }
+
+  @Override
+  public Future<Entity> getAsync(String key) {
+    return async.getAsync(key);
+  }
+
+  @Override
+  public Future<Map<String, Entity>> getAllAsync(
+      Collection<String> keys) {
+    return async.getAllAsync(keys);
+  }
+
+  @Override
+  public Future<Entity> mutateAsync(String key,
+      Function<? super Entity, ? extends Entity> mutator) {
+    return async.mutateAsync(key, mutator);
+  }
+
+  @Override
+  public Future<List<Entry<String, Entity>>> scanAsync(
+      String start, String end, int max) {
+    return async.scanAsync(start, end, max);
+  }
+
   @Override
   public Entity get(String key) {
     Preconditions.checkNotNull(key);
@@ -115,6 +225,110 @@ public class EntityBasedPersistence implements
     }
   }
 
+  /**
+   * Fetches all entities with a single batch get from the
+   * datastore, rather than one round trip per key.
+   */
+  @Override
+  public Map<String, Entity> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    List<Key> dbKeys = new ArrayList<Key>(keys.size());
+    for (String key : keys) {
+      dbKeys.add(KeyFactory.createKey(kind, escape(key)));
+    }
+    Map<String, Entity> result = Maps.newLinkedHashMap();
+    if (dbKeys.isEmpty()) {
+      return result;
+    }
+    Map<Key, Entity> found = service.get(dbKeys);
+    for (Key dbKey : dbKeys) {
+      Entity entity = found.get(dbKey);
+      if (entity != null) {
+        result.put(unescape(dbKey.getName()), entity);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes all entities with a single batch put. The
+   * incoming entities do not need to have the right key;
+   * their properties are copied into entities that belong to
+   * this persistence's partition.
+   */
+  @Override
+  public void putAll(Map<String, ? extends Entity> entries) {
+    Preconditions.checkNotNull(entries);
+    List<Entity> toStore =
+        new ArrayList<Entity>(entries.size());
+    for (Entry<String, ? extends Entity> entry : entries
+        .entrySet()) {
+      Preconditions.checkNotNull(entry.getValue());
+      Entity entity =
+          new Entity(kind, escape(entry.getKey()));
+      copyProperties(entry.getValue(), entity);
+      entity.setProperty(VERSION, blindVersion());
+      toStore.add(entity);
+    }
+    if (toStore.isEmpty()) {
+      return;
+    }
+    try {
+      service.put(toStore);
+    } catch (DatastoreFailureException e) {
+      throw new StoreException("Could not store "
+          + toStore.size() + " entities", e);
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    List<Key> dbKeys = new ArrayList<Key>(keys.size());
+    for (String key : keys) {
+      dbKeys.add(KeyFactory.createKey(kind, escape(key)));
+    }
+    if (dbKeys.isEmpty()) {
+      return;
+    }
+    try {
+      service.delete(dbKeys);
+    } catch (DatastoreFailureException e) {
+      throw new StoreException("Could not delete "
+          + dbKeys.size() + " entities", e);
+    }
+  }
+
+  private static void copyProperties(Entity from, Entity to) {
+    for (Entry<String, Object> property : from.getProperties()
+        .entrySet()) {
+      to.setProperty(property.getKey(), property.getValue());
+    }
+  }
+
+  private static long versionOf(Entity entity) {
+    Object version = entity.getProperty(VERSION);
+    return (version instanceof Long) ? (Long) version : 0;
+  }
+
+  /**
+   * Computes a version for a write that did not read the
+   * previous one. It is based on the clock (in
+   * microseconds), and transactional writes never go below
+   * it either, so that a blind write cannot bring back a
+   * version that a reader has already seen.
+   */
+  private long blindVersion() {
+    long now = System.currentTimeMillis() * 1000;
+    while (true) {
+      long last = lastBlindVersion.get();
+      long next = Math.max(last + 1, now);
+      if (lastBlindVersion.compareAndSet(last, next)) {
+        return next;
+      }
+    }
+  }
+
   /**
    * One specialty compared to the other stores is that the
    * incoming entity is never null. The user of this persistence
@@ -123,15 +337,121 @@ public class EntityBasedPersistence implements
    * It also means that the return value of the function is slightly
    * less meaningful, since the entity is manipulated in place.
    * Exception: returning null will still delete the entity.
+   * 
+   * Every write increases the version property of the entity
+   * (see VersionedPersistence).
    */
   @Override
   public Entity mutate(String key,
       Function<? super Entity, ? extends Entity> mutator) {
     Preconditions.checkNotNull(key);
     Preconditions.checkNotNull(mutator);
+    return update(key, mutator);
+  }
+
+  @Override
+  public Versioned<Entity> getVersioned(String key) {
+    Entity entity = get(key);
+    if (entity == null) {
+      return null;
+    }
+    return new Versioned<Entity>(entity, versionOf(entity));
+  }
+
+  /**
+   * Like putAll(), the properties of the given entity are
+   * copied into one that belongs to this partition.
+   */
+  @Override
+  public boolean putIfAbsent(final String key,
+      final Entity value) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(value);
+    ConditionalUpdate putIfAbsent = new ConditionalUpdate() {
+      @Override
+      protected Entity compute(Entity current) {
+        if (!current.getProperties().isEmpty()) {
+          return skip();
+        }
+        copyProperties(value, current);
+        return current;
+      }
+    };
+    update(key, putIfAbsent);
+    return !putIfAbsent.skipped;
+  }
+
+  @Override
+  public boolean compareAndSet(String key,
+      final long expectedVersion, final Entity newValueOrNull) {
+    Preconditions.checkNotNull(key);
+    ConditionalUpdate compareAndSet = new ConditionalUpdate() {
+      @Override
+      protected Entity compute(Entity current) {
+        if (current.getProperties().isEmpty()
+            || versionOf(current) != expectedVersion) {
+          return skip();
+        }
+        if (newValueOrNull == null) {
+          return null;
+        }
+        Entity replacement = new Entity(current.getKey());
+        copyProperties(newValueOrNull, replacement);
+        return replacement;
+      }
+    };
+    update(key, compareAndSet);
+    return !compareAndSet.skipped;
+  }
+
+  /**
+   * A function for update() that may decide not to write
+   * anything at all.
+   */
+  private abstract static class ConditionalUpdate implements
+      Function<Entity, Entity> {
+
+    /**
+     * Whether the last call to apply() decided not to
+     * write.
+     */
+    boolean skipped;
+
+    /**
+     * Computes the new entity, null to delete it, or the
+     * result of skip() to leave it as it is.
+     */
+    protected abstract Entity compute(Entity current);
+
+    protected final Entity skip() {
+      skipped = true;
+      return null;
+    }
+
+    @Override
+    public final Entity apply(Entity current) {
+      skipped = false;
+      return compute(current);
+    }
+  }
+
+  /**
+   * Runs a function on an entity within a transaction,
+   * retrying as the retry policy says.
+   * 
+   * @param mutator
+   *          computes the new entity, or null to delete it.
+   *          A ConditionalUpdate can also skip the write.
+   * @return what the function returned in the successful
+   *         attempt
+   */
+  private Entity update(String key,
+      Function<? super Entity, ? extends Entity> mutator) {
     Key dbKey = KeyFactory.createKey(kind, escape(key));
+    RetryPolicy policy = retryPolicy;
+    long started = System.currentTimeMillis();
     Exception lastException = null;
-    for (int i = 0; i < NUM_RETRIES; i++) {
+    for (int failures = 0;;) {
       Transaction t = service.beginTransaction();
       boolean success = false;
       Entity entity;
@@ -140,14 +460,21 @@ public class EntityBasedPersistence implements
       } catch (EntityNotFoundException e) {
         entity = new Entity(kind, escape(key));
       }
+      long version = versionOf(entity);
       Entity data = mutator.apply(entity);
       try {
-        if (data != null) {
+        if (mutator instanceof ConditionalUpdate
+            && ((ConditionalUpdate) mutator).skipped) {
+          t.rollback();
+        } else if (data != null) {
+          data.setProperty(VERSION, Math.max(version + 1,
+              blindVersion()));
           service.put(t, data);
+          t.commit();
         } else {
           service.delete(t, dbKey);
+          t.commit();
         }
-        t.commit();
         success = true;
       } catch (ConcurrentModificationException e) {
         success = false;
@@ -157,25 +484,43 @@ public class EntityBasedPersistence implements
         lastException = e;
       } finally {
         if (!success) {
-          t.rollback();
+          if (t.isActive()) {
+            t.rollback();
+          }
         } else {
           return data;
         }
       }
+      failures++;
+      long backoff = policy.getBackoffMillis(failures);
+      if (!policy.shouldRetry(failures, System
+          .currentTimeMillis()
+          - started, backoff)) {
+        break;
+      }
+      retryCount.incrementAndGet();
+      if (backoff > 0) {
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
     }
+    giveUpCount.incrementAndGet();
     throw new StoreException(
         "Could not store data for key " + key,
         lastException);
   }
 
-  public List<Entry<String, Entity>> scan(String start,
-      String end, int max, SortDirection direction, boolean keysOnly) {
+  /**
+   * Prepares a query for all entities within a given range.
+   */
+  private PreparedQuery prepare(String start, String end,
+      SortDirection direction, boolean keysOnly) {
     Preconditions.checkNotNull(start);
     Preconditions.checkNotNull(end);
-    Preconditions.checkArgument(max > -1);
-    if (max == 0) {
-      return Lists.newArrayList();
-    }
     Query query = new Query(kind);
     query.addFilter("__key__",
         FilterOperator.GREATER_THAN_OR_EQUAL, KeyFactory
@@ -186,7 +531,19 @@ public class EntityBasedPersistence implements
     if (keysOnly) {
       query.setKeysOnly();
     }
-    PreparedQuery preparedQuery = service.prepare(query);
+    return service.prepare(query);
+  }
+
+  public List<Entry<String, Entity>> scan(String start,
+      String end, int max, SortDirection direction, boolean keysOnly) {
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    Preconditions.checkArgument(max > -1);
+    if (max == 0) {
+      return Lists.newArrayList();
+    }
+    PreparedQuery preparedQuery =
+        prepare(start, end, direction, keysOnly);
     List<Entry<String, Entity>> result =
         Lists.newArrayList();
     for (Entity entity : preparedQuery
@@ -238,4 +595,66 @@ public class EntityBasedPersistence implements
   return result;
   }
 
+  /**
+   * Pages through the range using query cursors, so every
+   * page continues where the previous one stopped instead of
+   * re-running the query from the start.
+   */
+  @Override
+  public CloseableIterator<Entry<String, Entity>> iterate(
+      String start, String end) {
+    return new CursorIterator(prepare(start, end,
+        SortDirection.ASCENDING, false), pageSize);
+  }
+
+  /**
+   * Iterates over a prepared query one page at a time.
+   */
+  private class CursorIterator extends
+      AbstractIterator<Entry<String, Entity>> implements
+      CloseableIterator<Entry<String, Entity>> {
+
+    private final PreparedQuery query;
+
+    private final int pageSize;
+
+    private Cursor cursor;
+
+    private Iterator<Entity> page;
+
+    private boolean exhausted;
+
+    CursorIterator(PreparedQuery query, int pageSize) {
+      this.query = query;
+      this.pageSize = pageSize;
+    }
+
+    @Override
+    protected Entry<String, Entity> computeNext() {
+      while (page == null || !page.hasNext()) {
+        if (exhausted) {
+          return endOfData();
+        }
+        FetchOptions options =
+            FetchOptions.Builder.withLimit(pageSize);
+        if (cursor != null) {
+          options.cursor(cursor);
+        }
+        QueryResultList<Entity> entities =
+            query.asQueryResultList(options);
+        exhausted = entities.size() < pageSize;
+        cursor = entities.getCursor();
+        page = entities.iterator();
+      }
+      Entity entity = page.next();
+      return Maps.immutableEntry(unescape(entity.getKey()
+          .getName()), entity);
+    }
+
+    @Override
+    public void close() {
+      exhausted = true;
+      page = null;
+    }
+  }
 }
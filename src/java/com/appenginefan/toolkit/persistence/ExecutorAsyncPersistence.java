@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Makes any persistence asynchronous by running its
+ * operations on an executor. The App Engine environment of
+ * the calling thread is handed to the worker thread, so
+ * that API calls made by the persistence work there as
+ * well.
+ * 
+ * Without an executor, operations run right away in the
+ * calling thread and return a future that is already done.
+ * That is the right choice where threads cannot be
+ * started, like in the App Engine runtime itself.
+ */
+public class ExecutorAsyncPersistence<T> implements
+    AsyncPersistence<T> {
+
+  private final Persistence<T> persistence;
+
+  private final ExecutorService executorOrNull;
+
+  /**
+   * Constructor.
+   * 
+   * @param persistence
+   *          the persistence to run the operations on
+   * @param executorOrNull
+   *          the executor to run the operations on, or null
+   *          to run them in the calling thread
+   */
+  public ExecutorAsyncPersistence(Persistence<T> persistence,
+      ExecutorService executorOrNull) {
+    Preconditions.checkNotNull(persistence);
+    this.persistence = persistence;
+    this.executorOrNull = executorOrNull;
+  }
+
+  /**
+   * Creates an executor with a fixed number of daemon
+   * threads and a bounded queue. Once the queue is full, new
+   * operations run in the calling thread, which slows down
+   * callers instead of piling up work without limit.
+   * 
+   * @param threads
+   *          the number of worker threads
+   * @param queueSize
+   *          how many operations may wait for a thread
+   */
+  public static ExecutorService newBoundedExecutor(
+      int threads, int queueSize) {
+    Preconditions.checkArgument(threads > 0,
+        "threads must be positive");
+    Preconditions.checkArgument(queueSize > 0,
+        "queueSize must be positive");
+    final AtomicInteger counter = new AtomicInteger();
+    return new ThreadPoolExecutor(threads, threads, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+            queueSize), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread =
+                new Thread(runnable, "AsyncPersistence-"
+                    + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+  }
+
+  @Override
+  public Future<T> getAsync(final String key) {
+    Preconditions.checkNotNull(key);
+    return submit(new Callable<T>() {
+      @Override
+      public T call() {
+        return persistence.get(key);
+      }
+    });
+  }
+
+  @Override
+  public Future<Map<String, T>> getAllAsync(
+      Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    final List<String> copy = Lists.newArrayList(keys);
+    return submit(new Callable<Map<String, T>>() {
+      @Override
+      public Map<String, T> call() {
+        return persistence.getAll(copy);
+      }
+    });
+  }
+
+  @Override
+  public Future<T> mutateAsync(final String key,
+      final Function<? super T, ? extends T> mutator) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(mutator);
+    return submit(new Callable<T>() {
+      @Override
+      public T call() {
+        return persistence.mutate(key, mutator);
+      }
+    });
+  }
+
+  @Override
+  public Future<List<Entry<String, T>>> scanAsync(
+      final String start, final String end, final int max) {
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    return submit(new Callable<List<Entry<String, T>>>() {
+      @Override
+      public List<Entry<String, T>> call() {
+        return persistence.scan(start, end, max);
+      }
+    });
+  }
+
+  private <V> Future<V> submit(final Callable<V> task) {
+    if (executorOrNull == null) {
+      FutureTask<V> result = new FutureTask<V>(task);
+      result.run();
+      return result;
+    }
+    final ApiProxy.Environment environment =
+        ApiProxy.getCurrentEnvironment();
+    return executorOrNull.submit(new Callable<V>() {
+      @Override
+      public V call() throws Exception {
+        ApiProxy.Environment previous =
+            ApiProxy.getCurrentEnvironment();
+        if (environment != null) {
+          ApiProxy.setEnvironmentForCurrentThread(environment);
+        }
+        try {
+          return task.call();
+        } finally {
+          if (previous != null) {
+            ApiProxy.setEnvironmentForCurrentThread(previous);
+          } else {
+            ApiProxy.clearEnvironmentForCurrentThread();
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns a future that converts the result of another
+   * future the first time it is retrieved.
+   */
+  static <A, B> Future<B> transform(final Future<A> future,
+      final Function<? super A, ? extends B> function) {
+    return new Future<B>() {
+      private boolean converted;
+
+      private B result;
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        return future.cancel(mayInterruptIfRunning);
+      }
+
+      @Override
+      public boolean isCancelled() {
+        return future.isCancelled();
+      }
+
+      @Override
+      public boolean isDone() {
+        return future.isDone();
+      }
+
+      @Override
+      public B get() throws InterruptedException,
+          ExecutionException {
+        return apply(future.get());
+      }
+
+      @Override
+      public B get(long timeout, TimeUnit unit)
+          throws InterruptedException, ExecutionException,
+          TimeoutException {
+        return apply(future.get(timeout, unit));
+      }
+
+      private synchronized B apply(A value)
+          throws ExecutionException {
+        if (!converted) {
+          try {
+            result = function.apply(value);
+          } catch (RuntimeException e) {
+            throw new ExecutionException(e);
+          }
+          converted = true;
+        }
+        return result;
+      }
+    };
+  }
+}
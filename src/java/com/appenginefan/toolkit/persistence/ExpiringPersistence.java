@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A byte array persistence whose entries expire a while
+ * after they were last written. Every value is stored with
+ * its expiry time and a random nonce in front of it;
+ * expired entries are treated as absent by get(), getAll(),
+ * scans and iterations, and mutators see null for them.
+ * Since every write starts the clock again, entries that
+ * are written on every use (like sessions) expire once they
+ * have been idle for the time to live.
+ * 
+ * Expired entries are only removed from the backend by
+ * sweep(), which can be called regularly (for example from
+ * a cron job) or run on a background thread with
+ * startSweeper(). To find expired entries without reading
+ * values, every write also records
+ * <i>expiryTime/nonce/key</i> in a separate index store.
+ * Every write picks its own nonce, so a mutation only
+ * deletes its own index entry and that of the value it
+ * replaced, never one of another write of the same key in
+ * the same millisecond. Blind writes leave the index entry
+ * of the replaced value to the sweeper. Until they are
+ * swept, expired keys are still returned by keyScan() and
+ * keyScanReverse().
+ * 
+ * Wrap other persistences (like StringPersistence) around
+ * this class to store other types.
+ */
+public class ExpiringPersistence extends
+    ForwardingPersistence<byte[]> {
+
+  private static final Logger LOG =
+      Logger.getLogger(ExpiringPersistence.class.getName());
+
+  /**
+   * The expiry time and the nonce, in front of every value.
+   */
+  private static final int HEADER = 16;
+
+  private static final Random NONCES = new Random();
+
+  private final Persistence<byte[]> backend;
+
+  private final Persistence<byte[]> expiryIndex;
+
+  private final long ttlMillis;
+
+  private ScheduledExecutorService sweeperOrNull;
+
+  private final AtomicLong swept = new AtomicLong();
+
+  /**
+   * Constructor.
+   * 
+   * @param backend
+   *          the persistence that stores the values
+   * @param expiryIndex
+   *          where to record when entries expire. Must not be
+   *          shared with other data.
+   * @param ttlMillis
+   *          how long after the last write an entry expires
+   */
+  public ExpiringPersistence(Persistence<byte[]> backend,
+      Persistence<byte[]> expiryIndex, long ttlMillis) {
+    Preconditions.checkNotNull(backend);
+    Preconditions.checkNotNull(expiryIndex);
+    Preconditions.checkArgument(ttlMillis > 0,
+        "ttlMillis must be positive");
+    this.backend = backend;
+    this.expiryIndex = expiryIndex;
+    this.ttlMillis = ttlMillis;
+  }
+
+  @Override
+  protected Persistence<byte[]> delegate() {
+    return backend;
+  }
+
+  /**
+   * The current time. Tests override this.
+   */
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Returns how many expired entries sweep() has removed.
+   */
+  public long getSweptCount() {
+    return swept.get();
+  }
+
+  static String indexKey(long expiry, long nonce, String key) {
+    return String.format("%016d/%016x/%s", expiry, nonce, key);
+  }
+
+  private static long expiryOf(byte[] stored) {
+    if (stored.length < HEADER) {
+      throw new StoreException(
+          "value was not written by ExpiringPersistence");
+    }
+    return ByteBuffer.wrap(stored).getLong();
+  }
+
+  /**
+   * Returns the index key that was written together with a
+   * stored value.
+   */
+  private static String indexKeyOf(String key, byte[] stored) {
+    return indexKey(expiryOf(stored), ByteBuffer.wrap(stored)
+        .getLong(8), key);
+  }
+
+  /**
+   * Strips the header off a stored value, or returns null if
+   * the value is missing or expired.
+   */
+  private byte[] unwrap(byte[] storedOrNull, long now) {
+    if (storedOrNull == null || expiryOf(storedOrNull) <= now) {
+      return null;
+    }
+    return Arrays.copyOfRange(storedOrNull, HEADER,
+        storedOrNull.length);
+  }
+
+  private static byte[] wrap(byte[] value, long expiry,
+      long nonce) {
+    return ByteBuffer.allocate(HEADER + value.length).putLong(
+        expiry).putLong(nonce).put(value).array();
+  }
+
+  @Override
+  public byte[] get(String key) {
+    return unwrap(backend.get(key), now());
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    long now = now();
+    Map<String, byte[]> result = Maps.newLinkedHashMap();
+    for (Entry<String, byte[]> entry : backend.getAll(keys)
+        .entrySet()) {
+      byte[] value = unwrap(entry.getValue(), now);
+      if (value != null) {
+        result.put(entry.getKey(), value);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends byte[]> entries) {
+    Preconditions.checkNotNull(entries);
+    long expiry = now() + ttlMillis;
+    long nonce = NONCES.nextLong();
+    Map<String, byte[]> wrapped = Maps.newLinkedHashMap();
+    Map<String, byte[]> index = Maps.newHashMap();
+    for (Entry<String, ? extends byte[]> entry : entries
+        .entrySet()) {
+      Preconditions.checkNotNull(entry.getValue());
+      wrapped.put(entry.getKey(), wrap(entry.getValue(),
+          expiry, nonce));
+      index.put(indexKey(expiry, nonce, entry.getKey()),
+          new byte[0]);
+    }
+    if (wrapped.isEmpty()) {
+      return;
+    }
+    expiryIndex.putAll(index);
+    backend.putAll(wrapped);
+  }
+
+  /**
+   * Writes the new value with a fresh time to live. The
+   * mutator sees null for expired entries.
+   */
+  @Override
+  public byte[] mutate(final String key,
+      final Function<? super byte[], ? extends byte[]> mutator) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(mutator);
+    final long now = now();
+    final long expiry = now + ttlMillis;
+    final long nonce = NONCES.nextLong();
+    final String[] previousIndexKey = new String[1];
+    String newIndexKey = indexKey(expiry, nonce, key);
+    // recorded first, so that the sweeper finds the entry even
+    // if the process dies right after writing it
+    expiryIndex.putAll(Collections.singletonMap(newIndexKey,
+        new byte[0]));
+    byte[] stored =
+        backend.mutate(key, new Function<byte[], byte[]>() {
+          @Override
+          public byte[] apply(byte[] current) {
+            previousIndexKey[0] =
+                (current == null) ? null : indexKeyOf(key,
+                    current);
+            byte[] mutated =
+                mutator.apply(unwrap(current, now));
+            return (mutated == null) ? null : wrap(mutated,
+                expiry, nonce);
+          }
+        });
+    // both keys are unique to a single write: the one of the
+    // value that was replaced, and our own
+    List<String> obsolete = Lists.newArrayList();
+    if (previousIndexKey[0] != null) {
+      obsolete.add(previousIndexKey[0]);
+    }
+    if (stored == null) {
+      obsolete.add(newIndexKey);
+    }
+    if (!obsolete.isEmpty()) {
+      expiryIndex.deleteAll(obsolete);
+    }
+    return unwrap(stored, now);
+  }
+
+  private List<Entry<String, byte[]>> unwrapAll(
+      List<Entry<String, byte[]>> entries) {
+    long now = now();
+    List<Entry<String, byte[]>> result = Lists.newArrayList();
+    for (Entry<String, byte[]> entry : entries) {
+      byte[] value = unwrap(entry.getValue(), now);
+      if (value != null) {
+        result.add(Maps.immutableEntry(entry.getKey(), value));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Expired entries are left out, so fewer than max entries
+   * may be returned even if the range holds more.
+   */
+  @Override
+  public List<Entry<String, byte[]>> scan(String start,
+      String end, int max) {
+    return unwrapAll(backend.scan(start, end, max));
+  }
+
+  @Override
+  public List<Entry<String, byte[]>> scanReverse(
+      String start, String end, int max) {
+    return unwrapAll(backend.scanReverse(start, end, max));
+  }
+
+  @Override
+  public CloseableIterator<Entry<String, byte[]>> iterate(
+      String start, String end) {
+    final CloseableIterator<Entry<String, byte[]>> entries =
+        backend.iterate(start, end);
+    final long now = now();
+    class Unwrapping extends
+        AbstractIterator<Entry<String, byte[]>> implements
+        CloseableIterator<Entry<String, byte[]>> {
+      @Override
+      protected Entry<String, byte[]> computeNext() {
+        while (entries.hasNext()) {
+          Entry<String, byte[]> entry = entries.next();
+          byte[] value = unwrap(entry.getValue(), now);
+          if (value != null) {
+            return Maps.immutableEntry(entry.getKey(), value);
+          }
+        }
+        return endOfData();
+      }
+
+      @Override
+      public void close() {
+        entries.close();
+      }
+    }
+    return new Unwrapping();
+  }
+
+  /**
+   * Removes up to maxKeys expired entries from the backend.
+   * Expired keys are found with a keys-only scan of the
+   * expiry index. Each expired entry is removed in its own
+   * transaction, and only if it is still expired, so that an
+   * entry that was written again in the meantime survives.
+   * 
+   * @return how many index entries were processed; if this
+   *         is less than maxKeys, nothing is left to sweep
+   *         for now
+   */
+  public int sweep(int maxKeys) {
+    Preconditions.checkArgument(maxKeys > 0);
+    final long now = now();
+    List<String> due =
+        expiryIndex.keyScan("", String.format("%016d/",
+            now + 1), maxKeys);
+    List<String> keys = Lists.newArrayList();
+    for (String indexKey : due) {
+      int nonceEnd =
+          indexKey.indexOf('/', indexKey.indexOf('/') + 1);
+      keys.add(indexKey.substring(nonceEnd + 1));
+    }
+    int removed = 0;
+    for (Entry<String, byte[]> entry : backend.getAll(keys)
+        .entrySet()) {
+      if (expiryOf(entry.getValue()) > now) {
+        // written again since; a newer index entry exists
+        continue;
+      }
+      final boolean[] expired = new boolean[1];
+      backend.mutate(entry.getKey(),
+          new Function<byte[], byte[]>() {
+            @Override
+            public byte[] apply(byte[] current) {
+              expired[0] =
+                  current != null && expiryOf(current) <= now;
+              return expired[0] ? null : current;
+            }
+          });
+      if (expired[0]) {
+        removed++;
+      }
+    }
+    if (!due.isEmpty()) {
+      expiryIndex.deleteAll(due);
+    }
+    swept.addAndGet(removed);
+    return due.size();
+  }
+
+  /**
+   * Starts a daemon thread that calls sweep() regularly.
+   * Not available on App Engine, which does not allow
+   * starting threads; call sweep() from a cron job there.
+   * 
+   * @param intervalMillis
+   *          the pause between two sweeps
+   * @param batchSize
+   *          the most keys a single sweep looks at, which
+   *          limits the load a sweep puts on the backend
+   */
+  public synchronized void startSweeper(long intervalMillis,
+      final int batchSize) {
+    Preconditions.checkState(sweeperOrNull == null,
+        "sweeper already started");
+    Preconditions.checkArgument(batchSize > 0);
+    sweeperOrNull =
+        Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread =
+                    new Thread(runnable,
+                        "ExpiringPersistence sweeper");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+    sweeperOrNull.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep(batchSize);
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, "Sweep failed", e);
+        }
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the sweeper thread, if one was started.
+   */
+  public synchronized void stopSweeper() {
+    if (sweeperOrNull != null) {
+      sweeperOrNull.shutdown();
+      sweeperOrNull = null;
+    }
+  }
+}
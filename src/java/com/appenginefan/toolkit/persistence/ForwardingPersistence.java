@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ForwardingObject;
+
+/**
+ * A persistence that forwards all calls to another
+ * persistence. Subclasses override the methods they want to
+ * decorate, in the same way as the forwarding collections
+ * of the google collections library.
+ */
+public abstract class ForwardingPersistence<T> extends
+    ForwardingObject implements Persistence<T> {
+
+  @Override
+  protected abstract Persistence<T> delegate();
+
+  @Override
+  public T get(String key) {
+    return delegate().get(key);
+  }
+
+  @Override
+  public Map<String, T> getAll(Collection<String> keys) {
+    return delegate().getAll(keys);
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    delegate().putAll(entries);
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    delegate().deleteAll(keys);
+  }
+
+  @Override
+  public T mutate(String key,
+      Function<? super T, ? extends T> mutator) {
+    return delegate().mutate(key, mutator);
+  }
+
+  @Override
+  public List<Entry<String, T>> scan(String start,
+      String end, int max) {
+    return delegate().scan(start, end, max);
+  }
+
+  @Override
+  public List<Entry<String, T>> scanReverse(String start,
+      String end, int max) {
+    return delegate().scanReverse(start, end, max);
+  }
+
+  @Override
+  public List<String> keyScan(String start, String end,
+      int max) {
+    return delegate().keyScan(start, end, max);
+  }
+
+  @Override
+  public List<String> keyScanReverse(String start,
+      String end, int max) {
+    return delegate().keyScanReverse(start, end, max);
+  }
+
+  @Override
+  public CloseableIterator<Entry<String, T>> iterate(
+      String start, String end) {
+    return delegate().iterate(start, end);
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Maintains secondary indexes over the values of another
+ * persistence, so that entries can be found by an attribute
+ * without scanning everything. Each index has a name and a
+ * function that extracts the indexed value (or null, for
+ * entries that should not be indexed).
+ * 
+ * Index entries are keys of the form
+ * <i>name/value/primaryKey</i> in a separate store (slashes
+ * and percent signs in names and values are escaped); their
+ * values are empty. They are only ever added when data is
+ * written, after the primary data and outside of its
+ * transaction, so that concurrent writers of one key cannot
+ * remove each other's entries. Old entries stay behind:
+ * lookupByIndex() checks every match against the current
+ * value and deletes the stale ones it finds, and
+ * rebuildIndexes() removes all of them. An entry whose index
+ * update was lost (for example because the process died in
+ * between) is not found until rebuildIndexes() is called.
+ */
+public class IndexedPersistence<T> extends
+    ForwardingPersistence<T> {
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final Persistence<T> primary;
+
+  private final Persistence<byte[]> index;
+
+  private final Map<String, Function<? super T, String>>
+      extractors;
+
+  /**
+   * Constructor.
+   * 
+   * @param primary
+   *          the persistence that holds the data
+   * @param index
+   *          where to keep the index entries. Must not be
+   *          shared with other data.
+   * @param extractors
+   *          maps the name of each index to the function that
+   *          computes the indexed value
+   */
+  public IndexedPersistence(Persistence<T> primary,
+      Persistence<byte[]> index,
+      Map<String, ? extends Function<? super T, String>>
+          extractors) {
+    Preconditions.checkNotNull(primary);
+    Preconditions.checkNotNull(index);
+    Preconditions.checkArgument(!extractors.isEmpty(),
+        "at least one index is needed");
+    this.primary = primary;
+    this.index = index;
+    this.extractors = ImmutableMap.copyOf(extractors);
+  }
+
+  @Override
+  protected Persistence<T> delegate() {
+    return primary;
+  }
+
+  private static String escape(String part) {
+    return part.replace("%", "%25").replace("/", "%2F");
+  }
+
+  /**
+   * Returns the prefix shared by all index keys for a value.
+   */
+  static String prefix(String name, String value) {
+    return escape(name) + '/' + escape(value) + '/';
+  }
+
+  /**
+   * Computes the index keys for a value.
+   */
+  private Set<String> indexKeys(String key, T valueOrNull) {
+    Set<String> result = Sets.newHashSet();
+    if (valueOrNull == null) {
+      return result;
+    }
+    for (Entry<String, Function<? super T, String>> extractor :
+        extractors.entrySet()) {
+      String indexed = extractor.getValue().apply(valueOrNull);
+      if (indexed != null) {
+        result.add(prefix(extractor.getKey(), indexed) + key);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds the index entries for new values. Entries for the
+   * values they replace are left to lookupByIndex() and
+   * rebuildIndexes().
+   */
+  private void addToIndex(Map<String, ? extends T> entries) {
+    Map<String, byte[]> toAdd = Maps.newHashMap();
+    for (Entry<String, ? extends T> entry : entries.entrySet()) {
+      for (String indexKey : indexKeys(entry.getKey(), entry
+          .getValue())) {
+        toAdd.put(indexKey, EMPTY);
+      }
+    }
+    if (!toAdd.isEmpty()) {
+      index.putAll(toAdd);
+    }
+  }
+
+  /**
+   * Finds entries by the value of an index.
+   * 
+   * @param name
+   *          the name of the index
+   * @param value
+   *          the value to look for
+   * @param max
+   *          the maximum number of index entries to read.
+   *          Fewer entries are returned if some of them turn
+   *          out to be stale.
+   * @return the matching entries, ordered by key
+   */
+  public List<Entry<String, T>> lookupByIndex(String name,
+      String value, int max) {
+    Preconditions.checkNotNull(value);
+    final Function<? super T, String> extractor =
+        extractors.get(name);
+    Preconditions.checkArgument(extractor != null,
+        "unknown index: " + name);
+    String prefix = prefix(name, value);
+    List<String> keys = Lists.newArrayList();
+    for (String indexKey : index.keyScan(prefix, prefix
+        + Character.MAX_VALUE, max)) {
+      keys.add(indexKey.substring(prefix.length()));
+    }
+    List<Entry<String, T>> result = Lists.newArrayList();
+    if (keys.isEmpty()) {
+      return result;
+    }
+    Map<String, T> current = primary.getAll(keys);
+    List<String> stale = Lists.newArrayList();
+    for (String key : keys) {
+      T found = current.get(key);
+      if (found != null
+          && value.equals(extractor.apply(found))) {
+        result.add(Maps.immutableEntry(key, found));
+      } else {
+        stale.add(key);
+      }
+    }
+    if (!stale.isEmpty()) {
+      deleteStale(prefix, stale);
+    }
+    return result;
+  }
+
+  /**
+   * Deletes index entries whose primary data no longer
+   * matches. A writer may have stored a matching value
+   * between our read and the delete; it adds its index
+   * entry after writing the primary data, so reading the
+   * primary data once more finds every entry that has to be
+   * put back.
+   */
+  private void deleteStale(String prefix, List<String> keys) {
+    List<String> indexKeys = Lists.newArrayList();
+    for (String key : keys) {
+      indexKeys.add(prefix + key);
+    }
+    index.deleteAll(indexKeys);
+    Map<String, T> current = primary.getAll(keys);
+    Map<String, T> restore = Maps.newHashMap();
+    for (Entry<String, T> entry : current.entrySet()) {
+      if (indexKeys(entry.getKey(), entry.getValue()).contains(
+          prefix + entry.getKey())) {
+        restore.put(entry.getKey(), entry.getValue());
+      }
+    }
+    addToIndex(restore);
+  }
+
+  /**
+   * Recreates all index entries from the primary data and
+   * removes stale ones. Reads both stores completely.
+   */
+  public void rebuildIndexes() {
+    Set<String> expected = Sets.newHashSet();
+    CloseableIterator<Entry<String, T>> entries =
+        primary.iterate("", String.valueOf(Character.MAX_VALUE));
+    try {
+      while (entries.hasNext()) {
+        Entry<String, T> entry = entries.next();
+        expected.addAll(indexKeys(entry.getKey(), entry
+            .getValue()));
+      }
+    } finally {
+      entries.close();
+    }
+    List<String> stale = Lists.newArrayList();
+    CloseableIterator<Entry<String, byte[]>> existing =
+        index.iterate("", String.valueOf(Character.MAX_VALUE));
+    try {
+      while (existing.hasNext()) {
+        String indexKey = existing.next().getKey();
+        if (!expected.remove(indexKey)) {
+          stale.add(indexKey);
+        }
+      }
+    } finally {
+      existing.close();
+    }
+    if (!stale.isEmpty()) {
+      index.deleteAll(stale);
+    }
+    Map<String, byte[]> missing = Maps.newHashMap();
+    for (String indexKey : expected) {
+      missing.put(indexKey, EMPTY);
+    }
+    if (!missing.isEmpty()) {
+      index.putAll(missing);
+    }
+  }
+
+  @Override
+  public T mutate(final String key,
+      final Function<? super T, ? extends T> mutator) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(mutator);
+    T result = primary.mutate(key, mutator);
+    if (result != null) {
+      addToIndex(ImmutableMap.of(key, result));
+    }
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    Preconditions.checkNotNull(entries);
+    primary.putAll(entries);
+    addToIndex(entries);
+  }
+
+  // deleteAll() is inherited: deleted entries leave only
+  // stale index entries behind
+}
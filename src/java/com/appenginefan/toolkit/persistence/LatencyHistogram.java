@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Counts recorded values (usually latencies in nanoseconds)
+ * in buckets whose width grows with the value, in the
+ * spirit of HdrHistogram: every power of two is split into
+ * eight buckets, so percentiles are accurate to within 12.5%
+ * no matter how large the values get, and the memory used
+ * is fixed. Recording is lock-free and safe from several
+ * threads.
+ */
+public class LatencyHistogram {
+
+  /**
+   * log2 of the number of buckets per power of two.
+   */
+  private static final int SUB_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private static final int BUCKETS =
+      SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts =
+      new AtomicLongArray(BUCKETS);
+
+  private final AtomicLong count = new AtomicLong();
+
+  private final AtomicLong sum = new AtomicLong();
+
+  private final AtomicLong max = new AtomicLong();
+
+  static int bucketFor(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub =
+        (int) (value >>> (exponent - SUB_BITS))
+            & (SUB_BUCKETS - 1);
+    return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS
+        + sub;
+  }
+
+  /**
+   * Returns the largest value that falls into a bucket.
+   */
+  static long highestValueIn(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    long top = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+
+  /**
+   * Records a value.
+   * 
+   * @param value
+   *          a non-negative value; negative values are
+   *          counted as zero
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketFor(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long current;
+    while (value > (current = max.get())
+        && !max.compareAndSet(current, value)) {
+      // try again
+    }
+  }
+
+  /**
+   * Returns how many values were recorded.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the largest recorded value, or 0 if nothing was
+   * recorded.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns the average of all recorded values, or 0 if
+   * nothing was recorded.
+   */
+  public double getMean() {
+    long n = count.get();
+    return (n == 0) ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * Returns a value that at least the given percentage of
+   * all recorded values do not exceed (up to the precision
+   * of the buckets), or 0 if nothing was recorded.
+   * 
+   * @param percentile
+   *          a number between 0 and 100
+   */
+  public long getPercentile(double percentile) {
+    Preconditions.checkArgument(percentile >= 0
+        && percentile <= 100,
+        "percentile must be between 0 and 100");
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank =
+        Math.max(1, (long) Math.ceil(total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highestValueIn(i), max.get());
+      }
+    }
+    return max.get();
+  }
+}
@@ -0,0 +1,693 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * A durable store that keeps its data in a local directory,
+ * organized as a log-structured merge tree. It is meant for
+ * running the toolkit outside of App Engine; App Engine
+ * itself allows neither local files nor background threads.
+ *
+ * Writes are appended to a write-ahead log and then applied
+ * to a sorted in-memory table (the memtable). Once the
+ * memtable has grown large enough, it is written out as an
+ * immutable, sorted segment file and the log starts over.
+ * Reads look at the memtable first and then at the segments
+ * from newest to oldest; deletions are recorded as
+ * tombstones that hide older values. A background thread
+ * merges the segments into one whenever too many of them
+ * have piled up, dropping overwritten values and tombstones
+ * on the way.
+ *
+ * By default, the log is handed to the operating system
+ * after every write, but not forced to disk, so data
+ * survives a crash of the process but not necessarily of
+ * the machine; see setSyncWrites(). Only one instance may
+ * use a directory at a time, and close() should be called
+ * when the store is no longer needed.
+ */
+public class LogStructuredPersistence implements
+    Persistence<byte[]> {
+
+  private static final Logger LOG =
+      Logger.getLogger(LogStructuredPersistence.class
+          .getName());
+
+  /**
+   * Marks a deleted key in the memtable, the log and the
+   * segments. Compared by identity.
+   */
+  static final byte[] TOMBSTONE = new byte[0];
+
+  private static final String LOG_FILE = "wal.log";
+
+  private static final Pattern SEGMENT_NAME =
+      Pattern.compile("segment-(\\d+)-(\\d+)\\.dat");
+
+  private static final int PAGE_SIZE = 100;
+
+  private static final int BLOCK_SIZE = 4096;
+
+  private static final int DEFAULT_MEMTABLE_BYTES = 4 << 20;
+
+  private static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private final File directory;
+
+  private final int memtableLimit;
+
+  private final int compactionThreshold;
+
+  private final ReadWriteLock lock =
+      new ReentrantReadWriteLock();
+
+  private final Object compactionLock = new Object();
+
+  private final AtomicBoolean compactionScheduled =
+      new AtomicBoolean();
+
+  private final ExecutorService compactor =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread =
+              new Thread(runnable, "LogStructuredPersistence compaction");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final TreeMap<String, byte[]> memtable =
+      new TreeMap<String, byte[]>();
+
+  private final List<SegmentFile> segments = Lists.newArrayList();
+
+  private final WriteAheadLog log;
+
+  private long memtableBytes;
+
+  private long lastSequence;
+
+  private volatile boolean syncWrites;
+
+  private boolean closed;
+
+  /**
+   * Opens (or creates) a store with default settings.
+   *
+   * @param directory
+   *          where to keep the files
+   */
+  public LogStructuredPersistence(File directory) {
+    this(directory, DEFAULT_MEMTABLE_BYTES,
+        DEFAULT_COMPACTION_THRESHOLD);
+  }
+
+  /**
+   * Opens (or creates) a store.
+   *
+   * @param directory
+   *          where to keep the files
+   * @param memtableLimit
+   *          roughly how many bytes of data to keep in memory
+   *          before writing a segment
+   * @param compactionThreshold
+   *          how many segments may exist before they are
+   *          merged into one
+   */
+  public LogStructuredPersistence(File directory,
+      int memtableLimit, int compactionThreshold) {
+    Preconditions.checkNotNull(directory);
+    Preconditions.checkArgument(memtableLimit > 0,
+        "memtableLimit must be positive");
+    Preconditions.checkArgument(compactionThreshold > 1,
+        "compactionThreshold must be at least 2");
+    this.directory = directory;
+    this.memtableLimit = memtableLimit;
+    this.compactionThreshold = compactionThreshold;
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("could not create " + directory);
+      }
+      openSegments();
+      File logFile = new File(directory, LOG_FILE);
+      WriteAheadLog.replay(logFile, memtable);
+      for (Entry<String, byte[]> entry : memtable.entrySet()) {
+        memtableBytes += sizeOf(entry.getKey(), entry.getValue());
+      }
+      log = new WriteAheadLog(logFile);
+    } catch (IOException e) {
+      compactor.shutdown();
+      throw new StoreException("could not open " + directory, e);
+    }
+  }
+
+  /**
+   * Loads the segments in the directory. Segments that are
+   * covered by the result of a compaction (because the
+   * process stopped before it could delete them) are removed,
+   * as are unfinished temporary files.
+   */
+  private void openSegments() throws IOException {
+    List<long[]> ranges = Lists.newArrayList();
+    File[] files = directory.listFiles();
+    for (File file : files) {
+      Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+      if (matcher.matches()) {
+        ranges.add(new long[] {
+            Long.parseLong(matcher.group(1)),
+            Long.parseLong(matcher.group(2)) });
+      } else if (file.getName().endsWith(".tmp")) {
+        file.delete();
+      }
+    }
+    List<long[]> live = Lists.newArrayList();
+    for (long[] range : ranges) {
+      boolean covered = false;
+      for (long[] other : ranges) {
+        if (other != range && other[0] <= range[0]
+            && range[1] <= other[1]
+            && (other[0] != range[0] || other[1] != range[1])) {
+          covered = true;
+        }
+      }
+      if (covered) {
+        segmentFile(range[0], range[1]).delete();
+      } else {
+        live.add(range);
+      }
+    }
+    Collections.sort(live, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+      }
+    });
+    for (long[] range : live) {
+      segments.add(SegmentFile.open(segmentFile(range[0],
+          range[1]), range[0], range[1]));
+      lastSequence = Math.max(lastSequence, range[1]);
+    }
+  }
+
+  private File segmentFile(long first, long last) {
+    return new File(directory, String.format(
+        "segment-%016d-%016d.dat", first, last));
+  }
+
+  private static long sizeOf(String key, byte[] value) {
+    return key.length() * 2 + value.length + ENTRY_OVERHEAD;
+  }
+
+  /**
+   * If set to true, every write is forced to disk before it
+   * returns. This protects against losing data when the
+   * machine crashes, but makes writes much slower.
+   */
+  public void setSyncWrites(boolean syncWrites) {
+    this.syncWrites = syncWrites;
+  }
+
+  /**
+   * Returns the number of segment files currently in use.
+   */
+  int getSegmentCount() {
+    lock.readLock().lock();
+    try {
+      return segments.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void checkOpen() {
+    Preconditions.checkState(!closed, "store is closed");
+  }
+
+  /**
+   * Looks a key up in the memtable and the segments. Must be
+   * called while holding a lock.
+   *
+   * @return a copy of the value, or null if the key does not
+   *         exist
+   */
+  private byte[] lookup(String key) {
+    byte[] value = memtable.get(key);
+    if (value == null) {
+      for (int i = segments.size() - 1; i >= 0; i--) {
+        value = segments.get(i).get(key);
+        if (value != null) {
+          return (value == TOMBSTONE) ? null : value;
+        }
+      }
+      return null;
+    }
+    return (value == TOMBSTONE) ? null : value.clone();
+  }
+
+  /**
+   * Logs a batch of changes and applies it to the memtable.
+   * Must be called while holding the write lock.
+   */
+  private void write(Map<String, byte[]> batch) {
+    try {
+      log.append(batch, syncWrites);
+      for (Entry<String, byte[]> entry : batch.entrySet()) {
+        byte[] old = memtable.put(entry.getKey(), entry.getValue());
+        if (old != null) {
+          memtableBytes -= sizeOf(entry.getKey(), old);
+        }
+        memtableBytes += sizeOf(entry.getKey(), entry.getValue());
+      }
+      if (memtableBytes >= memtableLimit) {
+        flushMemtable();
+      }
+    } catch (IOException e) {
+      throw new StoreException("could not write to "
+          + directory, e);
+    }
+  }
+
+  /**
+   * Writes the memtable to a new segment and empties the
+   * log. Must be called while holding the write lock.
+   */
+  private void flushMemtable() throws IOException {
+    if (memtable.isEmpty()) {
+      return;
+    }
+    long sequence = lastSequence + 1;
+    File file = segmentFile(sequence, sequence);
+    SegmentFile.write(file, memtable.entrySet().iterator(),
+        BLOCK_SIZE);
+    segments.add(SegmentFile.open(file, sequence, sequence));
+    lastSequence = sequence;
+    memtable.clear();
+    memtableBytes = 0;
+    log.reset();
+    if (segments.size() >= compactionThreshold
+        && compactionScheduled.compareAndSet(false, true)) {
+      compactor.execute(new Runnable() {
+        @Override
+        public void run() {
+          compactionScheduled.set(false);
+          try {
+            compact();
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Compaction of " + directory
+                + " failed", e);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Writes the memtable to a segment file right away.
+   */
+  public void flush() {
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      flushMemtable();
+    } catch (IOException e) {
+      throw new StoreException("could not flush " + directory,
+          e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Merges all current segments into one. This usually
+   * happens in the background, but can also be triggered
+   * explicitly. Reads and writes can go on while the merged
+   * segment is being written.
+   */
+  public void compact() {
+    synchronized (compactionLock) {
+      List<SegmentFile> toMerge;
+      lock.readLock().lock();
+      try {
+        checkOpen();
+        toMerge = Lists.newArrayList(segments);
+      } finally {
+        lock.readLock().unlock();
+      }
+      if (toMerge.size() < 2) {
+        return;
+      }
+      long first = toMerge.get(0).getFirst();
+      long last = toMerge.get(toMerge.size() - 1).getLast();
+      File file = segmentFile(first, last);
+      try {
+        List<Iterator<Entry<String, byte[]>>> sources =
+            Lists.newArrayList();
+        for (int i = toMerge.size() - 1; i >= 0; i--) {
+          sources.add(toMerge.get(i).iterator("", null, false));
+        }
+        SegmentFile.write(file, withoutTombstones(new MergingIterator(
+            sources, false)), BLOCK_SIZE);
+        SegmentFile merged = SegmentFile.open(file, first, last);
+        lock.writeLock().lock();
+        try {
+          segments.subList(0, toMerge.size()).clear();
+          segments.add(0, merged);
+          for (SegmentFile old : toMerge) {
+            old.close();
+            old.getFile().delete();
+          }
+        } finally {
+          lock.writeLock().unlock();
+        }
+      } catch (IOException e) {
+        throw new StoreException("could not compact "
+            + directory, e);
+      }
+    }
+  }
+
+  /**
+   * Stops the background compaction and closes all files.
+   * The data in the memtable is safe in the log and will be
+   * restored when the directory is opened again.
+   */
+  public void close() {
+    compactor.shutdown();
+    try {
+      compactor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (compactionLock) {
+      lock.writeLock().lock();
+      try {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        log.close();
+        for (SegmentFile segment : segments) {
+          segment.close();
+        }
+        segments.clear();
+      } catch (IOException e) {
+        throw new StoreException("could not close "
+            + directory, e);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  @Override
+  public byte[] get(String key) {
+    Preconditions.checkNotNull(key);
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      return lookup(key);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, byte[]> result = Maps.newLinkedHashMap();
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      for (String key : keys) {
+        byte[] value = lookup(Preconditions.checkNotNull(key));
+        if (value != null) {
+          result.put(key, value);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends byte[]> entries) {
+    Preconditions.checkNotNull(entries);
+    Map<String, byte[]> batch = Maps.newLinkedHashMap();
+    for (Entry<String, ? extends byte[]> entry : entries
+        .entrySet()) {
+      Preconditions.checkNotNull(entry.getKey());
+      byte[] value = Preconditions.checkNotNull(entry.getValue());
+      batch.put(entry.getKey(), value.clone());
+    }
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      write(batch);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, byte[]> batch = Maps.newLinkedHashMap();
+    for (String key : keys) {
+      batch.put(Preconditions.checkNotNull(key), TOMBSTONE);
+    }
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      write(batch);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public byte[] mutate(String key,
+      Function<? super byte[], ? extends byte[]> mutator) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(mutator);
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      byte[] current = lookup(key);
+      byte[] toSave = mutator.apply(current);
+      if (toSave != null) {
+        write(Collections.singletonMap(key, toSave.clone()));
+      } else if (current != null) {
+        write(Collections.singletonMap(key, TOMBSTONE));
+      }
+      return toSave;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Merges the memtable and all segments in a key range,
+   * newest first. Must be called while holding the read
+   * lock.
+   */
+  private Iterator<Entry<String, byte[]>> merged(String start,
+      String end, boolean reverse) {
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    List<Iterator<Entry<String, byte[]>>> sources =
+        Lists.newArrayList();
+    NavigableMap<String, byte[]> range =
+        memtable.subMap(start, true, end, false);
+    sources.add((reverse ? range.descendingMap() : range)
+        .entrySet().iterator());
+    for (int i = segments.size() - 1; i >= 0; i--) {
+      sources.add(segments.get(i).iterator(start, end, reverse));
+    }
+    return withoutTombstones(new MergingIterator(sources,
+        reverse));
+  }
+
+  private List<Entry<String, byte[]>> scan(String start,
+      String end, int max, boolean reverse) {
+    Preconditions.checkArgument(max > -1);
+    List<Entry<String, byte[]>> result = Lists.newArrayList();
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      Iterator<Entry<String, byte[]>> entries =
+          merged(start, end, reverse);
+      while (result.size() < max && entries.hasNext()) {
+        Entry<String, byte[]> entry = entries.next();
+        result.add(Maps.immutableEntry(entry.getKey(), entry
+            .getValue().clone()));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  @Override
+  public List<Entry<String, byte[]>> scan(String start,
+      String end, int max) {
+    return scan(start, end, max, false);
+  }
+
+  @Override
+  public List<Entry<String, byte[]>> scanReverse(
+      String start, String end, int max) {
+    return scan(start, end, max, true);
+  }
+
+  @Override
+  public List<String> keyScan(String start, String end,
+      int max) {
+    List<String> result = Lists.newArrayList();
+    for (Entry<String, byte[]> entry : scan(start, end, max,
+        false)) {
+      result.add(entry.getKey());
+    }
+    return result;
+  }
+
+  @Override
+  public List<String> keyScanReverse(String start,
+      String end, int max) {
+    List<String> result = Lists.newArrayList();
+    for (Entry<String, byte[]> entry : scan(start, end, max,
+        true)) {
+      result.add(entry.getKey());
+    }
+    return result;
+  }
+
+  @Override
+  public CloseableIterator<Entry<String, byte[]>> iterate(
+      String start, String end) {
+    return new PagingIterator<byte[]>(this, start, end,
+        PAGE_SIZE);
+  }
+
+  /**
+   * Skips the tombstones of a merged stream.
+   */
+  private static Iterator<Entry<String, byte[]>> withoutTombstones(
+      final Iterator<Entry<String, byte[]>> entries) {
+    return new AbstractIterator<Entry<String, byte[]>>() {
+      @Override
+      protected Entry<String, byte[]> computeNext() {
+        while (entries.hasNext()) {
+          Entry<String, byte[]> entry = entries.next();
+          if (entry.getValue() != TOMBSTONE) {
+            return entry;
+          }
+        }
+        return endOfData();
+      }
+    };
+  }
+
+  /**
+   * Merges several sorted streams into one. If a key shows
+   * up in more than one stream, the entry of the first
+   * stream (that is, the newest one) wins.
+   */
+  private static class MergingIterator extends
+      AbstractIterator<Entry<String, byte[]>> {
+
+    private final List<PeekingIterator<Entry<String, byte[]>>> sources =
+        Lists.newArrayList();
+
+    private final boolean reverse;
+
+    MergingIterator(List<Iterator<Entry<String, byte[]>>> sources,
+        boolean reverse) {
+      for (Iterator<Entry<String, byte[]>> source : sources) {
+        this.sources.add(Iterators.peekingIterator(source));
+      }
+      this.reverse = reverse;
+    }
+
+    @Override
+    protected Entry<String, byte[]> computeNext() {
+      PeekingIterator<Entry<String, byte[]>> best = null;
+      for (PeekingIterator<Entry<String, byte[]>> source : sources) {
+        if (!source.hasNext()) {
+          continue;
+        }
+        if (best == null) {
+          best = source;
+        } else {
+          int comparison =
+              source.peek().getKey().compareTo(
+                  best.peek().getKey());
+          if (reverse ? comparison > 0 : comparison < 0) {
+            best = source;
+          }
+        }
+      }
+      if (best == null) {
+        return endOfData();
+      }
+      Entry<String, byte[]> result = best.next();
+      for (PeekingIterator<Entry<String, byte[]>> source : sources) {
+        while (source.hasNext()
+            && source.peek().getKey().equals(result.getKey())) {
+          source.next();
+        }
+      }
+      return result;
+    }
+  }
+}
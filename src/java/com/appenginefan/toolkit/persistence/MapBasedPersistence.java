@@ -19,7 +19,9 @@
 package com.appenginefan.toolkit.persistence;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.Map.Entry;
 
@@ -38,10 +40,16 @@ import com.google.common.collect.Maps;
  * virtual machine.
  */
 public class MapBasedPersistence<T> implements
-    Persistence<T> {
+    VersionedPersistence<T> {
+
+  private static final int PAGE_SIZE = 100;
 
   private SortedMap<String, T> store = Maps.newTreeMap();
 
+  private final Map<String, Long> versions = Maps.newHashMap();
+
+  private long lastVersion;
+
   /**
    * Factory method
    */
@@ -55,18 +63,95 @@ public class MapBasedPersistence<T> implements
     return store.get(key);
   }
 
+  @Override
+  public synchronized Map<String, T> getAll(
+      Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, T> result = Maps.newLinkedHashMap();
+    for (String key : keys) {
+      T value = get(key);
+      if (value != null) {
+        result.put(key, value);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void putAll(
+      Map<String, ? extends T> entries) {
+    Preconditions.checkNotNull(entries);
+    for (Entry<String, ? extends T> entry : entries
+        .entrySet()) {
+      Preconditions.checkNotNull(entry.getKey());
+      Preconditions.checkNotNull(entry.getValue());
+    }
+    store.putAll(entries);
+    for (String key : entries.keySet()) {
+      versions.put(key, ++lastVersion);
+    }
+  }
+
+  @Override
+  public synchronized void deleteAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    for (String key : keys) {
+      store.remove(Preconditions.checkNotNull(key));
+      versions.remove(key);
+    }
+  }
+
   @Override
   public synchronized T mutate(String key,
       Function<? super T, ? extends T> mutator) {
     Preconditions.checkNotNull(key);
     Preconditions.checkNotNull(mutator);
     T toSave = mutator.apply(get(key));
-    if (toSave != null) {
-      store.put(key, toSave);
+    set(key, toSave);
+    return toSave;
+  }
+
+  private void set(String key, T valueOrNull) {
+    if (valueOrNull != null) {
+      store.put(key, valueOrNull);
+      versions.put(key, ++lastVersion);
     } else {
       store.remove(key);
+      versions.remove(key);
     }
-    return toSave;
+  }
+
+  @Override
+  public synchronized Versioned<T> getVersioned(String key) {
+    Preconditions.checkNotNull(key);
+    T value = store.get(key);
+    if (value == null) {
+      return null;
+    }
+    return new Versioned<T>(value, versions.get(key));
+  }
+
+  @Override
+  public synchronized boolean putIfAbsent(String key, T value) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(value);
+    if (store.containsKey(key)) {
+      return false;
+    }
+    set(key, value);
+    return true;
+  }
+
+  @Override
+  public synchronized boolean compareAndSet(String key,
+      long expectedVersion, T newValueOrNull) {
+    Preconditions.checkNotNull(key);
+    Long version = versions.get(key);
+    if (version == null || version != expectedVersion) {
+      return false;
+    }
+    set(key, newValueOrNull);
+    return true;
   }
 
   @Override
@@ -120,4 +205,10 @@ public class MapBasedPersistence<T> implements
     }
     return result;
   }
+
+  @Override
+  public CloseableIterator<Entry<String, T>> iterate(
+      String start, String end) {
+    return new PagingIterator<T>(this, start, end, PAGE_SIZE);
+  }
 }
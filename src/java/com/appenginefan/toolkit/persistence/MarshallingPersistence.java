@@ -20,7 +20,9 @@ package com.appenginefan.toolkit.persistence;
 
 /**
  * Wraps around a byte array based persistence for the
- * backend but uses a different type.
+ * backend but uses a different type. Subclasses do the
+ * conversion by implementing makeArray() and makeType(); see
+ * CodecPersistence for one that uses a Codec.
  */
 public abstract class MarshallingPersistence<T> extends
     PersistenceAdapter<byte[], T> {
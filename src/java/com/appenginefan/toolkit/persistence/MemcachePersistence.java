@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A shared cache for entities that sits between a
+ * DatastorePersistence and the datastore. Since memcache is
+ * shared between all instances of an application, a value
+ * that one instance loaded from the store is available to
+ * all other instances as well.
+ *
+ * To keep instances from overwriting newer data with older
+ * data, writes never put entities into memcache. Values
+ * loaded from the store are only added if memcache holds
+ * nothing for the key yet; mutations, deletions and blind
+ * writes remove the cached entity and keep it from being
+ * re-added for a short while, so that concurrent readers
+ * cannot put an outdated copy back. The next read after a
+ * write therefore goes to the store.
+ *
+ * Scans always go to the datastore. Use
+ * VersionedMemcachePersistence to cache a backend that is a
+ * VersionedPersistence.
+ */
+public class MemcachePersistence extends
+    ForwardingPersistence<Entity> {
+
+  private static final String PREFIX = "aef/l2/";
+
+  private static final int DEFAULT_EXPIRATION_SECONDS = 3600;
+
+  private static final long NO_RE_ADD_MILLIS = 2000;
+
+  private final Persistence<Entity> backend;
+
+  private final MemcacheService memcache;
+
+  private final String prefix;
+
+  private final int expirationSeconds;
+
+  /**
+   * Constructor.
+   *
+   * @param backend
+   *          the persistence to cache, usually an
+   *          EntityBasedPersistence
+   * @param memcacheOrNull
+   *          a MemcacheService to use. If left null, the
+   *          constructor fetches its own service
+   * @param partition
+   *          the partition of the backend. Used to keep the
+   *          cache entries of different partitions apart.
+   * @param expirationSeconds
+   *          how long an entity may stay in memcache
+   */
+  public MemcachePersistence(Persistence<Entity> backend,
+      MemcacheService memcacheOrNull, String partition,
+      int expirationSeconds) {
+    Preconditions.checkNotNull(backend);
+    Preconditions.checkNotNull(partition);
+    Preconditions.checkArgument(expirationSeconds > 0,
+        "expirationSeconds must be positive");
+    if (memcacheOrNull == null) {
+      memcacheOrNull =
+          MemcacheServiceFactory.getMemcacheService();
+    }
+    this.backend = backend;
+    this.memcache = memcacheOrNull;
+    this.prefix = PREFIX + partition + '/';
+    this.expirationSeconds = expirationSeconds;
+  }
+
+  /**
+   * Constructor that keeps entities in memcache for up to
+   * an hour.
+   *
+   * @param backend
+   *          the persistence to cache, usually an
+   *          EntityBasedPersistence
+   * @param memcacheOrNull
+   *          a MemcacheService to use. If left null, the
+   *          constructor fetches its own service
+   * @param partition
+   *          the partition of the backend. Used to keep the
+   *          cache entries of different partitions apart.
+   */
+  public MemcachePersistence(Persistence<Entity> backend,
+      MemcacheService memcacheOrNull, String partition) {
+    this(backend, memcacheOrNull, partition,
+        DEFAULT_EXPIRATION_SECONDS);
+  }
+
+  @Override
+  protected Persistence<Entity> delegate() {
+    return backend;
+  }
+
+  private String memcacheKey(String key) {
+    return prefix + key;
+  }
+
+  private Expiration expiration() {
+    return Expiration.byDeltaSeconds(expirationSeconds);
+  }
+
+  @Override
+  public Entity get(String key) {
+    Preconditions.checkNotNull(key);
+    Object cached = memcache.get(memcacheKey(key));
+    if (cached instanceof Entity) {
+      return (Entity) cached;
+    }
+    Entity entity = backend.get(key);
+    if (entity != null) {
+      memcache.put(memcacheKey(key), entity, expiration(),
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+    return entity;
+  }
+
+  @Override
+  public Map<String, Entity> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    List<Object> memcacheKeys = Lists.newArrayList();
+    for (String key : keys) {
+      memcacheKeys.add(memcacheKey(key));
+    }
+    Map<Object, Object> cached =
+        memcache.getAll(memcacheKeys);
+    Map<String, Entity> found = Maps.newHashMap();
+    List<String> missing = Lists.newArrayList();
+    for (String key : keys) {
+      Object entity = cached.get(memcacheKey(key));
+      if (entity instanceof Entity) {
+        found.put(key, (Entity) entity);
+      } else {
+        missing.add(key);
+      }
+    }
+    if (!missing.isEmpty()) {
+      Map<String, Entity> loaded = backend.getAll(missing);
+      Map<Object, Object> toCache = Maps.newHashMap();
+      for (Entry<String, Entity> entry : loaded.entrySet()) {
+        toCache.put(memcacheKey(entry.getKey()), entry
+            .getValue());
+      }
+      if (!toCache.isEmpty()) {
+        memcache.putAll(toCache, expiration(),
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      }
+      found.putAll(loaded);
+    }
+    Map<String, Entity> result = Maps.newLinkedHashMap();
+    for (String key : keys) {
+      Entity entity = found.get(key);
+      if (entity != null) {
+        result.put(key, entity);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Entity mutate(String key,
+      Function<? super Entity, ? extends Entity> mutator) {
+    try {
+      return backend.mutate(key, mutator);
+    } finally {
+      memcache.delete(memcacheKey(key), NO_RE_ADD_MILLIS);
+    }
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends Entity> entries) {
+    try {
+      backend.putAll(entries);
+    } finally {
+      invalidate(entries.keySet());
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    try {
+      backend.deleteAll(keys);
+    } finally {
+      invalidate(keys);
+    }
+  }
+
+  /**
+   * Removes entries from memcache and keeps them from being
+   * re-added by concurrent readers for a short while.
+   */
+  void invalidate(Collection<String> keys) {
+    List<Object> memcacheKeys = Lists.newArrayList();
+    for (String key : keys) {
+      memcacheKeys.add(memcacheKey(key));
+    }
+    memcache.deleteAll(memcacheKeys, NO_RE_ADD_MILLIS);
+  }
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Measures the calls made to another persistence. For
+ * every operation, it counts calls and errors, records a
+ * latency histogram, and sums up how many entries were
+ * returned and, if a sizer is given, how large the values
+ * were.
+ * 
+ * The numbers can be pulled with getSnapshot(), or
+ * published through JMX with registerMBean(). Each instance
+ * is meant to wrap one partition, whose name is used to
+ * tell the MBeans apart.
+ * 
+ * For iterate(), the latency is the time it takes to open
+ * the iterator. Entries and their sizes are counted as the
+ * iterator hands them out, and failures while iterating
+ * count as errors.
+ * 
+ * Note that measuring the size of values that a
+ * PersistenceAdapter returns from scans forces them to be
+ * converted right away. To measure sizes cheaply, wrap this
+ * class around the byte array store instead.
+ */
+public class MeteredPersistence<T> extends
+    ForwardingPersistence<T> {
+
+  /**
+   * Measures byte arrays by their length.
+   */
+  public static final Function<byte[], Integer> BYTE_ARRAY_LENGTH =
+      new Function<byte[], Integer>() {
+        @Override
+        public Integer apply(byte[] value) {
+          return value.length;
+        }
+      };
+
+  private static final String[] OPERATIONS =
+      { "get", "getAll", "putAll", "deleteAll", "mutate",
+          "scan", "scanReverse", "keyScan", "keyScanReverse",
+          "iterate" };
+
+  private final Persistence<T> backend;
+
+  private final String partition;
+
+  private final Function<? super T, Integer> sizerOrNull;
+
+  private final Map<String, Stats> stats = Maps.newLinkedHashMap();
+
+  private final Stats get;
+
+  private final Stats getAll;
+
+  private final Stats putAll;
+
+  private final Stats deleteAll;
+
+  private final Stats mutate;
+
+  private final Stats scan;
+
+  private final Stats scanReverse;
+
+  private final Stats keyScan;
+
+  private final Stats keyScanReverse;
+
+  private final Stats iterate;
+
+  /**
+   * What is measured for a single operation.
+   */
+  private static class Stats {
+
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    final AtomicLong errors = new AtomicLong();
+
+    final AtomicLong results = new AtomicLong();
+
+    final AtomicLong bytes = new AtomicLong();
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param backend
+   *          the persistence to measure
+   * @param partition
+   *          a name for the data in the backend, used in
+   *          the name of the MBean
+   * @param sizerOrNull
+   *          computes the size of a value (for example
+   *          BYTE_ARRAY_LENGTH), or null to not measure
+   *          sizes
+   */
+  public MeteredPersistence(Persistence<T> backend,
+      String partition, Function<? super T, Integer> sizerOrNull) {
+    Preconditions.checkNotNull(backend);
+    Preconditions.checkNotNull(partition);
+    this.backend = backend;
+    this.partition = partition;
+    this.sizerOrNull = sizerOrNull;
+    for (String operation : OPERATIONS) {
+      stats.put(operation, new Stats());
+    }
+    get = stats.get("get");
+    getAll = stats.get("getAll");
+    putAll = stats.get("putAll");
+    deleteAll = stats.get("deleteAll");
+    mutate = stats.get("mutate");
+    scan = stats.get("scan");
+    scanReverse = stats.get("scanReverse");
+    keyScan = stats.get("keyScan");
+    keyScanReverse = stats.get("keyScanReverse");
+    iterate = stats.get("iterate");
+  }
+
+  @Override
+  protected Persistence<T> delegate() {
+    return backend;
+  }
+
+  public String getPartition() {
+    return partition;
+  }
+
+  /**
+   * Returns the latency histogram of an operation, in
+   * nanoseconds.
+   * 
+   * @param operation
+   *          the name of a method of Persistence, like
+   *          &quot;get&quot; or &quot;keyScan&quot;
+   */
+  public LatencyHistogram getLatency(String operation) {
+    Stats result = stats.get(operation);
+    Preconditions.checkArgument(result != null,
+        "unknown operation: " + operation);
+    return result.latency;
+  }
+
+  /**
+   * Returns the current numbers. For each operation, the map
+   * contains the keys operation.count, .errors, .results,
+   * .bytes, .meanNanos, .p50Nanos, .p90Nanos, .p99Nanos and
+   * .maxNanos, where operation is the name of the method,
+   * like &quot;get&quot;.
+   */
+  public Map<String, Long> getSnapshot() {
+    Map<String, Long> result = Maps.newLinkedHashMap();
+    for (Entry<String, Stats> entry : stats.entrySet()) {
+      String prefix = entry.getKey() + ".";
+      Stats s = entry.getValue();
+      result.put(prefix + "count", s.latency.getCount());
+      result.put(prefix + "errors", s.errors.get());
+      result.put(prefix + "results", s.results.get());
+      result.put(prefix + "bytes", s.bytes.get());
+      result.put(prefix + "meanNanos", (long) s.latency
+          .getMean());
+      result.put(prefix + "p50Nanos", s.latency
+          .getPercentile(50));
+      result.put(prefix + "p90Nanos", s.latency
+          .getPercentile(90));
+      result.put(prefix + "p99Nanos", s.latency
+          .getPercentile(99));
+      result.put(prefix + "maxNanos", s.latency.getMax());
+    }
+    return result;
+  }
+
+  /**
+   * Returns the name under which registerMBean() publishes
+   * this object.
+   */
+  public ObjectName getObjectName() {
+    try {
+      return new ObjectName(getClass().getPackage().getName()
+          + ":type=MeteredPersistence,partition="
+          + ObjectName.quote(partition));
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Publishes the snapshot through the platform MBean
+   * server, with one read-only attribute per number.
+   * 
+   * @exception IllegalStateException
+   *              if an MBean for the same partition is
+   *              already registered
+   */
+  public void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(new MBean(), getObjectName());
+    } catch (JMException e) {
+      throw new IllegalStateException(
+          "Could not register MBean for " + partition, e);
+    }
+  }
+
+  /**
+   * Removes the MBean that registerMBean() published.
+   */
+  public void unregisterMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .unregisterMBean(getObjectName());
+    } catch (JMException e) {
+      throw new IllegalStateException(
+          "Could not unregister MBean for " + partition, e);
+    }
+  }
+
+  private long sizeOf(T valueOrNull) {
+    if (sizerOrNull == null || valueOrNull == null) {
+      return 0;
+    }
+    return sizerOrNull.apply(valueOrNull);
+  }
+
+  private static void finish(Stats stats, long started,
+      boolean success) {
+    stats.latency.record(System.nanoTime() - started);
+    if (!success) {
+      stats.errors.incrementAndGet();
+    }
+  }
+
+  @Override
+  public T get(String key) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      T result = backend.get(key);
+      if (result != null) {
+        get.results.incrementAndGet();
+        get.bytes.addAndGet(sizeOf(result));
+      }
+      success = true;
+      return result;
+    } finally {
+      finish(get, started, success);
+    }
+  }
+
+  @Override
+  public Map<String, T> getAll(Collection<String> keys) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      Map<String, T> result = backend.getAll(keys);
+      getAll.results.addAndGet(result.size());
+      for (T value : result.values()) {
+        getAll.bytes.addAndGet(sizeOf(value));
+      }
+      success = true;
+      return result;
+    } finally {
+      finish(getAll, started, success);
+    }
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      backend.putAll(entries);
+      putAll.results.addAndGet(entries.size());
+      for (T value : entries.values()) {
+        putAll.bytes.addAndGet(sizeOf(value));
+      }
+      success = true;
+    } finally {
+      finish(putAll, started, success);
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      backend.deleteAll(keys);
+      deleteAll.results.addAndGet(keys.size());
+      success = true;
+    } finally {
+      finish(deleteAll, started, success);
+    }
+  }
+
+  @Override
+  public T mutate(String key,
+      Function<? super T, ? extends T> mutator) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      T result = backend.mutate(key, mutator);
+      if (result != null) {
+        mutate.results.incrementAndGet();
+        mutate.bytes.addAndGet(sizeOf(result));
+      }
+      success = true;
+      return result;
+    } finally {
+      finish(mutate, started, success);
+    }
+  }
+
+  private List<Entry<String, T>> measure(Stats stats,
+      List<Entry<String, T>> result) {
+    stats.results.addAndGet(result.size());
+    if (sizerOrNull != null) {
+      for (Entry<String, T> entry : result) {
+        stats.bytes.addAndGet(sizeOf(entry.getValue()));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public List<Entry<String, T>> scan(String start,
+      String end, int max) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      List<Entry<String, T>> result =
+          measure(scan, backend.scan(start, end, max));
+      success = true;
+      return result;
+    } finally {
+      finish(scan, started, success);
+    }
+  }
+
+  @Override
+  public List<Entry<String, T>> scanReverse(String start,
+      String end, int max) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      List<Entry<String, T>> result =
+          measure(scanReverse, backend.scanReverse(start,
+              end, max));
+      success = true;
+      return result;
+    } finally {
+      finish(scanReverse, started, success);
+    }
+  }
+
+  @Override
+  public List<String> keyScan(String start, String end,
+      int max) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      List<String> result = backend.keyScan(start, end, max);
+      keyScan.results.addAndGet(result.size());
+      success = true;
+      return result;
+    } finally {
+      finish(keyScan, started, success);
+    }
+  }
+
+  @Override
+  public List<String> keyScanReverse(String start,
+      String end, int max) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      List<String> result =
+          backend.keyScanReverse(start, end, max);
+      keyScanReverse.results.addAndGet(result.size());
+      success = true;
+      return result;
+    } finally {
+      finish(keyScanReverse, started, success);
+    }
+  }
+
+  @Override
+  public CloseableIterator<Entry<String, T>> iterate(
+      String start, String end) {
+    long started = System.nanoTime();
+    boolean success = false;
+    try {
+      final CloseableIterator<Entry<String, T>> entries =
+          backend.iterate(start, end);
+      success = true;
+      return new CloseableIterator<Entry<String, T>>() {
+        @Override
+        public boolean hasNext() {
+          boolean done = false;
+          try {
+            boolean result = entries.hasNext();
+            done = true;
+            return result;
+          } finally {
+            if (!done) {
+              iterate.errors.incrementAndGet();
+            }
+          }
+        }
+
+        @Override
+        public Entry<String, T> next() {
+          boolean done = false;
+          try {
+            Entry<String, T> result = entries.next();
+            iterate.results.incrementAndGet();
+            if (sizerOrNull != null) {
+              iterate.bytes.addAndGet(sizeOf(result.getValue()));
+            }
+            done = true;
+            return result;
+          } finally {
+            if (!done) {
+              iterate.errors.incrementAndGet();
+            }
+          }
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+          entries.close();
+        }
+      };
+    } finally {
+      finish(iterate, started, success);
+    }
+  }
+
+  /**
+   * Exposes the snapshot as read-only attributes.
+   */
+  private class MBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute)
+        throws AttributeNotFoundException {
+      Long value = getSnapshot().get(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      Map<String, Long> snapshot = getSnapshot();
+      AttributeList result = new AttributeList();
+      for (String attribute : attributes) {
+        Long value = snapshot.get(attribute);
+        if (value != null) {
+          result.add(new Attribute(attribute, value));
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes =
+          Lists.newArrayList();
+      for (String name : getSnapshot().keySet()) {
+        attributes.add(new MBeanAttributeInfo(name,
+            Long.class.getName(), name, true, false, false));
+      }
+      return new MBeanInfo(MeteredPersistence.class
+          .getName(), "Persistence metrics for " + partition,
+          attributes.toArray(new MBeanAttributeInfo[attributes
+              .size()]), null, new MBeanOperationInfo[0],
+          null);
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params,
+        String[] signature) throws ReflectionException {
+      throw new ReflectionException(new NoSuchMethodException(
+          actionName));
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+        throws AttributeNotFoundException {
+      throw new AttributeNotFoundException(attribute.getName()
+          + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+  }
+}
@@ -18,11 +18,6 @@
 
 package com.appenginefan.toolkit.persistence;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -30,45 +25,10 @@ import java.io.Serializable;
  * a store. Use with caution!
  */
 public class ObjectPersistence<T extends Serializable>
-    extends MarshallingPersistence<T> {
+    extends CodecPersistence<T> {
 
   public ObjectPersistence(Persistence<byte[]> backend) {
-    super(backend);
-  }
-
-  @Override
-  protected byte[] makeArray(T nonNullValue) {
-    try {
-      ByteArrayOutputStream buffer =
-          new ByteArrayOutputStream();
-      ObjectOutputStream out =
-          new ObjectOutputStream(buffer);
-      out.writeObject(nonNullValue);
-      out.close();
-      return buffer.toByteArray();
-    } catch (IOException e) {
-      throw new StoreException(
-          "Object serialization failed", e);
-    }
-  }
-
-  @SuppressWarnings("unchecked")
-  @Override
-  protected T makeType(byte[] nonNullValue) {
-    try {
-      return (T) new ObjectInputStream(
-          new ByteArrayInputStream(nonNullValue))
-          .readObject();
-    } catch (ClassCastException e) {
-      throw new StoreException(
-          "Object deserialization failed", e);
-    } catch (IOException e) {
-      throw new StoreException(
-          "Object deserialization failed", e);
-    } catch (ClassNotFoundException e) {
-      throw new StoreException(
-          "Object deserialization failed", e);
-    }
+    super(backend, Codecs.<T> serializable());
   }
 
 }
@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An in-memory store that keeps its values outside of the
+ * Java heap, in direct byte buffers. Only the keys (and a
+ * small record per key) live on the heap, so large amounts
+ * of data do not slow down the garbage collector.
+ *
+ * Memory is requested from the system in slabs, which are
+ * cut into chunks of a fixed size. Chunk sizes are powers
+ * of two, and each value is put into the smallest chunk
+ * that fits it. Chunks that are no longer used go back to a
+ * free list for their size and are handed out again for the
+ * next value of that size; slabs are never returned to the
+ * system until clear() is called. If storing a value would
+ * require more memory than the configured budget, the
+ * operation fails with a StoreException and the store stays
+ * unchanged.
+ *
+ * Values are copied in and out of the store, so callers are
+ * free to modify the arrays they pass in or get back.
+ * Nothing is persisted beyond the lifetime of the virtual
+ * machine.
+ */
+public class OffHeapPersistence implements
+    Persistence<byte[]> {
+
+  private static final int PAGE_SIZE = 100;
+
+  private static final int MIN_CHUNK_SHIFT = 4;
+
+  private static final int MAX_CHUNK_SHIFT = 30;
+
+  private static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+  private final ReadWriteLock lock =
+      new ReentrantReadWriteLock();
+
+  private final TreeMap<String, Slot> index =
+      new TreeMap<String, Slot>();
+
+  private final List<ArrayDeque<Slot>> freeLists =
+      new ArrayList<ArrayDeque<Slot>>();
+
+  private final long budget;
+
+  private final int slabSize;
+
+  private long allocatedBytes;
+
+  private long usedBytes;
+
+  /**
+   * Constructor.
+   *
+   * @param budget
+   *          the maximum number of bytes that this store may
+   *          allocate outside of the heap
+   * @param slabSize
+   *          how many bytes to allocate at a time. Values
+   *          larger than this get a slab of their own.
+   */
+  public OffHeapPersistence(long budget, int slabSize) {
+    Preconditions.checkArgument(budget > 0,
+        "budget must be positive");
+    Preconditions.checkArgument(slabSize >= 1 << MIN_CHUNK_SHIFT,
+        "slabSize too small: " + slabSize);
+    this.budget = budget;
+    this.slabSize = slabSize;
+    for (int i = 0; i <= MAX_CHUNK_SHIFT; i++) {
+      freeLists.add(new ArrayDeque<Slot>());
+    }
+  }
+
+  /**
+   * Constructor that allocates memory in slabs of one
+   * megabyte.
+   *
+   * @param budget
+   *          the maximum number of bytes that this store may
+   *          allocate outside of the heap
+   */
+  public OffHeapPersistence(long budget) {
+    this(budget, DEFAULT_SLAB_SIZE);
+  }
+
+  /**
+   * Returns how many bytes were allocated outside the heap.
+   */
+  public long getAllocatedBytes() {
+    lock.readLock().lock();
+    try {
+      return allocatedBytes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns how many of the allocated bytes are taken by
+   * chunks that currently hold a value.
+   */
+  public long getUsedBytes() {
+    lock.readLock().lock();
+    try {
+      return usedBytes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Removes all entries and drops all slabs, so that their
+   * memory can be reclaimed.
+   */
+  public void clear() {
+    lock.writeLock().lock();
+    try {
+      index.clear();
+      for (ArrayDeque<Slot> freeList : freeLists) {
+        freeList.clear();
+      }
+      allocatedBytes = 0;
+      usedBytes = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Finds the smallest size class that can hold a value.
+   */
+  private static int sizeClassOf(int length) {
+    int shift = MIN_CHUNK_SHIFT;
+    while ((1 << shift) < length) {
+      shift++;
+    }
+    return shift;
+  }
+
+  /**
+   * Takes a chunk from the free list, allocating a new slab
+   * if necessary, and copies the value into it. Must be
+   * called while holding the write lock.
+   */
+  private Slot allocate(byte[] value) {
+    Preconditions.checkArgument(
+        value.length <= 1 << MAX_CHUNK_SHIFT,
+        "value too large: " + value.length);
+    int sizeClass = sizeClassOf(value.length);
+    ArrayDeque<Slot> freeList = freeLists.get(sizeClass);
+    if (freeList.isEmpty()) {
+      int chunkSize = 1 << sizeClass;
+      int slabBytes = Math.max(slabSize, chunkSize);
+      if (allocatedBytes + slabBytes > budget) {
+        throw new StoreException("off-heap budget of " + budget
+            + " bytes exhausted");
+      }
+      ByteBuffer slab = ByteBuffer.allocateDirect(slabBytes);
+      allocatedBytes += slabBytes;
+      for (int i = 0; i < slabBytes / chunkSize; i++) {
+        freeList.add(new Slot(slab, i * chunkSize, sizeClass, 0));
+      }
+    }
+    Slot free = freeList.poll();
+    usedBytes += 1 << sizeClass;
+    return write(free, value);
+  }
+
+  /**
+   * Copies a value into a chunk that is large enough. Must be
+   * called while holding the write lock.
+   */
+  private static Slot write(Slot chunk, byte[] value) {
+    ByteBuffer target = chunk.slab.duplicate();
+    target.position(chunk.offset);
+    target.put(value);
+    return new Slot(chunk.slab, chunk.offset,
+        chunk.sizeClass, value.length);
+  }
+
+  /**
+   * Returns a chunk to its free list. Must be called while
+   * holding the write lock.
+   */
+  private void free(Slot slot) {
+    freeLists.get(slot.sizeClass).add(slot);
+    usedBytes -= 1 << slot.sizeClass;
+  }
+
+  /**
+   * Copies a value out of the store.
+   */
+  private static byte[] read(Slot slot) {
+    byte[] result = new byte[slot.length];
+    ByteBuffer source = slot.slab.duplicate();
+    source.position(slot.offset);
+    source.get(result);
+    return result;
+  }
+
+  @Override
+  public byte[] get(String key) {
+    Preconditions.checkNotNull(key);
+    lock.readLock().lock();
+    try {
+      Slot slot = index.get(key);
+      return (slot == null) ? null : read(slot);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Map<String, byte[]> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, byte[]> result = Maps.newLinkedHashMap();
+    lock.readLock().lock();
+    try {
+      for (String key : keys) {
+        Slot slot = index.get(Preconditions.checkNotNull(key));
+        if (slot != null) {
+          result.put(key, read(slot));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return result;
+  }
+
+  /**
+   * Either all entries are stored, or (if the budget does not
+   * allow it) none of them.
+   */
+  @Override
+  public void putAll(Map<String, ? extends byte[]> entries) {
+    Preconditions.checkNotNull(entries);
+    for (Entry<String, ? extends byte[]> entry : entries
+        .entrySet()) {
+      Preconditions.checkNotNull(entry.getKey());
+      Preconditions.checkNotNull(entry.getValue());
+    }
+    lock.writeLock().lock();
+    try {
+      Map<String, Slot> written = Maps.newLinkedHashMap();
+      try {
+        for (Entry<String, ? extends byte[]> entry : entries
+            .entrySet()) {
+          written.put(entry.getKey(), allocate(entry
+              .getValue()));
+        }
+      } catch (RuntimeException e) {
+        for (Slot slot : written.values()) {
+          free(slot);
+        }
+        throw e;
+      }
+      for (Entry<String, Slot> entry : written.entrySet()) {
+        Slot old = index.put(entry.getKey(), entry.getValue());
+        if (old != null) {
+          free(old);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    lock.writeLock().lock();
+    try {
+      for (String key : keys) {
+        Slot old = index.remove(Preconditions.checkNotNull(key));
+        if (old != null) {
+          free(old);
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * If the new value fits into the chunk of the old one, it
+   * is overwritten in place.
+   */
+  @Override
+  public byte[] mutate(String key,
+      Function<? super byte[], ? extends byte[]> mutator) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(mutator);
+    lock.writeLock().lock();
+    try {
+      Slot old = index.get(key);
+      byte[] toSave =
+          mutator.apply((old == null) ? null : read(old));
+      if (toSave == null) {
+        if (old != null) {
+          index.remove(key);
+          free(old);
+        }
+        return null;
+      }
+      if (old != null
+          && old.sizeClass == sizeClassOf(toSave.length)) {
+        index.put(key, write(old, toSave));
+      } else {
+        index.put(key, allocate(toSave));
+        if (old != null) {
+          free(old);
+        }
+      }
+      return toSave.clone();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Copies up to max entries from a view of the index. Must
+   * be called while holding the read lock.
+   */
+  private static List<Entry<String, byte[]>> copy(
+      NavigableMap<String, Slot> view, int max) {
+    Preconditions.checkArgument(max > -1);
+    List<Entry<String, byte[]>> result = Lists.newArrayList();
+    for (Entry<String, Slot> entry : view.entrySet()) {
+      if (result.size() >= max) {
+        break;
+      }
+      result.add(Maps.immutableEntry(entry.getKey(),
+          read(entry.getValue())));
+    }
+    return result;
+  }
+
+  /**
+   * Copies up to max keys from a view of the index. Must be
+   * called while holding the read lock.
+   */
+  private static List<String> copyKeys(
+      Collection<String> view, int max) {
+    Preconditions.checkArgument(max > -1);
+    List<String> result = new ArrayList<String>();
+    for (String key : view) {
+      if (result.size() >= max) {
+        break;
+      }
+      result.add(key);
+    }
+    return result;
+  }
+
+  private NavigableMap<String, Slot> range(String start,
+      String end) {
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    return index.subMap(start, true, end, false);
+  }
+
+  @Override
+  public List<Entry<String, byte[]>> scan(String start,
+      String end, int max) {
+    lock.readLock().lock();
+    try {
+      return copy(range(start, end), max);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<Entry<String, byte[]>> scanReverse(
+      String start, String end, int max) {
+    lock.readLock().lock();
+    try {
+      return copy(range(start, end).descendingMap(), max);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<String> keyScan(String start, String end,
+      int max) {
+    lock.readLock().lock();
+    try {
+      return copyKeys(range(start, end).keySet(), max);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<String> keyScanReverse(String start,
+      String end, int max) {
+    lock.readLock().lock();
+    try {
+      return copyKeys(range(start, end).descendingKeySet(),
+          max);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public CloseableIterator<Entry<String, byte[]>> iterate(
+      String start, String end) {
+    return new PagingIterator<byte[]>(this, start, end,
+        PAGE_SIZE);
+  }
+
+  /**
+   * The location of a value in a slab.
+   */
+  private static class Slot {
+
+    final ByteBuffer slab;
+
+    final int offset;
+
+    final int sizeClass;
+
+    final int length;
+
+    Slot(ByteBuffer slab, int offset, int sizeClass,
+        int length) {
+      this.slab = slab;
+      this.offset = offset;
+      this.sizeClass = sizeClass;
+      this.length = length;
+    }
+  }
+}
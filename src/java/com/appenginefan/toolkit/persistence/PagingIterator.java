@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Walks a range of keys by calling scan() one page at a
+ * time. Each page starts right after the last key of the
+ * previous one, so only a single page is ever held in
+ * memory. Useful for stores that have no cheaper way to
+ * resume a scan.
+ */
+public class PagingIterator<T> extends
+    AbstractIterator<Entry<String, T>> implements
+    CloseableIterator<Entry<String, T>> {
+
+  private final Persistence<T> persistence;
+
+  private final String end;
+
+  private final int pageSize;
+
+  private String nextStart;
+
+  private Iterator<Entry<String, T>> page;
+
+  private boolean exhausted;
+
+  /**
+   * Constructor.
+   * 
+   * @param persistence
+   *          the store to iterate over
+   * @param start
+   *          a lower bound of the range of keys to look in
+   *          (inclusive)
+   * @param end
+   *          an upper bound of the range of keys to look in
+   *          (exclusive)
+   * @param pageSize
+   *          how many entries to fetch per call to scan()
+   */
+  public PagingIterator(Persistence<T> persistence,
+      String start, String end, int pageSize) {
+    Preconditions.checkNotNull(persistence);
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    Preconditions.checkArgument(pageSize > 0,
+        "pageSize must be positive");
+    this.persistence = persistence;
+    this.nextStart = start;
+    this.end = end;
+    this.pageSize = pageSize;
+  }
+
+  @Override
+  protected Entry<String, T> computeNext() {
+    while (page == null || !page.hasNext()) {
+      if (exhausted) {
+        return endOfData();
+      }
+      List<Entry<String, T>> entries =
+          persistence.scan(nextStart, end, pageSize);
+      if (entries.isEmpty()) {
+        exhausted = true;
+        return endOfData();
+      }
+      nextStart =
+          entries.get(entries.size() - 1).getKey()
+              + Character.MIN_VALUE;
+      page = entries.iterator();
+    }
+    return page.next();
+  }
+
+  @Override
+  public void close() {
+    exhausted = true;
+    page = null;
+  }
+}
@@ -18,6 +18,7 @@
 
 package com.appenginefan.toolkit.persistence;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -66,6 +67,60 @@ public interface Persistence<T> {
    */
   public T get(String key);
 
+  /**
+   * Gets several entries from the store at once. Stores that
+   * can fetch multiple entries in a single call (like the
+   * datastore) should do so, which makes this method a lot
+   * cheaper than calling get() in a loop.
+   * 
+   * @param keys
+   *          the keys to look up the data from
+   * @return a map from key to data, iterating in the order
+   *         of the given keys. Keys that the store does not
+   *         contain data for are not part of the map.
+   * @exception NullPointerException
+   *              if the collection or any of the keys is
+   *              null
+   * @exception StoreException
+   *              if something went wrong while loading data
+   */
+  public Map<String, T> getAll(Collection<String> keys);
+
+  /**
+   * Stores several entries at once, overwriting whatever
+   * data the store held for those keys before. Unlike
+   * mutate(), this method does not read the old data and
+   * does not run in a transaction, so concurrent changes to
+   * the same keys are simply overwritten. Use it for bulk
+   * loads and other blind writes.
+   * 
+   * @param entries
+   *          a map from key to the data to store. Neither
+   *          keys nor values may be null (use deleteAll to
+   *          remove entries).
+   * @exception NullPointerException
+   *              if the map, or any of its keys or values is
+   *              null
+   * @exception StoreException
+   *              if something went wrong while storing data
+   */
+  public void putAll(Map<String, ? extends T> entries);
+
+  /**
+   * Removes several entries from the store at once. Like
+   * putAll(), this is a blind, non-transactional operation.
+   * Keys that the store does not contain are ignored.
+   * 
+   * @param keys
+   *          the keys to delete
+   * @exception NullPointerException
+   *              if the collection or any of the keys is
+   *              null
+   * @exception StoreException
+   *              if something went wrong while deleting data
+   */
+  public void deleteAll(Collection<String> keys);
+
   /**
    * Finds zero or more entries that are within a given
    * range
@@ -160,5 +215,28 @@ public interface Persistence<T> {
    */
   public List<String> keyScanReverse(
       String start, String end, int max);
+
+  /**
+   * Walks all entries within a given range. Unlike scan(),
+   * the entries are fetched lazily, a page at a time, so
+   * arbitrarily large ranges can be processed without
+   * holding them in memory and without restarting the scan
+   * for every page.
+   * 
+   * @param start
+   *          a lower bound of the range of keys to look in
+   *          (inclusive)
+   * @param end
+   *          an upper bound of the range of keys to look in
+   *          (exclusive)
+   * @return an iterator over the key/value pairs, ordered by
+   *         key. Callers should close it when done.
+   * @exception NullPointerException
+   *              if either of the arguments is null
+   * @exception StoreException
+   *              if something went wrong while loading data
+   */
+  public CloseableIterator<Map.Entry<String, T>> iterate(
+      String start, String end);
   
 }
@@ -18,8 +18,12 @@
 
 package com.appenginefan.toolkit.persistence;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
@@ -29,19 +33,93 @@ import com.google.common.collect.Maps;
 /**
  * Creates a persistence for a particular type by mapping
  * to another type.
+ * 
+ * The asynchronous operations are passed on to the backend
+ * if it is an AsyncPersistence itself, and converted once
+ * their result is retrieved. Other backends are called
+ * synchronously.
+ * 
+ * Adapters for versioned backends extend
+ * VersionedPersistenceAdapter instead, which passes on the
+ * versioned operations as well.
  */
 public abstract class PersistenceAdapter<S, T> implements
-    Persistence<T> {
+    Persistence<T>, AsyncPersistence<T> {
 
   private final Persistence<S> backend;
 
+  private final AsyncPersistence<S> asyncBackend;
+
+  private final AtomicLong deferredCount = new AtomicLong();
+
+  private final AtomicLong decodedCount = new AtomicLong();
+
+  /**
+   * Converts single values of the backend, for the
+   * asynchronous operations.
+   */
+  private final Function<S, T> toType = new Function<S, T>() {
+    @Override
+    public T apply(S valueOrNull) {
+      return (valueOrNull == null) ? null
+          : makeType(valueOrNull);
+    }
+  };
+
   protected abstract T makeType(S valueOrNull);
 
+  /**
+   * Converts a value into the backend's type.
+   * 
+   * @param original
+   *          the data that the backend currently holds for
+   *          the key, or null for blind writes (see putAll)
+   *          where the old data is not known
+   * @param valueOrNull
+   *          the value to convert
+   */
   protected abstract S makeMarshalledType(S original, T valueOrNull);
 
+  @SuppressWarnings("unchecked")
   public PersistenceAdapter(Persistence<S> backend) {
     Preconditions.checkNotNull(backend);
     this.backend = backend;
+    if (backend instanceof AsyncPersistence<?>) {
+      this.asyncBackend = (AsyncPersistence<S>) backend;
+    } else {
+      this.asyncBackend =
+          new ExecutorAsyncPersistence<S>(backend, null);
+    }
+  }
+
+  /**
+   * Returns how many scanned values were handed out without
+   * being converted up front.
+   */
+  public long getDeferredDecodeCount() {
+    return deferredCount.get();
+  }
+
+  /**
+   * Returns how many of the deferred values have not been
+   * converted (yet), in other words how many calls to
+   * makeType() scans have saved so far.
+   */
+  public long getSkippedDecodeCount() {
+    return deferredCount.get() - decodedCount.get();
+  }
+
+  /**
+   * Wraps an entry from the backend into one that converts
+   * its value on first access.
+   */
+  private Entry<String, T> makeLazyEntry(
+      Entry<String, S> entry) {
+    if (entry.getValue() == null) {
+      return Maps.immutableEntry(entry.getKey(), (T) null);
+    }
+    deferredCount.incrementAndGet();
+    return new LazyEntry(entry.getKey(), entry.getValue());
   }
 
   @Override
@@ -54,39 +132,135 @@ public abstract class PersistenceAdapter<S, T> implements
   }
 
   @Override
-  public T mutate(String key,
+  public Map<String, T> getAll(Collection<String> keys) {
+    Map<String, T> result = Maps.newLinkedHashMap();
+    for (Entry<String, S> entry : backend.getAll(keys)
+        .entrySet()) {
+      if (entry.getValue() != null) {
+        result.put(entry.getKey(), makeType(entry
+            .getValue()));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    Map<String, S> marshalled = Maps.newLinkedHashMap();
+    for (Entry<String, ? extends T> entry : entries
+        .entrySet()) {
+      Preconditions.checkNotNull(entry.getValue());
+      marshalled.put(entry.getKey(), makeMarshalledType(
+          null, entry.getValue()));
+    }
+    backend.putAll(marshalled);
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    backend.deleteAll(keys);
+  }
+
+  /**
+   * Turns a mutator for this persistence's type into one for
+   * the backend's type.
+   */
+  private Function<S, S> marshal(
       final Function<? super T, ? extends T> mutator) {
-    S asBytes =
-        backend.mutate(key, new Function<S, S>() {
-          @Override
-          public S apply(S arg0) {
-            T asType =
-                (arg0 == null) ? null : makeType(arg0);
-            T mutated = mutator.apply(asType);
-            if (mutated == null) {
-              return null;
-            }
-            return makeMarshalledType(arg0, mutated);
-          }
-        });
+    Preconditions.checkNotNull(mutator);
+    return new Function<S, S>() {
+      @Override
+      public S apply(S arg0) {
+        T asType = (arg0 == null) ? null : makeType(arg0);
+        T mutated = mutator.apply(asType);
+        if (mutated == null) {
+          return null;
+        }
+        return makeMarshalledType(arg0, mutated);
+      }
+    };
+  }
+
+  @Override
+  public T mutate(String key,
+      Function<? super T, ? extends T> mutator) {
+    S asBytes = backend.mutate(key, marshal(mutator));
     if (asBytes == null) {
       return null;
     }
     return makeType(asBytes);
   }
 
+  @Override
+  public Future<T> getAsync(String key) {
+    return ExecutorAsyncPersistence.transform(asyncBackend
+        .getAsync(key), toType);
+  }
+
+  @Override
+  public Future<Map<String, T>> getAllAsync(
+      Collection<String> keys) {
+    return ExecutorAsyncPersistence.transform(asyncBackend
+        .getAllAsync(keys),
+        new Function<Map<String, S>, Map<String, T>>() {
+          @Override
+          public Map<String, T> apply(Map<String, S> found) {
+            Map<String, T> result = Maps.newLinkedHashMap();
+            for (Entry<String, S> entry : found.entrySet()) {
+              if (entry.getValue() != null) {
+                result.put(entry.getKey(), makeType(entry
+                    .getValue()));
+              }
+            }
+            return result;
+          }
+        });
+  }
+
+  @Override
+  public Future<T> mutateAsync(String key,
+      Function<? super T, ? extends T> mutator) {
+    return ExecutorAsyncPersistence.transform(asyncBackend
+        .mutateAsync(key, marshal(mutator)), toType);
+  }
+
+  /**
+   * Like scan(), values are only converted once the caller
+   * asks for them.
+   */
+  @Override
+  public Future<List<Entry<String, T>>> scanAsync(
+      String start, String end, int max) {
+    return ExecutorAsyncPersistence.transform(asyncBackend
+        .scanAsync(start, end, max),
+        new Function<List<Entry<String, S>>, List<Entry<String, T>>>() {
+          @Override
+          public List<Entry<String, T>> apply(
+              List<Entry<String, S>> found) {
+            List<Entry<String, T>> result =
+                Lists.newArrayList();
+            for (Entry<String, S> entry : found) {
+              result.add(makeLazyEntry(entry));
+            }
+            return result;
+          }
+        });
+  }
+
+  /**
+   * Values are not converted up front, but the first time
+   * getValue() is called on an entry. Callers that only look
+   * at the keys, or at the first few values, do not pay for
+   * converting the rest. Note that this also means that
+   * conversion errors surface from getValue().
+   */
   @Override
   public List<Entry<String, T>> scan(String start,
       String end, int max) {
     List<Entry<String, T>> result = Lists.newArrayList();
     for (Entry<String, S> entry : backend.scan(start,
         end, max)) {
-      T value = null;
-      if (entry.getValue() != null) {
-        value = makeType(entry.getValue());
-      }
-      result
-          .add(Maps.immutableEntry(entry.getKey(), value));
+      result.add(makeLazyEntry(entry));
     }
     return result;
   }
@@ -97,12 +271,7 @@ public abstract class PersistenceAdapter<S, T> implements
     List<Entry<String, T>> result = Lists.newArrayList();
     for (Entry<String, S> entry : backend.scanReverse(
         start, end, max)) {
-      T value = null;
-      if (entry.getValue() != null) {
-        value = makeType(entry.getValue());
-      }
-      result
-          .add(Maps.immutableEntry(entry.getKey(), value));
+      result.add(makeLazyEntry(entry));
     }
     return result;
   }
@@ -118,4 +287,98 @@ public abstract class PersistenceAdapter<S, T> implements
       String end, int max) {
     return backend.keyScanReverse(start, end, max);
   }
+
+  /**
+   * Like scan(), values are only converted once the caller
+   * asks for them.
+   */
+  @Override
+  public CloseableIterator<Entry<String, T>> iterate(
+      String start, String end) {
+    final CloseableIterator<Entry<String, S>> iterator =
+        backend.iterate(start, end);
+    return new CloseableIterator<Entry<String, T>>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public Entry<String, T> next() {
+        return makeLazyEntry(iterator.next());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void close() {
+        iterator.close();
+      }
+    };
+  }
+
+  /**
+   * An immutable entry that converts its value the first
+   * time it is accessed, and remembers the result.
+   */
+  private class LazyEntry implements Entry<String, T> {
+
+    private final String key;
+
+    private S marshalled;
+
+    private T value;
+
+    LazyEntry(String key, S marshalled) {
+      this.key = key;
+      this.marshalled = marshalled;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+
+    @Override
+    public synchronized T getValue() {
+      if (marshalled != null) {
+        value = makeType(marshalled);
+        marshalled = null;
+        decodedCount.incrementAndGet();
+      }
+      return value;
+    }
+
+    @Override
+    public T setValue(T value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Entry<?, ?>)) {
+        return false;
+      }
+      Entry<?, ?> other = (Entry<?, ?>) object;
+      T thisValue = getValue();
+      return key.equals(other.getKey())
+          && (thisValue == null ? other.getValue() == null
+              : thisValue.equals(other.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+      T thisValue = getValue();
+      return key.hashCode()
+          ^ (thisValue == null ? 0 : thisValue.hashCode());
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + getValue();
+    }
+  }
 }
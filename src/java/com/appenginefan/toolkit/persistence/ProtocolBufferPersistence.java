@@ -1,7 +1,11 @@
 package com.appenginefan.toolkit.persistence;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 
 /**
@@ -13,7 +17,9 @@ import com.google.protobuf.Message;
  *          persistence is for
  */
 public class ProtocolBufferPersistence<T extends Message>
-    extends MarshallingPersistence<T> {
+    extends CodecPersistence<T> {
+
+  private final Persistence<byte[]> backend;
 
   private final T prototype;
 
@@ -29,25 +35,62 @@ public class ProtocolBufferPersistence<T extends Message>
    */
   public ProtocolBufferPersistence(
       Persistence<byte[]> backend, T prototype) {
-    super(backend);
-    Preconditions.checkNotNull(prototype);
+    super(backend, Codecs.protocolBuffer(Preconditions
+        .checkNotNull(prototype)));
+    this.backend = backend;
     this.prototype = prototype;
   }
 
-  @Override
-  protected byte[] makeArray(T nonNullValue) {
-    return nonNullValue.toByteArray();
+  /**
+   * Returns a read-only view of the same data that only
+   * decodes the given fields of each message. Useful for
+   * scans that only look at a few fields of large messages.
+   * Note that the returned messages may lack required
+   * fields.
+   * 
+   * @param fieldNumbers
+   *          the numbers of the fields to decode, as given in
+   *          the .proto file
+   */
+  public Persistence<T> withProjection(int... fieldNumbers) {
+    return new Projection<T>(backend, Codecs
+        .protocolBufferProjection(prototype, fieldNumbers));
   }
 
-  @SuppressWarnings("unchecked")
-  @Override
-  protected T makeType(byte[] nonNullValue) {
-    try {
-      return (T) prototype.newBuilderForType().mergeFrom(
-          nonNullValue).build();
-    } catch (InvalidProtocolBufferException e) {
-      throw new StoreException(
-          "ProtocolBuffer deserialization failed", e);
+  /**
+   * The view returned by withProjection().
+   */
+  private static class Projection<T> extends
+      CodecPersistence<T> {
+
+    Projection(Persistence<byte[]> backend, Codec<T> codec) {
+      super(backend, codec);
+    }
+
+    @Override
+    public T mutate(String key,
+        Function<? super T, ? extends T> mutator) {
+      throw new UnsupportedOperationException(
+          "projections are read-only");
+    }
+
+    @Override
+    public Future<T> mutateAsync(String key,
+        Function<? super T, ? extends T> mutator) {
+      throw new UnsupportedOperationException(
+          "projections are read-only");
+    }
+
+    @Override
+    public void putAll(Map<String, ? extends T> entries) {
+      throw new UnsupportedOperationException(
+          "projections are read-only");
+    }
+
+    @Override
+    public void deleteAll(Collection<String> keys) {
+      throw new UnsupportedOperationException(
+          "projections are read-only");
     }
   }
 
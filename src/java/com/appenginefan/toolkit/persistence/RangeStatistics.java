@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+/**
+ * How many entries a range of keys holds, and how large
+ * their values are. See Utilities.estimateRange().
+ */
+public final class RangeStatistics {
+
+  private final long count;
+
+  private final long bytes;
+
+  private final boolean exact;
+
+  public RangeStatistics(long count, long bytes, boolean exact) {
+    this.count = count;
+    this.bytes = bytes;
+    this.exact = exact;
+  }
+
+  /**
+   * Returns the number of entries.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the total size of the values, or -1 if unknown.
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Whether the numbers were counted (true) or estimated
+   * from maintained statistics (false).
+   */
+  public boolean isExact() {
+    return exact;
+  }
+
+  @Override
+  public String toString() {
+    return (exact ? "" : "~") + count + " entries, "
+        + (bytes < 0 ? "unknown size" : bytes + " bytes");
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides how often, and after what pause, a transaction
+ * that failed because of contention is tried again. The
+ * pause grows exponentially with every attempt, and a random
+ * part of it is left out (&quot;jitter&quot;) so that
+ * writers that collided once do not collide again on their
+ * next attempt. A deadline caps the total time spent, so a
+ * request gives up in time rather than hitting the request
+ * timeout.
+ * 
+ * Policies are immutable and may be shared.
+ */
+public class RetryPolicy {
+
+  /**
+   * Up to 10 attempts, with pauses from 10ms up to 1s, but
+   * no longer than 5 seconds in total.
+   */
+  public static final RetryPolicy DEFAULT =
+      new RetryPolicy(10, 10, 1000, 5000);
+
+  /**
+   * Up to 10 attempts without any pause: how
+   * EntityBasedPersistence behaved before policies could be
+   * set.
+   */
+  public static final RetryPolicy IMMEDIATE =
+      new RetryPolicy(10, 0, 0, Long.MAX_VALUE);
+
+  private static final Random RANDOM = new Random();
+
+  private final int maxAttempts;
+
+  private final long initialBackoffMillis;
+
+  private final long maxBackoffMillis;
+
+  private final long deadlineMillis;
+
+  /**
+   * Constructor.
+   * 
+   * @param maxAttempts
+   *          how often an operation is tried in total
+   * @param initialBackoffMillis
+   *          the longest pause after the first failure.
+   *          Every further failure doubles it.
+   * @param maxBackoffMillis
+   *          an upper bound for the pause between two
+   *          attempts
+   * @param deadlineMillis
+   *          no further attempt is started if the pause
+   *          before it would end later than this many
+   *          milliseconds after the first attempt started
+   */
+  public RetryPolicy(int maxAttempts,
+      long initialBackoffMillis, long maxBackoffMillis,
+      long deadlineMillis) {
+    Preconditions.checkArgument(maxAttempts > 0,
+        "maxAttempts must be positive");
+    Preconditions.checkArgument(initialBackoffMillis >= 0,
+        "initialBackoffMillis must not be negative");
+    Preconditions.checkArgument(
+        maxBackoffMillis >= initialBackoffMillis,
+        "maxBackoffMillis must be at least initialBackoffMillis");
+    Preconditions.checkArgument(deadlineMillis >= 0,
+        "deadlineMillis must not be negative");
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public long getDeadlineMillis() {
+    return deadlineMillis;
+  }
+
+  /**
+   * Returns the longest pause after a given number of failed
+   * attempts, before jitter is applied.
+   * 
+   * @param failures
+   *          the number of failed attempts so far (at least
+   *          1)
+   */
+  long getMaxBackoffMillis(int failures) {
+    Preconditions.checkArgument(failures > 0);
+    int shift = Math.min(failures - 1, 62);
+    long backoff = initialBackoffMillis << shift;
+    if ((backoff >> shift) != initialBackoffMillis) {
+      return maxBackoffMillis;
+    }
+    return Math.min(backoff, maxBackoffMillis);
+  }
+
+  /**
+   * Picks the pause after a given number of failed attempts:
+   * a random time between zero and getMaxBackoffMillis().
+   */
+  long getBackoffMillis(int failures) {
+    long max = getMaxBackoffMillis(failures);
+    if (max == 0) {
+      return 0;
+    }
+    return (long) (RANDOM.nextDouble() * (max + 1));
+  }
+
+  /**
+   * Decides whether to try again.
+   * 
+   * @param failures
+   *          the number of failed attempts so far
+   * @param elapsedMillis
+   *          the time since the first attempt started
+   * @param backoffMillis
+   *          the pause that would precede the next attempt
+   */
+  boolean shouldRetry(int failures, long elapsedMillis,
+      long backoffMillis) {
+    return failures < maxAttempts
+        && elapsedMillis + backoffMillis <= deadlineMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "RetryPolicy[maxAttempts=" + maxAttempts
+        + ", initialBackoffMillis=" + initialBackoffMillis
+        + ", maxBackoffMillis=" + maxBackoffMillis
+        + ", deadlineMillis=" + deadlineMillis + "]";
+  }
+}
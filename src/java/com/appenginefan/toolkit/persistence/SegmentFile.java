@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An immutable, sorted file of key/value pairs, as used by
+ * LogStructuredPersistence. Deleted keys are recorded as
+ * tombstones (LogStructuredPersistence.TOMBSTONE), so that
+ * they hide older values in other segments.
+ *
+ * The file consists of blocks of a few kilobytes, each of
+ * which holds a sorted run of records. At the end of the
+ * file, a sparse index lists the first key, offset and
+ * checksum of every block; it is kept in memory, so finding
+ * a key takes a binary search and the read of one block.
+ */
+final class SegmentFile {
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int MAGIC = 0x4c534d31;
+
+  private static final int TRAILER_LENGTH = 12;
+
+  private final File file;
+
+  private final long first;
+
+  private final long last;
+
+  private final RandomAccessFile data;
+
+  private final String[] blockKeys;
+
+  private final long[] blockOffsets;
+
+  private final int[] blockChecksums;
+
+  private final long dataEnd;
+
+  private SegmentFile(File file, long first, long last,
+      RandomAccessFile data, String[] blockKeys,
+      long[] blockOffsets, int[] blockChecksums, long dataEnd) {
+    this.file = file;
+    this.first = first;
+    this.last = last;
+    this.data = data;
+    this.blockKeys = blockKeys;
+    this.blockOffsets = blockOffsets;
+    this.blockChecksums = blockChecksums;
+    this.dataEnd = dataEnd;
+  }
+
+  /**
+   * Writes a record to a log or segment.
+   */
+  static void writeRecord(DataOutput out, String key,
+      byte[] value) throws IOException {
+    byte[] keyBytes = key.getBytes(UTF8);
+    out.writeInt(keyBytes.length);
+    out.write(keyBytes);
+    if (value == LogStructuredPersistence.TOMBSTONE) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(value.length);
+      out.write(value);
+    }
+  }
+
+  /**
+   * Reads a record that was written by writeRecord().
+   */
+  static Entry<String, byte[]> readRecord(DataInput in)
+      throws IOException {
+    byte[] keyBytes = new byte[in.readInt()];
+    in.readFully(keyBytes);
+    int length = in.readInt();
+    byte[] value;
+    if (length < 0) {
+      value = LogStructuredPersistence.TOMBSTONE;
+    } else {
+      value = new byte[length];
+      in.readFully(value);
+    }
+    return Maps.immutableEntry(new String(keyBytes, UTF8),
+        value);
+  }
+
+  /**
+   * Writes sorted entries into a new segment. The data first
+   * goes to a temporary file that is renamed once it is
+   * complete, so a crash never leaves a partial segment
+   * behind.
+   */
+  static void write(File target,
+      Iterator<Entry<String, byte[]>> entries, int blockSize)
+      throws IOException {
+    File temp =
+        new File(target.getParentFile(), target.getName()
+            + ".tmp");
+    FileOutputStream fileOut = new FileOutputStream(temp);
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(
+              fileOut));
+      List<String> keys = Lists.newArrayList();
+      List<Long> offsets = Lists.newArrayList();
+      List<Integer> checksums = Lists.newArrayList();
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      DataOutputStream blockOut = new DataOutputStream(block);
+      long offset = 0;
+      while (entries.hasNext()) {
+        Entry<String, byte[]> entry = entries.next();
+        if (block.size() == 0) {
+          keys.add(entry.getKey());
+          offsets.add(offset);
+        }
+        writeRecord(blockOut, entry.getKey(), entry.getValue());
+        if (block.size() >= blockSize || !entries.hasNext()) {
+          checksums.add(checksum(block.toByteArray()));
+          block.writeTo(out);
+          offset += block.size();
+          block.reset();
+        }
+      }
+      out.writeInt(keys.size());
+      for (int i = 0; i < keys.size(); i++) {
+        byte[] keyBytes = keys.get(i).getBytes(UTF8);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeLong(offsets.get(i));
+        out.writeInt(checksums.get(i));
+      }
+      out.writeLong(offset);
+      out.writeInt(MAGIC);
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      fileOut.close();
+    }
+    if (!temp.renameTo(target)) {
+      throw new IOException("could not rename " + temp
+          + " to " + target);
+    }
+  }
+
+  /**
+   * Opens an existing segment and loads its index.
+   *
+   * @param first
+   *          the sequence number of the oldest flush that
+   *          this segment contains
+   * @param last
+   *          the sequence number of the newest flush that
+   *          this segment contains
+   */
+  static SegmentFile open(File file, long first, long last)
+      throws IOException {
+    RandomAccessFile data = new RandomAccessFile(file, "r");
+    try {
+      long length = data.length();
+      if (length < TRAILER_LENGTH) {
+        throw new IOException("segment too short: " + file);
+      }
+      data.seek(length - TRAILER_LENGTH);
+      long dataEnd = data.readLong();
+      if (data.readInt() != MAGIC || dataEnd < 0
+          || dataEnd > length - TRAILER_LENGTH) {
+        throw new IOException("not a segment: " + file);
+      }
+      byte[] index =
+          new byte[(int) (length - TRAILER_LENGTH - dataEnd)];
+      data.seek(dataEnd);
+      data.readFully(index);
+      DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(index));
+      int count = in.readInt();
+      String[] keys = new String[count];
+      long[] offsets = new long[count];
+      int[] checksums = new int[count];
+      for (int i = 0; i < count; i++) {
+        byte[] keyBytes = new byte[in.readInt()];
+        in.readFully(keyBytes);
+        keys[i] = new String(keyBytes, UTF8);
+        offsets[i] = in.readLong();
+        checksums[i] = in.readInt();
+      }
+      return new SegmentFile(file, first, last, data, keys,
+          offsets, checksums, dataEnd);
+    } catch (IOException e) {
+      data.close();
+      throw e;
+    }
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+
+  long getFirst() {
+    return first;
+  }
+
+  long getLast() {
+    return last;
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * Finds the last block that starts with a key that is not
+   * larger than the given one, or -1 if there is none.
+   */
+  private int blockFor(String key) {
+    int low = 0;
+    int high = blockKeys.length - 1;
+    int result = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (blockKeys[middle].compareTo(key) <= 0) {
+        result = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Reads and verifies all records of a block.
+   */
+  private List<Entry<String, byte[]>> readBlock(int block) {
+    long start = blockOffsets[block];
+    long end =
+        (block + 1 < blockOffsets.length) ? blockOffsets[block + 1]
+            : dataEnd;
+    byte[] bytes = new byte[(int) (end - start)];
+    try {
+      synchronized (data) {
+        data.seek(start);
+        data.readFully(bytes);
+      }
+      if (checksum(bytes) != blockChecksums[block]) {
+        throw new StoreException("checksum mismatch in block "
+            + block + " of " + file);
+      }
+      DataInputStream in =
+          new DataInputStream(new ByteArrayInputStream(bytes));
+      List<Entry<String, byte[]>> result = Lists.newArrayList();
+      while (in.available() > 0) {
+        result.add(readRecord(in));
+      }
+      return result;
+    } catch (IOException e) {
+      throw new StoreException("could not read " + file, e);
+    }
+  }
+
+  /**
+   * Looks up a key.
+   *
+   * @return the value, TOMBSTONE if the key was deleted, or
+   *         null if this segment does not know the key
+   */
+  byte[] get(String key) {
+    int block = blockFor(key);
+    if (block < 0) {
+      return null;
+    }
+    for (Entry<String, byte[]> entry : readBlock(block)) {
+      int comparison = entry.getKey().compareTo(key);
+      if (comparison == 0) {
+        return entry.getValue();
+      }
+      if (comparison > 0) {
+        break;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Iterates over the records (including tombstones) in a
+   * key range, reading one block at a time.
+   *
+   * @param start
+   *          the first key (inclusive)
+   * @param endOrNull
+   *          the last key (exclusive), or null to iterate to
+   *          the end of the segment
+   * @param reverse
+   *          true to iterate in descending key order
+   */
+  Iterator<Entry<String, byte[]>> iterator(
+      final String start, final String endOrNull,
+      final boolean reverse) {
+    return new AbstractIterator<Entry<String, byte[]>>() {
+
+      private int block =
+          reverse ? (endOrNull == null ? blockKeys.length - 1
+              : blockFor(endOrNull)) : Math.max(0,
+              blockFor(start));
+
+      private Iterator<Entry<String, byte[]>> current =
+          Iterators.emptyIterator();
+
+      @Override
+      protected Entry<String, byte[]> computeNext() {
+        while (true) {
+          while (current.hasNext()) {
+            Entry<String, byte[]> entry = current.next();
+            String key = entry.getKey();
+            boolean beforeStart = key.compareTo(start) < 0;
+            boolean afterEnd =
+                endOrNull != null
+                    && key.compareTo(endOrNull) >= 0;
+            if (reverse ? beforeStart : afterEnd) {
+              return endOfData();
+            }
+            if (!beforeStart && !afterEnd) {
+              return entry;
+            }
+          }
+          if (block < 0 || block >= blockKeys.length) {
+            return endOfData();
+          }
+          List<Entry<String, byte[]>> records =
+              readBlock(block);
+          if (reverse) {
+            Collections.reverse(records);
+            block--;
+          } else {
+            block++;
+          }
+          current = records.iterator();
+        }
+      }
+    };
+  }
+
+  void close() throws IOException {
+    data.close();
+  }
+}
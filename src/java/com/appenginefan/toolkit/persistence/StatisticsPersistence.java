@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps track of how many entries, and how many bytes of
+ * values, are stored under each key prefix, so that the
+ * size of a range can be estimated without reading it (see
+ * Utilities.estimateRange()). By default, the prefix of a
+ * key is everything up to and including its last slash, so
+ * &quot;/queue/0001&quot; counts towards &quot;/queue/&quot;.
+ * 
+ * The numbers live in a separate store, one entry per
+ * prefix, and are updated after every write. They are
+ * estimates: the data and the statistics are not written in
+ * the same transaction, so a process that dies in between
+ * leaves them slightly off, and writes that bypass this
+ * object are not counted at all. Also, putAll() and
+ * deleteAll() have to read the affected keys first to tell
+ * new entries from existing ones.
+ * 
+ * New entries are recognized by mutators being passed null,
+ * so wrap this class around an adapter like
+ * DatastorePersistence rather than directly around an
+ * EntityBasedPersistence.
+ */
+public class StatisticsPersistence<T> extends
+    ForwardingPersistence<T> {
+
+  /**
+   * Takes everything up to and including the last slash.
+   */
+  public static final Function<String, String> UP_TO_LAST_SLASH =
+      new Function<String, String>() {
+        @Override
+        public String apply(String key) {
+          return key.substring(0, key.lastIndexOf('/') + 1);
+        }
+      };
+
+  private final Persistence<T> backend;
+
+  private final Persistence<byte[]> statistics;
+
+  private final Function<? super T, Integer> sizer;
+
+  private final Function<String, String> prefixOf;
+
+  /**
+   * Constructor that groups keys by the part up to their last
+   * slash.
+   * 
+   * @param backend
+   *          the persistence to keep statistics for
+   * @param statistics
+   *          where to keep the numbers. Must not be shared
+   *          with other data.
+   * @param sizer
+   *          computes the size of a value, for example
+   *          MeteredPersistence.BYTE_ARRAY_LENGTH
+   */
+  public StatisticsPersistence(Persistence<T> backend,
+      Persistence<byte[]> statistics,
+      Function<? super T, Integer> sizer) {
+    this(backend, statistics, sizer, UP_TO_LAST_SLASH);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param prefixOf
+   *          maps a key to its prefix. Every key must start
+   *          with its prefix.
+   */
+  public StatisticsPersistence(Persistence<T> backend,
+      Persistence<byte[]> statistics,
+      Function<? super T, Integer> sizer,
+      Function<String, String> prefixOf) {
+    Preconditions.checkNotNull(backend);
+    Preconditions.checkNotNull(statistics);
+    Preconditions.checkNotNull(sizer);
+    Preconditions.checkNotNull(prefixOf);
+    this.backend = backend;
+    this.statistics = statistics;
+    this.sizer = sizer;
+    this.prefixOf = prefixOf;
+  }
+
+  @Override
+  protected Persistence<T> delegate() {
+    return backend;
+  }
+
+  /**
+   * Returns the numbers for a single prefix.
+   */
+  public RangeStatistics getStatistics(String prefix) {
+    byte[] stored = statistics.get(prefix);
+    if (stored == null) {
+      return new RangeStatistics(0, 0, false);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(stored);
+    return new RangeStatistics(buffer.getLong(), buffer
+        .getLong(), false);
+  }
+
+  /**
+   * Estimates the size of a range by adding up the numbers
+   * of all prefixes that overlap with it. Prefixes that only
+   * partially overlap are counted in full, so the result
+   * tends to be too high for ranges that start or end in the
+   * middle of a prefix. This includes all prefixes that
+   * enclose the start of the range (for &quot;/a/b/x&quot;,
+   * that is &quot;/a/b/&quot;, &quot;/a/&quot; and
+   * &quot;/&quot;), since their keys may sort after it.
+   */
+  public RangeStatistics estimate(String start, String end) {
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    long count = 0;
+    long bytes = 0;
+    for (String enclosing : enclosingPrefixes(start)) {
+      RangeStatistics partial = getStatistics(enclosing);
+      count += partial.getCount();
+      bytes += partial.getBytes();
+    }
+    CloseableIterator<Entry<String, byte[]>> entries =
+        statistics.iterate(start, end);
+    try {
+      while (entries.hasNext()) {
+        ByteBuffer buffer =
+            ByteBuffer.wrap(entries.next().getValue());
+        count += buffer.getLong();
+        bytes += buffer.getLong();
+      }
+    } finally {
+      entries.close();
+    }
+    return new RangeStatistics(count, bytes, false);
+  }
+
+  /**
+   * Lists the prefixes that sort before a key but may have
+   * keys after it: the prefix of the key, the prefix of that
+   * prefix without its last character, and so on.
+   */
+  private List<String> enclosingPrefixes(String key) {
+    List<String> result = Lists.newArrayList();
+    String prefix = prefixOf.apply(key);
+    while (prefix.compareTo(key) < 0) {
+      result.add(prefix);
+      if (prefix.length() == 0) {
+        break;
+      }
+      key = prefix;
+      prefix =
+          prefixOf.apply(prefix.substring(0,
+              prefix.length() - 1));
+    }
+    return result;
+  }
+
+  private long sizeOf(T valueOrNull) {
+    return (valueOrNull == null) ? 0 : sizer.apply(valueOrNull);
+  }
+
+  /**
+   * Adds the change from one value to another to a map of
+   * deltas per prefix.
+   */
+  private void addDelta(Map<String, long[]> deltas,
+      String key, T before, T after) {
+    long count =
+        (after == null ? 0 : 1) - (before == null ? 0 : 1);
+    long bytes = sizeOf(after) - sizeOf(before);
+    if (count == 0 && bytes == 0) {
+      return;
+    }
+    String prefix = prefixOf.apply(key);
+    long[] delta = deltas.get(prefix);
+    if (delta == null) {
+      delta = new long[2];
+      deltas.put(prefix, delta);
+    }
+    delta[0] += count;
+    delta[1] += bytes;
+  }
+
+  /**
+   * Applies deltas to the stored statistics, removing
+   * prefixes that have no entries left.
+   */
+  private void apply(Map<String, long[]> deltas) {
+    for (Entry<String, long[]> entry : deltas.entrySet()) {
+      final long[] delta = entry.getValue();
+      statistics.mutate(entry.getKey(),
+          new Function<byte[], byte[]>() {
+            @Override
+            public byte[] apply(byte[] stored) {
+              long count = delta[0];
+              long bytes = delta[1];
+              if (stored != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(stored);
+                count += buffer.getLong();
+                bytes += buffer.getLong();
+              }
+              if (count <= 0) {
+                return null;
+              }
+              return ByteBuffer.allocate(16).putLong(count)
+                  .putLong(Math.max(bytes, 0)).array();
+            }
+          });
+    }
+  }
+
+  @Override
+  public T mutate(final String key,
+      final Function<? super T, ? extends T> mutator) {
+    Preconditions.checkNotNull(mutator);
+    // the mutator may run several times; the last run is the
+    // one that was stored
+    final List<T> before = Lists.newArrayList();
+    final List<T> after = Lists.newArrayList();
+    T result = backend.mutate(key, new Function<T, T>() {
+      @Override
+      public T apply(T value) {
+        T mutated = mutator.apply(value);
+        before.clear();
+        before.add(value);
+        after.clear();
+        after.add(mutated);
+        return mutated;
+      }
+    });
+    if (!before.isEmpty()) {
+      Map<String, long[]> deltas = Maps.newHashMap();
+      addDelta(deltas, key, before.get(0), after.get(0));
+      apply(deltas);
+    }
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    Preconditions.checkNotNull(entries);
+    Map<String, T> existing =
+        backend.getAll(Lists.newArrayList(entries.keySet()));
+    backend.putAll(entries);
+    Map<String, long[]> deltas = Maps.newHashMap();
+    for (Entry<String, ? extends T> entry : entries
+        .entrySet()) {
+      addDelta(deltas, entry.getKey(), existing.get(entry
+          .getKey()), entry.getValue());
+    }
+    apply(deltas);
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, T> existing = backend.getAll(keys);
+    backend.deleteAll(keys);
+    Map<String, long[]> deltas = Maps.newHashMap();
+    for (Entry<String, T> entry : existing.entrySet()) {
+      addDelta(deltas, entry.getKey(), entry.getValue(), null);
+    }
+    apply(deltas);
+  }
+}
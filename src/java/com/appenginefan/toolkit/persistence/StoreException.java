@@ -30,6 +30,10 @@ public class StoreException
   public StoreException() {
   }
 
+  public StoreException(String message) {
+    super(message);
+  }
+
   public StoreException(String message, Throwable t) {
     super(message, t);
   }
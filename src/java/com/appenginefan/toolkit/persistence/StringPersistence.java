@@ -20,23 +20,14 @@ package com.appenginefan.toolkit.persistence;
 
 /**
  * Storage specialized in persisting strings. Wraps around a
- * byte array based persistence for the backend.
+ * byte array based persistence for the backend. Strings are
+ * stored as UTF-8.
  */
 public class StringPersistence
-    extends MarshallingPersistence<String> {
+    extends CodecPersistence<String> {
 
   public StringPersistence(Persistence<byte[]> backend) {
-    super(backend);
-  }
-
-  @Override
-  protected byte[] makeArray(String nonNullValue) {
-    return nonNullValue.getBytes();
-  }
-
-  @Override
-  protected String makeType(byte[] nonNullValue) {
-    return new String(nonNullValue);
+    super(backend, Codecs.utf8());
   }
 
 }
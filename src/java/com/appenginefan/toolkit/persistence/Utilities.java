@@ -20,6 +20,14 @@ package com.appenginefan.toolkit.persistence;
 
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
 /**
  * A set of useful static utility functions on Persistence
@@ -27,6 +35,8 @@ import java.util.Map.Entry;
  */
 public class Utilities {
 
+  private static final int COUNT_PAGE_SIZE = 1000;
+
   private Utilities() {
   }
 
@@ -130,4 +140,278 @@ public class Utilities {
     return persistence.scanReverse(start
         + Character.MIN_VALUE, end, max);
   }
+
+  /**
+   * Splits a range of keys into sub-ranges of roughly equal
+   * size, so that they can be processed independently. The
+   * split points are found by repeatedly bisecting ranges:
+   * the key closest to the middle between the first and the
+   * last key of a range is found with keyScan(), which reads
+   * no values. How even the parts are depends on how evenly
+   * the keys are spread.
+   * 
+   * @param start
+   *          a lower bound of the range (inclusive)
+   * @param end
+   *          an upper bound of the range (exclusive)
+   * @param parts
+   *          the desired number of sub-ranges. Fewer are
+   *          returned if the range holds too few keys.
+   * @return the boundaries of the sub-ranges, starting with
+   *         start and ending with end. Sub-range i goes from
+   *         element i (inclusive) to element i + 1
+   *         (exclusive).
+   */
+  public static List<String> splitRange(
+      Persistence<?> persistence, String start, String end,
+      int parts) {
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    Preconditions.checkArgument(parts > 0,
+        "parts must be positive");
+    List<String> boundaries = Lists.newArrayList(start, end);
+    int count = 1;
+    boolean progress = true;
+    while (count < parts && progress) {
+      progress = false;
+      for (int i = 0; i < boundaries.size() - 1 && count < parts; i++) {
+        String split =
+            findSplit(persistence, boundaries.get(i), boundaries
+                .get(i + 1));
+        if (split != null) {
+          boundaries.add(++i, split);
+          count++;
+          progress = true;
+        }
+      }
+    }
+    return boundaries;
+  }
+
+  /**
+   * Finds a key that splits a range into two non-empty
+   * halves, or null if there is none.
+   */
+  private static String findSplit(Persistence<?> persistence,
+      String start, String end) {
+    List<String> first = persistence.keyScan(start, end, 1);
+    List<String> last =
+        persistence.keyScanReverse(start, end, 1);
+    if (first.isEmpty() || first.get(0).equals(last.get(0))) {
+      return null;
+    }
+    String middle = middle(first.get(0), last.get(0));
+    if (middle.compareTo(first.get(0)) <= 0) {
+      middle = first.get(0) + Character.MIN_VALUE;
+    }
+    List<String> split = persistence.keyScan(middle, end, 1);
+    return split.isEmpty() ? null : split.get(0);
+  }
+
+  /**
+   * Computes a string that sorts roughly halfway between two
+   * others, treating them as fractions in base 65536.
+   */
+  static String middle(String low, String high) {
+    int length = Math.max(low.length(), high.length()) + 1;
+    int[] sum = new int[length];
+    int carry = 0;
+    for (int i = length - 1; i >= 0; i--) {
+      int digit =
+          (i < low.length() ? low.charAt(i) : 0)
+              + (i < high.length() ? high.charAt(i) : 0) + carry;
+      sum[i] = digit & 0xFFFF;
+      carry = digit >>> 16;
+    }
+    StringBuilder result = new StringBuilder(length);
+    int remainder = carry;
+    for (int i = 0; i < length; i++) {
+      int digit = (remainder << 16) | sum[i];
+      result.append((char) (digit >>> 1));
+      remainder = digit & 1;
+    }
+    return result.toString();
+  }
+
+  /**
+   * Counts the entries in a range exactly, by paging through
+   * their keys. Values are never read, but the cost still
+   * grows with the size of the range; see estimateRange()
+   * for a cheaper alternative.
+   * 
+   * @param start
+   *          a lower bound of the range (inclusive)
+   * @param end
+   *          an upper bound of the range (exclusive)
+   * @return the number of entries in the range
+   */
+  public static long countRange(Persistence<?> persistence,
+      String start, String end) {
+    Preconditions.checkNotNull(persistence);
+    Preconditions.checkNotNull(start);
+    Preconditions.checkNotNull(end);
+    long count = 0;
+    String from = start;
+    while (true) {
+      List<String> keys =
+          persistence.keyScan(from, end, COUNT_PAGE_SIZE);
+      if (keys.isEmpty()) {
+        return count;
+      }
+      count += keys.size();
+      from = keys.get(keys.size() - 1) + Character.MIN_VALUE;
+    }
+  }
+
+  /**
+   * Estimates how many entries a range holds and how large
+   * they are. If the persistence is a StatisticsPersistence,
+   * the numbers are taken from its statistics without
+   * reading the range. Otherwise, the entries are counted
+   * with countRange(), and the size is unknown.
+   * 
+   * @param start
+   *          a lower bound of the range (inclusive)
+   * @param end
+   *          an upper bound of the range (exclusive)
+   */
+  public static RangeStatistics estimateRange(
+      Persistence<?> persistence, String start, String end) {
+    Preconditions.checkNotNull(persistence);
+    if (persistence instanceof StatisticsPersistence<?>) {
+      return ((StatisticsPersistence<?>) persistence)
+          .estimate(start, end);
+    }
+    return new RangeStatistics(countRange(persistence, start,
+        end), -1, true);
+  }
+
+  /**
+   * Stores a value unless the key already has one. Uses the
+   * persistence's own putIfAbsent() if it is a
+   * VersionedPersistence, and a mutation otherwise.
+   * 
+   * @return true if the value was stored, false if the key
+   *         was taken
+   */
+  public static <T> boolean putIfAbsent(
+      Persistence<T> persistence, String key, T value) {
+    Preconditions.checkNotNull(persistence);
+    if (persistence instanceof VersionedPersistence<?>) {
+      return ((VersionedPersistence<T>) persistence)
+          .putIfAbsent(key, value);
+    }
+    return putIfAbsentByMutation(persistence, key, value);
+  }
+
+  /**
+   * Implements putIfAbsent() with a mutation that aborts (by
+   * throwing, so that nothing is written) if the key is
+   * taken.
+   */
+  static <T> boolean putIfAbsentByMutation(
+      Persistence<T> persistence, String key, final T value) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(value);
+    try {
+      persistence.mutate(key, new Function<T, T>() {
+        @Override
+        public T apply(T current) {
+          if (current != null) {
+            throw new KeyTakenException();
+          }
+          return value;
+        }
+      });
+      return true;
+    } catch (KeyTakenException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Aborts the mutation in putIfAbsentByMutation().
+   */
+  private static class KeyTakenException extends
+      RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Applies a function to every entry in a range, using
+   * several threads. The range is split with splitRange(),
+   * and each part is iterated by a separate task, so that
+   * reading from the store overlaps with processing. Note
+   * that App Engine (as of this writing) does not allow
+   * applications to create threads; there, pass an executor
+   * that runs tasks in the calling thread.
+   * 
+   * @param start
+   *          a lower bound of the range (inclusive)
+   * @param end
+   *          an upper bound of the range (exclusive)
+   * @param parts
+   *          how many tasks to split the work into; usually a
+   *          small multiple of the executor's threads
+   * @param executor
+   *          runs the tasks
+   * @param action
+   *          called once for every entry, possibly from
+   *          several threads at once. Its result is ignored.
+   * @return the number of entries processed
+   * @throws StoreException
+   *           if the action or the store failed, or if the
+   *           calling thread was interrupted
+   */
+  public static <T> long processRange(
+      final Persistence<T> persistence, String start,
+      String end, int parts, ExecutorService executor,
+      final Function<? super Entry<String, T>, ?> action) {
+    Preconditions.checkNotNull(executor);
+    Preconditions.checkNotNull(action);
+    List<String> boundaries =
+        splitRange(persistence, start, end, parts);
+    List<Future<Long>> results = Lists.newArrayList();
+    for (int i = 0; i < boundaries.size() - 1; i++) {
+      final String from = boundaries.get(i);
+      final String to = boundaries.get(i + 1);
+      results.add(executor.submit(new Callable<Long>() {
+        @Override
+        public Long call() {
+          long count = 0;
+          CloseableIterator<Entry<String, T>> entries =
+              persistence.iterate(from, to);
+          try {
+            while (entries.hasNext()) {
+              action.apply(entries.next());
+              count++;
+            }
+          } finally {
+            entries.close();
+          }
+          return count;
+        }
+      }));
+    }
+    long total = 0;
+    try {
+      for (Future<Long> result : results) {
+        total += result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StoreException("interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new StoreException("processing failed", e
+          .getCause());
+    } finally {
+      for (Future<Long> result : results) {
+        result.cancel(true);
+      }
+    }
+    return total;
+  }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+/**
+ * A value together with the version it was read at. See
+ * VersionedPersistence.
+ */
+public final class Versioned<T> {
+
+  private final T value;
+
+  private final long version;
+
+  public Versioned(T value, long version) {
+    this.value = value;
+    this.version = version;
+  }
+
+  public T getValue() {
+    return value;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public String toString() {
+    return value + "@" + version;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collections;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * A MemcachePersistence for a backend that is a
+ * VersionedPersistence. The versioned operations always go
+ * to the backend, since the version of a cached entity may
+ * already be outdated, and remove the cached entity in the
+ * same way as blind writes do.
+ */
+public class VersionedMemcachePersistence extends
+    MemcachePersistence implements
+    VersionedPersistence<Entity> {
+
+  private final VersionedPersistence<Entity> backend;
+
+  /**
+   * Constructor.
+   *
+   * @param backend
+   *          the persistence to cache, usually an
+   *          EntityBasedPersistence
+   * @param memcacheOrNull
+   *          a MemcacheService to use. If left null, the
+   *          constructor fetches its own service
+   * @param partition
+   *          the partition of the backend. Used to keep the
+   *          cache entries of different partitions apart.
+   * @param expirationSeconds
+   *          how long an entity may stay in memcache
+   */
+  public VersionedMemcachePersistence(
+      VersionedPersistence<Entity> backend,
+      MemcacheService memcacheOrNull, String partition,
+      int expirationSeconds) {
+    super(backend, memcacheOrNull, partition,
+        expirationSeconds);
+    this.backend = backend;
+  }
+
+  /**
+   * Constructor that keeps entities in memcache for up to
+   * an hour.
+   *
+   * @param backend
+   *          the persistence to cache, usually an
+   *          EntityBasedPersistence
+   * @param memcacheOrNull
+   *          a MemcacheService to use. If left null, the
+   *          constructor fetches its own service
+   * @param partition
+   *          the partition of the backend. Used to keep the
+   *          cache entries of different partitions apart.
+   */
+  public VersionedMemcachePersistence(
+      VersionedPersistence<Entity> backend,
+      MemcacheService memcacheOrNull, String partition) {
+    super(backend, memcacheOrNull, partition);
+    this.backend = backend;
+  }
+
+  @Override
+  public Versioned<Entity> getVersioned(String key) {
+    return backend.getVersioned(key);
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, Entity value) {
+    try {
+      return backend.putIfAbsent(key, value);
+    } finally {
+      invalidate(Collections.singleton(key));
+    }
+  }
+
+  @Override
+  public boolean compareAndSet(String key,
+      long expectedVersion, Entity newValueOrNull) {
+    try {
+      return backend.compareAndSet(key, expectedVersion,
+          newValueOrNull);
+    } finally {
+      invalidate(Collections.singleton(key));
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+/**
+ * A persistence that keeps a version number with every
+ * entry, which allows conditional writes without passing a
+ * function to mutate(). Every write gives the entry a new
+ * version; versions are only meaningful when compared to
+ * other versions of the same key.
+ * 
+ * Note that a key that is deleted and created again may get
+ * a version it had before, so a version should not be held
+ * on to for long.
+ */
+public interface VersionedPersistence<T> extends
+    Persistence<T> {
+
+  /**
+   * Gets an entry together with its current version.
+   * 
+   * @param key
+   *          the key to look up
+   * @return the value and its version, or null if the store
+   *         does not contain the key
+   * @exception NullPointerException
+   *              if the key is null
+   * @exception StoreException
+   *              if something went wrong while loading data
+   */
+  public Versioned<T> getVersioned(String key);
+
+  /**
+   * Stores a value, but only if the key does not exist yet.
+   * 
+   * @return true if the value was stored, false if the key
+   *         already existed
+   * @exception NullPointerException
+   *              if either of the arguments is null
+   * @exception StoreException
+   *              if something went wrong while storing data
+   */
+  public boolean putIfAbsent(String key, T value);
+
+  /**
+   * Replaces an entry, but only if it still has a given
+   * version.
+   * 
+   * @param expectedVersion
+   *          the version returned by getVersioned()
+   * @param newValueOrNull
+   *          the value to store, or null to delete the
+   *          entry
+   * @return true if the entry was changed, false if it did
+   *         not exist or had a different version
+   * @exception NullPointerException
+   *              if the key is null
+   * @exception StoreException
+   *              if something went wrong while storing data
+   */
+  public boolean compareAndSet(String key,
+      long expectedVersion, T newValueOrNull);
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A PersistenceAdapter for a backend that is a
+ * VersionedPersistence. The versions of the backend are
+ * passed on unchanged, and values are converted in the same
+ * way as for the other operations.
+ */
+public abstract class VersionedPersistenceAdapter<S, T>
+    extends PersistenceAdapter<S, T> implements
+    VersionedPersistence<T> {
+
+  private final VersionedPersistence<S> backend;
+
+  public VersionedPersistenceAdapter(
+      VersionedPersistence<S> backend) {
+    super(backend);
+    this.backend = backend;
+  }
+
+  @Override
+  public Versioned<T> getVersioned(String key) {
+    Versioned<S> found = backend.getVersioned(key);
+    if (found == null) {
+      return null;
+    }
+    return new Versioned<T>(makeType(found.getValue()), found
+        .getVersion());
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, T value) {
+    Preconditions.checkNotNull(value);
+    return backend.putIfAbsent(key, makeMarshalledType(null,
+        value));
+  }
+
+  @Override
+  public boolean compareAndSet(String key,
+      long expectedVersion, T newValueOrNull) {
+    return backend.compareAndSet(key, expectedVersion,
+        (newValueOrNull == null) ? null : makeMarshalledType(
+            null, newValueOrNull));
+  }
+}
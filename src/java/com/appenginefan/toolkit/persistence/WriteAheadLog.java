@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only log of LogStructuredPersistence. Every
+ * write operation becomes one record in the log before it
+ * is applied to the memtable, so that the memtable can be
+ * restored after a crash. A record holds a whole batch of
+ * changes and carries a checksum; a record that was only
+ * partially written is discarded on recovery, together with
+ * everything after it.
+ */
+final class WriteAheadLog {
+
+  private final File file;
+
+  private FileOutputStream fileOut;
+
+  private DataOutputStream out;
+
+  private final ByteArrayOutputStream buffer =
+      new ByteArrayOutputStream();
+
+  private final DataOutputStream bufferOut =
+      new DataOutputStream(buffer);
+
+  /**
+   * Opens a log for appending. Call replay() first to recover
+   * the content of an existing log.
+   */
+  WriteAheadLog(File file) throws IOException {
+    this.file = file;
+    open(true);
+  }
+
+  private void open(boolean append) throws IOException {
+    fileOut = new FileOutputStream(file, append);
+    out =
+        new DataOutputStream(new BufferedOutputStream(fileOut));
+  }
+
+  /**
+   * Reads all complete records of a log into a map and cuts
+   * off any partially written record at the end.
+   */
+  static void replay(File file, Map<String, byte[]> target)
+      throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    long valid = 0;
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file)));
+    try {
+      long remaining = file.length();
+      while (remaining >= 8) {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 0 || length > remaining - 8) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (checksum(payload) != checksum) {
+          break;
+        }
+        DataInputStream record =
+            new DataInputStream(new ByteArrayInputStream(
+                payload));
+        int count = record.readInt();
+        for (int i = 0; i < count; i++) {
+          Entry<String, byte[]> entry =
+              SegmentFile.readRecord(record);
+          target.put(entry.getKey(), entry.getValue());
+        }
+        valid += 8 + length;
+        remaining -= 8 + length;
+      }
+    } catch (EOFException e) {
+      // a torn record at the end of the log
+    } finally {
+      in.close();
+    }
+    if (valid < file.length()) {
+      RandomAccessFile truncate =
+          new RandomAccessFile(file, "rw");
+      try {
+        truncate.setLength(valid);
+      } finally {
+        truncate.close();
+      }
+    }
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Appends a batch of changes (TOMBSTONE values mark
+   * deletions) and hands it to the operating system.
+   *
+   * @param sync
+   *          true to also force the data to disk
+   */
+  void append(Map<String, byte[]> batch, boolean sync)
+      throws IOException {
+    buffer.reset();
+    bufferOut.writeInt(batch.size());
+    for (Entry<String, byte[]> entry : batch.entrySet()) {
+      SegmentFile.writeRecord(bufferOut, entry.getKey(), entry
+          .getValue());
+    }
+    byte[] payload = buffer.toByteArray();
+    out.writeInt(payload.length);
+    out.writeInt(checksum(payload));
+    out.write(payload);
+    out.flush();
+    if (sync) {
+      fileOut.getFD().sync();
+    }
+  }
+
+  /**
+   * Empties the log, after its content was saved to a
+   * segment.
+   */
+  void reset() throws IOException {
+    out.close();
+    open(false);
+  }
+
+  void close() throws IOException {
+    out.close();
+  }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps changes in memory and writes them to another
+ * persistence later, in batches. Keys that are changed
+ * several times before the next flush are only written
+ * once, with their latest value. This suits data like
+ * session timestamps that are rewritten all the time and
+ * where losing the last few changes is acceptable.
+ * 
+ * Changes that have not been flushed yet are lost if the
+ * process dies. mutate() applies its function to the value
+ * known to this object, so it is only atomic with respect
+ * to other calls on the same object; writers in other
+ * processes are overwritten by the next flush. Reads of
+ * single keys see pending changes; scans and iterations
+ * flush first and then read from the backend.
+ * 
+ * A flush starts once batchSize changes are pending, and,
+ * if a flush interval was given, periodically on a
+ * background thread. Writers that find maxPending changes
+ * waiting flush in their own thread before they continue,
+ * which bounds memory. close() writes whatever is left. In
+ * background mode, a shutdown hook does the same when the
+ * JVM exits.
+ */
+public class WriteBehindPersistence<T> extends
+    ForwardingPersistence<T> {
+
+  private static final Logger LOG =
+      Logger.getLogger(WriteBehindPersistence.class.getName());
+
+  private final Persistence<T> backend;
+
+  private final int batchSize;
+
+  private final int maxPending;
+
+  /**
+   * Guards pending and inFlight.
+   */
+  private final Object lock = new Object();
+
+  /**
+   * Changes that have not been written yet. A null value
+   * means that the key is to be deleted.
+   */
+  private final Map<String, T> pending = Maps.newLinkedHashMap();
+
+  /**
+   * The batch that is currently being written, so that
+   * reads still see it.
+   */
+  private Map<String, T> inFlight = Collections.emptyMap();
+
+  /**
+   * Counts the flushes that have ended, so that mutate() can
+   * tell whether a value it read from the backend may have
+   * been replaced in the meantime. Guarded by lock.
+   */
+  private long flushesEnded;
+
+  /**
+   * Makes sure only one batch is written at a time.
+   */
+  private final Object flushLock = new Object();
+
+  private final ScheduledExecutorService flusherOrNull;
+
+  private final Thread shutdownHookOrNull;
+
+  private final AtomicBoolean flushScheduled =
+      new AtomicBoolean();
+
+  private volatile boolean closed;
+
+  private final AtomicLong coalesced = new AtomicLong();
+
+  private final AtomicLong written = new AtomicLong();
+
+  private final AtomicLong flushes = new AtomicLong();
+
+  private final Runnable flushTask = new Runnable() {
+    @Override
+    public void run() {
+      flushScheduled.set(false);
+      try {
+        flush();
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING,
+            "Could not write pending changes, will try again",
+            e);
+      }
+    }
+  };
+
+  /**
+   * Constructor for use without background threads, for
+   * example on App Engine. Changes are written when
+   * batchSize of them are pending, and on flush() or
+   * close().
+   * 
+   * @param backend
+   *          the persistence to write to
+   * @param batchSize
+   *          how many pending changes trigger a flush
+   */
+  public WriteBehindPersistence(Persistence<T> backend,
+      int batchSize) {
+    this(backend, batchSize, batchSize, 0);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param backend
+   *          the persistence to write to
+   * @param batchSize
+   *          how many pending changes trigger a flush
+   * @param maxPending
+   *          how many changes may be pending before writers
+   *          have to flush themselves
+   * @param flushIntervalMillis
+   *          how often a background thread writes pending
+   *          changes, or 0 to not start a thread (flushes
+   *          then happen in the writing threads)
+   */
+  public WriteBehindPersistence(Persistence<T> backend,
+      int batchSize, int maxPending, long flushIntervalMillis) {
+    Preconditions.checkNotNull(backend);
+    Preconditions.checkArgument(batchSize > 0,
+        "batchSize must be positive");
+    Preconditions.checkArgument(maxPending >= batchSize,
+        "maxPending must be at least batchSize");
+    Preconditions.checkArgument(flushIntervalMillis >= 0,
+        "flushIntervalMillis must not be negative");
+    this.backend = backend;
+    this.batchSize = batchSize;
+    this.maxPending = maxPending;
+    if (flushIntervalMillis > 0) {
+      flusherOrNull =
+          Executors
+              .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                  Thread thread =
+                      new Thread(runnable,
+                          "WriteBehindPersistence flush");
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+      flusherOrNull.scheduleWithFixedDelay(flushTask,
+          flushIntervalMillis, flushIntervalMillis,
+          TimeUnit.MILLISECONDS);
+      shutdownHookOrNull = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, "WriteBehindPersistence shutdown");
+      Runtime.getRuntime().addShutdownHook(shutdownHookOrNull);
+    } else {
+      flusherOrNull = null;
+      shutdownHookOrNull = null;
+    }
+  }
+
+  @Override
+  protected Persistence<T> delegate() {
+    return backend;
+  }
+
+  /**
+   * Returns how many changes are waiting to be written.
+   */
+  public int getPendingCount() {
+    synchronized (lock) {
+      return pending.size();
+    }
+  }
+
+  /**
+   * Returns how many changes replaced a pending change to
+   * the same key, and therefore saved a write.
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+
+  /**
+   * Returns how many changes were written to the backend.
+   */
+  public long getWrittenCount() {
+    return written.get();
+  }
+
+  /**
+   * Returns how many batches were written to the backend.
+   */
+  public long getFlushCount() {
+    return flushes.get();
+  }
+
+  /**
+   * Writes all pending changes to the backend. If that
+   * fails, the changes stay pending (unless they were
+   * changed again in the meantime) and the exception is
+   * passed on.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      Map<String, T> batch;
+      synchronized (lock) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch = Maps.newLinkedHashMap(pending);
+        pending.clear();
+        inFlight = batch;
+      }
+      boolean success = false;
+      try {
+        Map<String, T> puts = Maps.newLinkedHashMap();
+        List<String> deletes = Lists.newArrayList();
+        for (Entry<String, T> entry : batch.entrySet()) {
+          if (entry.getValue() == null) {
+            deletes.add(entry.getKey());
+          } else {
+            puts.put(entry.getKey(), entry.getValue());
+          }
+        }
+        if (!puts.isEmpty()) {
+          backend.putAll(puts);
+        }
+        if (!deletes.isEmpty()) {
+          backend.deleteAll(deletes);
+        }
+        success = true;
+        written.addAndGet(batch.size());
+        flushes.incrementAndGet();
+      } finally {
+        synchronized (lock) {
+          inFlight = Collections.emptyMap();
+          flushesEnded++;
+          if (!success) {
+            for (Entry<String, T> entry : batch.entrySet()) {
+              if (!pending.containsKey(entry.getKey())) {
+                pending.put(entry.getKey(), entry.getValue());
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops the background thread, if any, and writes all
+   * pending changes. The object must not be used afterwards.
+   */
+  public void close() {
+    closed = true;
+    if (flusherOrNull != null) {
+      flusherOrNull.shutdown();
+      try {
+        Runtime.getRuntime().removeShutdownHook(
+            shutdownHookOrNull);
+      } catch (IllegalStateException e) {
+        // the JVM is shutting down already
+      }
+    }
+    flush();
+  }
+
+  private void checkOpen() {
+    Preconditions.checkState(!closed,
+        "WriteBehindPersistence is closed");
+  }
+
+  /**
+   * Whether a change to the key has not reached the backend
+   * yet. Must be called while holding the lock.
+   */
+  private boolean isPending(String key) {
+    return pending.containsKey(key) || inFlight.containsKey(key);
+  }
+
+  /**
+   * The latest value of a key for which isPending() is true.
+   * Must be called while holding the lock.
+   */
+  private T pendingValue(String key) {
+    return pending.containsKey(key) ? pending.get(key)
+        : inFlight.get(key);
+  }
+
+  /**
+   * Records a change. Must be called while holding the lock.
+   */
+  private void record(String key, T valueOrNull) {
+    if (pending.containsKey(key)) {
+      coalesced.incrementAndGet();
+    }
+    pending.put(key, valueOrNull);
+  }
+
+  /**
+   * Starts or performs a flush if enough changes are
+   * pending. Must be called without holding the lock.
+   */
+  private void afterWrite() {
+    int size = getPendingCount();
+    if (size >= maxPending
+        || (size >= batchSize && flusherOrNull == null)) {
+      flush();
+    } else if (size >= batchSize
+        && flushScheduled.compareAndSet(false, true)) {
+      flusherOrNull.execute(flushTask);
+    }
+  }
+
+  @Override
+  public T get(String key) {
+    Preconditions.checkNotNull(key);
+    synchronized (lock) {
+      if (isPending(key)) {
+        return pendingValue(key);
+      }
+    }
+    return backend.get(key);
+  }
+
+  @Override
+  public Map<String, T> getAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    Map<String, T> known = Maps.newHashMap();
+    List<String> missing = Lists.newArrayList();
+    synchronized (lock) {
+      for (String key : keys) {
+        Preconditions.checkNotNull(key);
+        if (isPending(key)) {
+          known.put(key, pendingValue(key));
+        } else {
+          missing.add(key);
+        }
+      }
+    }
+    Map<String, T> loaded =
+        missing.isEmpty() ? Collections.<String, T> emptyMap()
+            : backend.getAll(missing);
+    Map<String, T> result = Maps.newLinkedHashMap();
+    for (String key : keys) {
+      T value =
+          known.containsKey(key) ? known.get(key) : loaded
+              .get(key);
+      if (value != null) {
+        result.put(key, value);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public void putAll(Map<String, ? extends T> entries) {
+    Preconditions.checkNotNull(entries);
+    checkOpen();
+    synchronized (lock) {
+      for (Entry<String, ? extends T> entry : entries
+          .entrySet()) {
+        Preconditions.checkNotNull(entry.getKey());
+        Preconditions.checkNotNull(entry.getValue());
+        record(entry.getKey(), entry.getValue());
+      }
+    }
+    afterWrite();
+  }
+
+  @Override
+  public void deleteAll(Collection<String> keys) {
+    Preconditions.checkNotNull(keys);
+    checkOpen();
+    synchronized (lock) {
+      for (String key : keys) {
+        record(Preconditions.checkNotNull(key), null);
+      }
+    }
+    afterWrite();
+  }
+
+  /**
+   * The function runs while other changes to this object
+   * wait, so it should be quick. If the key has no pending
+   * change, the current value is read from the backend
+   * first; if a flush ends while it is being read, it is read
+   * again.
+   */
+  @Override
+  public T mutate(String key,
+      Function<? super T, ? extends T> mutator) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkNotNull(mutator);
+    checkOpen();
+    T result;
+    while (true) {
+      boolean load;
+      long flushesBefore;
+      synchronized (lock) {
+        load = !isPending(key);
+        flushesBefore = flushesEnded;
+      }
+      T stored = load ? backend.get(key) : null;
+      synchronized (lock) {
+        if (isPending(key)) {
+          result = mutator.apply(pendingValue(key));
+        } else if (load && flushesBefore == flushesEnded) {
+          result = mutator.apply(stored);
+        } else {
+          // a flush ended in between, so the backend may hold
+          // a newer value than the one we have (if any)
+          continue;
+        }
+        record(key, result);
+        break;
+      }
+    }
+    afterWrite();
+    return result;
+  }
+
+  @Override
+  public List<Entry<String, T>> scan(String start,
+      String end, int max) {
+    flush();
+    return backend.scan(start, end, max);
+  }
+
+  @Override
+  public List<Entry<String, T>> scanReverse(String start,
+      String end, int max) {
+    flush();
+    return backend.scanReverse(start, end, max);
+  }
+
+  @Override
+  public List<String> keyScan(String start, String end,
+      int max) {
+    flush();
+    return backend.keyScan(start, end, max);
+  }
+
+  @Override
+  public List<String> keyScanReverse(String start,
+      String end, int max) {
+    flush();
+    return backend.keyScanReverse(start, end, max);
+  }
+
+  @Override
+  public CloseableIterator<Entry<String, T>> iterate(
+      String start, String end) {
+    flush();
+    return backend.iterate(start, end);
+  }
+}
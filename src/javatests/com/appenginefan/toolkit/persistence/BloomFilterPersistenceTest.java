@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Map;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against a
+ * BloomFilterPersistence, plus tests for the filter.
+ */
+public class BloomFilterPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  @Override
+  protected void setUp() throws Exception {
+    persistence =
+        new BloomFilterPersistence<byte[]>(
+            new MapBasedPersistence<byte[]>(), 1000, 0.01);
+    supportsDefensiveCopy = false;
+    super.setUp();
+  }
+
+  public void testFalsePositiveRate() {
+    BloomFilter filter = new BloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.add("key" + i);
+    }
+    int positives = 0;
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(filter.mightContain("key" + i));
+      if (filter.mightContain("other" + i)) {
+        positives++;
+      }
+    }
+    assertTrue("false positives: " + positives,
+        positives < 200);
+  }
+
+  public void testSkipsMissingKeys() {
+    MapBasedPersistence<String> backend =
+        new MapBasedPersistence<String>();
+    backend.mutate("existing", Functions.constant("a"));
+    BloomFilterPersistence<String> filtered =
+        new BloomFilterPersistence<String>(backend, 100, 0.01);
+    assertEquals("a", filtered.get("existing"));
+    assertNull(filtered.get("missing"));
+    assertEquals(1, filtered.getSkippedCount());
+    filtered.mutate("new", Functions.constant("b"));
+    filtered.putAll(ImmutableMap.of("put", "c"));
+    Map<String, String> found =
+        filtered.getAll(Lists.newArrayList("new", "put",
+            "gone"));
+    assertEquals(ImmutableMap.of("new", "b", "put", "c"),
+        found);
+    assertEquals(2, filtered.getSkippedCount());
+  }
+
+  public void testRebuild() {
+    MapBasedPersistence<String> backend =
+        new MapBasedPersistence<String>();
+    BloomFilterPersistence<String> filtered =
+        new BloomFilterPersistence<String>(backend, 100, 0.01);
+    backend.mutate("elsewhere", Functions.constant("a"));
+    assertNull(filtered.get("elsewhere"));
+    filtered.rebuild();
+    assertEquals("a", filtered.get("elsewhere"));
+  }
+}
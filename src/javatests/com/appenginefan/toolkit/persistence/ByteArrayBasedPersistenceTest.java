@@ -20,12 +20,15 @@ package com.appenginefan.toolkit.persistence;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import com.appenginefan.toolkit.unittests.BaseTest;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * A template for testing persistences that can digest byte
@@ -79,6 +82,40 @@ public class ByteArrayBasedPersistenceTest
     assertNull(persistence.get("A"));
   }
 
+  public void testGetAll() {
+    persistence.mutate("A", Functions.constant("A"
+        .getBytes()));
+    persistence.mutate("C", Functions.constant("C"
+        .getBytes()));
+    Map<String, byte[]> result =
+        persistence.getAll(Lists.newArrayList("C", "B", "A"));
+    assertEquals(Lists.newArrayList("C", "A"), Lists
+        .newArrayList(result.keySet()));
+    assertTrue(Arrays.equals("A".getBytes(), result.get("A")));
+    assertTrue(Arrays.equals("C".getBytes(), result.get("C")));
+    assertTrue(persistence.getAll(Lists.<String> newArrayList())
+        .isEmpty());
+  }
+
+  public void testPutAllAndDeleteAll() {
+    persistence.mutate("A", Functions.constant("old"
+        .getBytes()));
+    Map<String, byte[]> entries = Maps.newHashMap();
+    entries.put("A", "A".getBytes());
+    entries.put("B", "B".getBytes());
+    entries.put("C", "C".getBytes());
+    persistence.putAll(entries);
+    assertTrue(Arrays.equals("A".getBytes(), persistence
+        .get("A")));
+    assertEquals(Lists.newArrayList("A", "B", "C"),
+        persistence.keyScan("A", "Z", 10));
+    persistence.deleteAll(Lists.newArrayList("A", "C", "X"));
+    assertEquals(Lists.newArrayList("B"), persistence
+        .keyScan("A", "Z", 10));
+    assertTrue(Arrays.equals("B".getBytes(), persistence
+        .get("B")));
+  }
+
   public void testDelete() {
     persistence.mutate("A", Functions.constant("A"
         .getBytes()));
@@ -209,5 +246,81 @@ public class ByteArrayBasedPersistenceTest
         Lists.newArrayList("A2","A1"),
         persistence.keyScanReverse("A", "A3", 5));
   }
-  
+
+  public void testIterate() {
+    Map<String, byte[]> entries = Maps.newHashMap();
+    for (int i = 0; i < 250; i++) {
+      String key = "A" + (1000 + i);
+      entries.put(key, key.getBytes());
+    }
+    entries.put("B", "B".getBytes());
+    persistence.putAll(entries);
+    CloseableIterator<Entry<String, byte[]>> iterator =
+        persistence.iterate("A", "B");
+    int count = 0;
+    while (iterator.hasNext()) {
+      Entry<String, byte[]> entry = iterator.next();
+      String key = "A" + (1000 + count);
+      assertEquals(key, entry.getKey());
+      assertTrue(Arrays.equals(key.getBytes(), entry
+          .getValue()));
+      count++;
+    }
+    iterator.close();
+    assertEquals(250, count);
+    assertFalse(persistence.iterate("C", "D").hasNext());
+  }
+
+  public void testIterateClose() {
+    persistence.mutate("A1", Functions.constant("A1"
+        .getBytes()));
+    persistence.mutate("A2", Functions.constant("A2"
+        .getBytes()));
+    CloseableIterator<Entry<String, byte[]>> iterator =
+        persistence.iterate("A", "B");
+    iterator.close();
+    assertFalse(iterator.hasNext());
+  }
+
+  public void testPutIfAbsent() {
+    assertTrue(Utilities.putIfAbsent(persistence, "A", "A"
+        .getBytes()));
+    assertFalse(Utilities.putIfAbsent(persistence, "A", "B"
+        .getBytes()));
+    assertTrue(Arrays.equals("A".getBytes(), persistence
+        .get("A")));
+  }
+
+  public void testCompareAndSet() {
+    if (!(persistence instanceof VersionedPersistence<?>)) {
+      return;
+    }
+    VersionedPersistence<byte[]> versioned =
+        (VersionedPersistence<byte[]>) persistence;
+    assertNull(versioned.getVersioned("A"));
+    assertFalse(versioned.compareAndSet("A", 0, "A"
+        .getBytes()));
+    persistence.putAll(ImmutableMap.of("A", "A".getBytes()));
+    Versioned<byte[]> first = versioned.getVersioned("A");
+    assertTrue(Arrays.equals("A".getBytes(), first
+        .getValue()));
+    assertTrue(versioned.compareAndSet("A", first
+        .getVersion(), "B".getBytes()));
+    Versioned<byte[]> second = versioned.getVersioned("A");
+    assertTrue(second.getVersion() > first.getVersion());
+    assertTrue(Arrays.equals("B".getBytes(), second
+        .getValue()));
+    assertFalse(versioned.compareAndSet("A", first
+        .getVersion(), "C".getBytes()));
+    assertTrue(Arrays.equals("B".getBytes(), persistence
+        .get("A")));
+    persistence.mutate("A", Functions.constant("D"
+        .getBytes()));
+    assertFalse(versioned.compareAndSet("A", second
+        .getVersion(), null));
+    assertTrue(versioned.compareAndSet("A", versioned
+        .getVersioned("A").getVersion(), null));
+    assertNull(persistence.get("A"));
+  }
+
 }
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Unit tests for CachingPersistence
+ */
+public class CachingPersistenceTest
+    extends TestCase {
+
+  private Persistence<String> backend;
+
+  private CachingPersistence<String> cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    backend = new MapBasedPersistence<String>();
+    cache = new CachingPersistence<String>(backend, 2);
+  }
+
+  public void testReadThrough() {
+    backend.mutate("A", Functions.constant("A"));
+    assertEquals("A", cache.get("A"));
+    assertEquals(1, cache.getMissCount());
+    backend.mutate("A", Functions.constant("changed"));
+    assertEquals("A", cache.get("A"));
+    assertEquals(1, cache.getHitCount());
+    assertNull(cache.get("B"));
+    assertNull(cache.get("B"));
+    assertEquals(3, cache.getMissCount());
+  }
+
+  public void testWriteThrough() {
+    cache.mutate("A", Functions.constant("A"));
+    assertEquals("A", backend.get("A"));
+    assertEquals("A", cache.get("A"));
+    assertEquals(1, cache.getHitCount());
+    cache.mutate("A", Functions.constant((String) null));
+    assertNull(backend.get("A"));
+    assertNull(cache.get("A"));
+  }
+
+  public void testEviction() {
+    cache.mutate("A", Functions.constant("A"));
+    cache.mutate("B", Functions.constant("B"));
+    cache.get("A");
+    cache.mutate("C", Functions.constant("C"));
+    assertEquals(1, cache.getEvictionCount());
+    backend.mutate("A", Functions.constant("A2"));
+    backend.mutate("B", Functions.constant("B2"));
+    assertEquals("A", cache.get("A"));
+    assertEquals("B2", cache.get("B"));
+  }
+
+  public void testWeightedEviction() {
+    cache =
+        new CachingPersistence<String>(backend, 5,
+            new Function<String, Integer>() {
+              @Override
+              public Integer apply(String value) {
+                return value.length();
+              }
+            });
+    cache.mutate("A", Functions.constant("abc"));
+    cache.mutate("B", Functions.constant("de"));
+    assertEquals(0, cache.getEvictionCount());
+    cache.mutate("C", Functions.constant("f"));
+    assertEquals(1, cache.getEvictionCount());
+    cache.mutate("D", Functions.constant("too long"));
+    assertEquals("too long", cache.get("D"));
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testGetAll() {
+    backend.mutate("A", Functions.constant("A"));
+    backend.mutate("B", Functions.constant("B"));
+    cache.get("A");
+    Map<String, String> result =
+        cache.getAll(Lists.newArrayList("B", "X", "A"));
+    assertEquals(Lists.newArrayList("B", "A"), Lists
+        .newArrayList(result.keySet()));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+  }
+
+  public void testPutAllAndDeleteAll() {
+    Map<String, String> entries = Maps.newHashMap();
+    entries.put("A", "A");
+    cache.putAll(entries);
+    assertEquals("A", cache.get("A"));
+    assertEquals(1, cache.getHitCount());
+    cache.deleteAll(Lists.newArrayList("A"));
+    assertNull(cache.get("A"));
+    assertNull(backend.get("A"));
+  }
+
+  public void testPopulateOnScan() {
+    backend.mutate("A", Functions.constant("A"));
+    cache.scan("A", "B", 10);
+    cache.get("A");
+    assertEquals(0, cache.getHitCount());
+    cache.setPopulateOnScan(true);
+    cache.invalidateAll();
+    cache.scan("A", "B", 10);
+    cache.get("A");
+    assertEquals(1, cache.getHitCount());
+  }
+
+  /**
+   * A backend that runs a hook right after a write or scan
+   * has reached the store.
+   */
+  private static class HookedBackend extends
+      MapBasedPersistence<String> {
+
+    Runnable after;
+
+    private void runHook() {
+      Runnable hook = after;
+      after = null;
+      if (hook != null) {
+        hook.run();
+      }
+    }
+
+    @Override
+    public void putAll(Map<String, ? extends String> entries) {
+      super.putAll(entries);
+      runHook();
+    }
+
+    @Override
+    public List<Entry<String, String>> scan(String start,
+        String end, int max) {
+      List<Entry<String, String>> result =
+          super.scan(start, end, max);
+      runHook();
+      return result;
+    }
+  }
+
+  public void testOverlappingWritesDoNotCacheStaleValues() {
+    HookedBackend hooked = new HookedBackend();
+    final CachingPersistence<String> hookedCache =
+        new CachingPersistence<String>(hooked, 10);
+    hooked.after = new Runnable() {
+      @Override
+      public void run() {
+        hookedCache.putAll(ImmutableMap.of("A", "second"));
+      }
+    };
+    hookedCache.putAll(ImmutableMap.of("A", "first"));
+    assertEquals("second", hooked.get("A"));
+    assertEquals("second", hookedCache.get("A"));
+  }
+
+  public void testScanOverlappingWriteDoesNotPopulate() {
+    HookedBackend hooked = new HookedBackend();
+    final CachingPersistence<String> hookedCache =
+        new CachingPersistence<String>(hooked, 10);
+    hookedCache.setPopulateOnScan(true);
+    hooked.putAll(ImmutableMap.of("A", "first"));
+    hooked.after = new Runnable() {
+      @Override
+      public void run() {
+        hookedCache.deleteAll(Lists.newArrayList("A"));
+      }
+    };
+    hookedCache.scan("A", "B", 10);
+    assertNull(hookedCache.get("A"));
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against a ChunkedPersistence
+ * with tiny chunks, plus tests that look at the chunks.
+ */
+public class ChunkedPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private MapBasedPersistence<byte[]> manifests;
+
+  private MapBasedPersistence<byte[]> chunks;
+
+  private ChunkedPersistence chunked;
+
+  @Override
+  protected void setUp() throws Exception {
+    persistence =
+        new ChunkedPersistence(
+            new MapBasedPersistence<byte[]>(),
+            new MapBasedPersistence<byte[]>(), 17);
+    supportsDefensiveCopy = true;
+    manifests = new MapBasedPersistence<byte[]>();
+    chunks = new MapBasedPersistence<byte[]>();
+    chunked = new ChunkedPersistence(manifests, chunks, 100);
+    super.setUp();
+  }
+
+  private static byte[] value(int length) {
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = (byte) i;
+    }
+    return result;
+  }
+
+  private int countChunks() {
+    return chunks.keyScan("", "\uffff", 1000).size();
+  }
+
+  public void testSmallValuesAreInline() {
+    chunked.putAll(ImmutableMap.of("A", value(99)));
+    assertEquals(0, countChunks());
+    assertTrue(Arrays.equals(value(99), chunked.get("A")));
+  }
+
+  public void testLargeValuesAreSplit() {
+    chunked.putAll(ImmutableMap.of("A", value(1050)));
+    assertEquals(11, countChunks());
+    for (String key : chunks.keyScan("", "\uffff", 1000)) {
+      assertTrue(key.startsWith("A/"));
+      assertTrue(chunks.get(key).length <= 100);
+    }
+    assertTrue(manifests.get("A").length <= 100);
+    assertTrue(Arrays.equals(value(1050), chunked.get("A")));
+    assertTrue(Arrays.equals(value(1050), chunked.getAll(
+        Arrays.asList("A", "B")).get("A")));
+    assertTrue(Arrays.equals(value(1050), chunked.scan("A",
+        "B", 10).get(0).getValue()));
+  }
+
+  public void testOverwriteDeletesOldChunks() {
+    chunked.putAll(ImmutableMap.of("A", value(500)));
+    chunked.putAll(ImmutableMap.of("A", value(300)));
+    assertEquals(3, countChunks());
+    chunked.mutate("A", Functions.constant(value(1000)));
+    assertEquals(10, countChunks());
+    chunked.mutate("A", Functions.constant(value(10)));
+    assertEquals(0, countChunks());
+    assertTrue(Arrays.equals(value(10), chunked.get("A")));
+  }
+
+  public void testDeleteRemovesChunks() {
+    chunked.putAll(ImmutableMap.of("A", value(500), "B",
+        value(5)));
+    chunked.deleteAll(Arrays.asList("A", "B"));
+    assertEquals(0, countChunks());
+    assertNull(chunked.get("A"));
+    chunked.putAll(ImmutableMap.of("A", value(500)));
+    chunked.mutate("A", Functions.constant((byte[]) null));
+    assertEquals(0, countChunks());
+  }
+
+  public void testMutateSeesLargeValue() {
+    chunked.putAll(ImmutableMap.of("A", value(500)));
+    byte[] result =
+        chunked.mutate("A", new Function<byte[], byte[]>() {
+          @Override
+          public byte[] apply(byte[] current) {
+            return Arrays.copyOf(current, current.length + 1);
+          }
+        });
+    assertEquals(501, result.length);
+    assertTrue(Arrays.equals(result, chunked.get("A")));
+  }
+
+  public void testFailedMutateLeavesNoChunks() {
+    chunked.putAll(ImmutableMap.of("A", value(500)));
+    final MapBasedPersistence<byte[]> failing =
+        new MapBasedPersistence<byte[]>() {
+          @Override
+          public synchronized byte[] mutate(String key,
+              Function<? super byte[], ? extends byte[]> mutator) {
+            mutator.apply(null);
+            throw new StoreException("collision");
+          }
+        };
+    ChunkedPersistence broken =
+        new ChunkedPersistence(failing, chunks, 100);
+    try {
+      broken.mutate("B", Functions.constant(value(500)));
+      fail();
+    } catch (StoreException e) {
+      // expected
+    }
+    assertEquals(5, countChunks());
+  }
+
+  public void testChunksAreWrittenInBoundedBatches() {
+    final List<Integer> batchBytes = Lists.newArrayList();
+    MapBasedPersistence<byte[]> counting =
+        new MapBasedPersistence<byte[]>() {
+          @Override
+          public synchronized void putAll(
+              Map<String, ? extends byte[]> entries) {
+            int bytes = 0;
+            for (byte[] chunk : entries.values()) {
+              bytes += chunk.length;
+            }
+            batchBytes.add(bytes);
+            super.putAll(entries);
+          }
+        };
+    int chunkSize = ChunkedPersistence.BYTES_PER_BATCH / 3;
+    ChunkedPersistence large =
+        new ChunkedPersistence(manifests, counting, chunkSize);
+    large.putAll(ImmutableMap.of("A", value(7 * chunkSize),
+        "B", value(2 * chunkSize)));
+    large.mutate("C", Functions.constant(value(4 * chunkSize)));
+    // nine chunks from putAll(), then four from mutate()
+    assertEquals(Lists.newArrayList(3 * chunkSize,
+        3 * chunkSize, 3 * chunkSize, 3 * chunkSize,
+        chunkSize), batchBytes);
+    assertTrue(Arrays.equals(value(7 * chunkSize), large
+        .get("A")));
+  }
+
+  public void testChunksAreFetchedInParallel() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      AsyncChunks async = new AsyncChunks(executor);
+      ChunkedPersistence parallel =
+          new ChunkedPersistence(manifests, async, 100);
+      parallel.putAll(ImmutableMap.of("A", value(5000), "B",
+          value(5)));
+      Map<String, byte[]> found =
+          parallel.getAll(Arrays.asList("A", "B"));
+      assertTrue(Arrays.equals(value(5000), found.get("A")));
+      assertTrue(Arrays.equals(value(5), found.get("B")));
+      assertEquals(7, async.batches.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * A chunk store that counts the batches it is asked for.
+   */
+  private static class AsyncChunks extends
+      MapBasedPersistence<byte[]> implements
+      AsyncPersistence<byte[]> {
+
+    final AtomicInteger batches = new AtomicInteger();
+
+    private final ExecutorAsyncPersistence<byte[]> async;
+
+    AsyncChunks(ExecutorService executor) {
+      async = new ExecutorAsyncPersistence<byte[]>(this, executor);
+    }
+
+    @Override
+    public Future<Map<String, byte[]>> getAllAsync(
+        Collection<String> keys) {
+      batches.incrementAndGet();
+      return async.getAllAsync(keys);
+    }
+
+    @Override
+    public Future<byte[]> getAsync(String key) {
+      return async.getAsync(key);
+    }
+
+    @Override
+    public Future<byte[]> mutateAsync(String key,
+        Function<? super byte[], ? extends byte[]> mutator) {
+      return async.mutateAsync(key, mutator);
+    }
+
+    @Override
+    public Future<List<Entry<String, byte[]>>> scanAsync(
+        String start, String end, int max) {
+      return async.scanAsync(start, end, max);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for Codecs and CodecBuffer
+ */
+public class CodecsTest
+    extends TestCase {
+
+  private static <T> byte[] encode(Codec<T> codec, T value) {
+    CodecBuffer buffer = new CodecBuffer(1);
+    buffer.write(42);
+    codec.encode(value, buffer);
+    byte[] result = buffer.toByteArray();
+    assertEquals(42, result[0]);
+    return Arrays.copyOfRange(result, 1, result.length);
+  }
+
+  public void testUtf8MatchesStringEncoding() throws Exception {
+    for (String s : new String[] { "", "abc", "\u00e4\u00f6\u00fc",
+        "\u20ac100", "\ud834\udd1e clef", "broken \ud834" }) {
+      byte[] encoded = encode(Codecs.utf8(), s);
+      assertTrue(s, Arrays.equals(s.getBytes("UTF-8"), encoded));
+    }
+  }
+
+  public void testDecodeSlice() {
+    byte[] data = "xxhelloxx".getBytes();
+    assertEquals("hello", Codecs.utf8().decode(data, 2, 5));
+    byte[] encoded = encode(Codecs.longs(), -5L);
+    byte[] padded = new byte[12];
+    System.arraycopy(encoded, 0, padded, 3, 8);
+    assertEquals(Long.valueOf(-5L), Codecs.longs().decode(
+        padded, 3, 8));
+  }
+
+  public void testSerializable() {
+    Codec<String> codec = Codecs.serializable();
+    byte[] encoded = encode(codec, "hello");
+    assertEquals("hello", codec.decode(encoded, 0,
+        encoded.length));
+  }
+
+  public void testProjectionRejectsNegativeLength() {
+    Codec<TestData.Person> codec =
+        Codecs.protocolBufferProjection(TestData.Person
+            .newBuilder().buildPartial(), 1);
+    byte[] data = new byte[] {
+        // field 1, length -11 as a ten byte varint, which
+        // would lead back to the start of the field
+        0x0A, (byte) 0xF5, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, (byte) 0xFF, 0x01, 'a' };
+    try {
+      codec.decode(data, 0, data.length);
+      fail("expected StoreException");
+    } catch (StoreException e) {
+      // expected
+    }
+  }
+
+  public void testBufferPool() {
+    CodecBuffer first = CodecBuffer.acquire();
+    CodecBuffer second = CodecBuffer.acquire();
+    assertNotSame(first, second);
+    first.write(1);
+    CodecBuffer.release(first);
+    CodecBuffer third = CodecBuffer.acquire();
+    assertSame(first, third);
+    assertEquals(0, third.size());
+  }
+}
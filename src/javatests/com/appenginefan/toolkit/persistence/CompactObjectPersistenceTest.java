@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Unit tests for CompactObjectPersistence
+ */
+public class CompactObjectPersistenceTest
+    extends TestCase {
+
+  enum Color {
+    RED, GREEN
+  }
+
+  static class Base implements Serializable {
+    private static final long serialVersionUID = 1L;
+    long id;
+  }
+
+  static class Dto extends Base {
+    private static final long serialVersionUID = 1L;
+    String name;
+    int count;
+    boolean active;
+    double score;
+    char initial;
+    Integer boxed;
+    byte[] blob;
+    Date created;
+    Color color;
+    List<String> tags;
+    LinkedList<Integer> numbers;
+    Set<Color> colors;
+    Map<String, Dto> children;
+    TreeMap<String, Long> sorted;
+    transient String ignored = "default";
+  }
+
+  static class NewerDto {
+    String name;
+    String addedLater = "unset";
+  }
+
+  private ClassRegistry registry;
+
+  private Persistence<byte[]> backend;
+
+  private CompactObjectPersistence<Dto> persistence;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    registry =
+        new ClassRegistry().register(1, Dto.class).register(2,
+            Color.class);
+    backend = new MapBasedPersistence<byte[]>();
+    persistence =
+        new CompactObjectPersistence<Dto>(backend, registry,
+            Dto.class);
+  }
+
+  private static Dto sample() {
+    Dto dto = new Dto();
+    dto.id = 123456789L;
+    dto.name = "n\u00e4me";
+    dto.count = -5;
+    dto.active = true;
+    dto.score = 1.5;
+    dto.initial = 'x';
+    dto.blob = new byte[] { 1, 2, 3 };
+    dto.created = new Date(1234567890L);
+    dto.color = Color.GREEN;
+    dto.tags = Lists.newArrayList("a", null, "c");
+    dto.numbers = Lists.newLinkedList(Arrays.asList(1, 2));
+    dto.colors = Sets.newHashSet(Color.RED);
+    dto.children = Maps.newHashMap();
+    dto.children.put("child", new Dto());
+    dto.children.get("child").name = "child";
+    dto.sorted = Maps.newTreeMap();
+    dto.sorted.put("b", 2L);
+    dto.sorted.put("a", Long.MIN_VALUE);
+    dto.ignored = "set";
+    return dto;
+  }
+
+  public void testRoundTrip() {
+    persistence.mutate("A", Functions.constant(sample()));
+    Dto dto = persistence.get("A");
+    assertEquals(123456789L, dto.id);
+    assertEquals("n\u00e4me", dto.name);
+    assertEquals(-5, dto.count);
+    assertTrue(dto.active);
+    assertEquals(1.5, dto.score);
+    assertEquals('x', dto.initial);
+    assertNull(dto.boxed);
+    assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, dto.blob));
+    assertEquals(new Date(1234567890L), dto.created);
+    assertEquals(Color.GREEN, dto.color);
+    assertEquals(Arrays.asList("a", null, "c"), dto.tags);
+    assertEquals(Arrays.asList(1, 2), dto.numbers);
+    assertEquals(Sets.newHashSet(Color.RED), dto.colors);
+    assertEquals("child", dto.children.get("child").name);
+    assertEquals(Lists.newArrayList("a", "b"), Lists
+        .newArrayList(dto.sorted.keySet()));
+    assertEquals(Long.valueOf(Long.MIN_VALUE), dto.sorted
+        .get("a"));
+    assertEquals("default", dto.ignored);
+  }
+
+  public void testSmallerThanSerialization() {
+    ObjectPersistence<Dto> serialized =
+        new ObjectPersistence<Dto>(backend);
+    Dto dto = sample();
+    int compact = persistence.makeArray(dto).length;
+    int java = serialized.makeArray(dto).length;
+    assertTrue(compact + " vs " + java, compact * 3 < java);
+  }
+
+  public void testFieldsCanBeAddedAndRemoved() {
+    CompactObjectPersistence<NewerDto> newer =
+        new CompactObjectPersistence<NewerDto>(backend,
+            new ClassRegistry().register(1, NewerDto.class)
+                .register(2, Color.class),
+            NewerDto.class);
+    persistence.mutate("A", Functions.constant(sample()));
+    NewerDto read = newer.get("A");
+    assertEquals("n\u00e4me", read.name);
+    assertEquals("unset", read.addedLater);
+    read.addedLater = "set";
+    newer.mutate("B", Functions.constant(read));
+    assertEquals("n\u00e4me", persistence.get("B").name);
+  }
+
+  public void testUnregisteredClass() {
+    CompactObjectPersistence<Object> objects =
+        new CompactObjectPersistence<Object>(backend, registry,
+            Object.class);
+    try {
+      objects.mutate("A", Functions.constant((Object) this));
+      fail();
+    } catch (StoreException e) {
+      // expected
+    }
+    objects.mutate("A", Functions.constant((Object) "string"));
+    assertEquals("string", objects.get("A"));
+  }
+
+  public void testCorruptData() {
+    backend.mutate("A", Functions.constant(new byte[] { 9 }));
+    try {
+      persistence.get("A");
+      fail();
+    } catch (StoreException e) {
+      // expected
+    }
+    byte[] valid = persistence.makeArray(sample());
+    backend.mutate("A", Functions.constant(Arrays.copyOf(
+        valid, valid.length - 1)));
+    try {
+      persistence.get("A");
+      fail();
+    } catch (StoreException e) {
+      // expected
+    }
+  }
+
+  public void testDuplicateRegistration() {
+    try {
+      registry.register(1, NewerDto.class);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Map.Entry;
+
+import com.google.common.base.Functions;
+
+/**
+ * Runs the byte array tests through a CompressingPersistence,
+ * plus tests for the stored format.
+ */
+public class CompressingPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private Persistence<byte[]> backend;
+
+  private CompressingPersistence compressing;
+
+  @Override
+  protected void setUp() throws Exception {
+    backend = new MapBasedPersistence<byte[]>();
+    compressing = new CompressingPersistence(backend, 100);
+    persistence = compressing;
+    supportsDefensiveCopy = false;
+    super.setUp();
+  }
+
+  private static byte[] repetitive(int length) {
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = (byte) ('a' + i % 7);
+    }
+    return result;
+  }
+
+  public void testLargeValuesAreCompressed() {
+    byte[] value = repetitive(10000);
+    compressing.mutate("A", Functions.constant(value));
+    byte[] stored = backend.get("A");
+    assertEquals(CompressingPersistence.MAGIC, stored[0]);
+    assertTrue(stored.length < 1000);
+    assertTrue(Arrays.equals(value, compressing.get("A")));
+    assertEquals(10000, compressing.getBytesBeforeCompression());
+    assertEquals(stored.length, compressing
+        .getBytesAfterCompression());
+    assertTrue(compressing.getCompressionRatio() < 0.1);
+    Entry<String, byte[]> scanned =
+        compressing.scan("A", "B", 1).get(0);
+    assertTrue(Arrays.equals(value, scanned.getValue()));
+  }
+
+  public void testSmallValuesAreNotCompressed() {
+    byte[] value = repetitive(50);
+    compressing.mutate("A", Functions.constant(value));
+    assertTrue(Arrays.equals(value, backend.get("A")));
+  }
+
+  public void testIncompressibleValuesAreNotCompressed() {
+    byte[] value = new byte[1000];
+    new Random(42).nextBytes(value);
+    value[0] = 0;
+    compressing.mutate("A", Functions.constant(value));
+    assertTrue(Arrays.equals(value, backend.get("A")));
+  }
+
+  public void testUncompressedDataIsReadable() {
+    byte[] legacy = repetitive(1000);
+    backend.mutate("A", Functions.constant(legacy));
+    assertTrue(Arrays.equals(legacy, compressing.get("A")));
+    byte[] legacyWithMarker = "?not compressed".getBytes();
+    legacyWithMarker[0] = CompressingPersistence.MAGIC;
+    backend.mutate("B", Functions.constant(legacyWithMarker));
+    assertTrue(Arrays.equals(legacyWithMarker, compressing
+        .get("B")));
+  }
+
+  public void testValuesStartingWithMarker() {
+    byte[] value = "?short".getBytes();
+    value[0] = CompressingPersistence.MAGIC;
+    compressing.mutate("A", Functions.constant(value));
+    assertFalse(Arrays.equals(value, backend.get("A")));
+    assertTrue(Arrays.equals(value, compressing.get("A")));
+  }
+}
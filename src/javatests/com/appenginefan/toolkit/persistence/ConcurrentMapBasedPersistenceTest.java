@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.List;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against a
+ * ConcurrentMapBasedPersistence, plus a test with several
+ * threads writing at once.
+ */
+public class ConcurrentMapBasedPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  @Override
+  protected void setUp() throws Exception {
+    persistence = new ConcurrentMapBasedPersistence<byte[]>();
+    supportsDefensiveCopy = false;
+    super.setUp();
+  }
+
+  public void testConcurrentMutations() throws Exception {
+    final Persistence<Integer> counters =
+        new ConcurrentMapBasedPersistence<Integer>(4);
+    final Function<Integer, Integer> increment =
+        new Function<Integer, Integer>() {
+          @Override
+          public Integer apply(Integer value) {
+            return (value == null) ? 1 : value + 1;
+          }
+        };
+    List<Thread> threads = Lists.newArrayList();
+    for (int i = 0; i < 8; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            counters.mutate("counter" + (j % 10), increment);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (int i = 0; i < 10; i++) {
+      assertEquals(Integer.valueOf(800), counters
+          .get("counter" + i));
+    }
+  }
+}
@@ -20,7 +20,9 @@ package com.appenginefan.toolkit.persistence;
 
 import java.util.Arrays;
 
+import com.google.appengine.api.datastore.Entity;
 import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
 
 public class DatastorePersistenceTest
     extends ByteArrayBasedPersistenceTest {
@@ -39,4 +41,33 @@ public class DatastorePersistenceTest
         .get("13")));
   }
 
+  public void testVersionsOfEntities() {
+    EntityBasedPersistence entities =
+        new EntityBasedPersistence(" bar ");
+    Entity value = new Entity("ignored");
+    value.setProperty("p", "a");
+    assertTrue(entities.putIfAbsent("A", value));
+    assertFalse(entities.putIfAbsent("A", value));
+    Versioned<Entity> first = entities.getVersioned("A");
+    assertEquals("a", first.getValue().getProperty("p"));
+    value.setProperty("p", "b");
+    assertTrue(entities.compareAndSet("A", first.getVersion(),
+        value));
+    Versioned<Entity> second = entities.getVersioned("A");
+    assertEquals("b", second.getValue().getProperty("p"));
+    assertTrue(second.getVersion() > first.getVersion());
+    assertFalse(entities.compareAndSet("A", first.getVersion(),
+        null));
+    entities.putAll(ImmutableMap.of("A", value));
+    Versioned<Entity> third = entities.getVersioned("A");
+    assertTrue(third.getVersion() > second.getVersion());
+    assertFalse(entities.compareAndSet("A", second
+        .getVersion(), null));
+    assertTrue(entities.compareAndSet("A", third.getVersion(),
+        null));
+    assertNull(entities.get("A"));
+    assertFalse(entities.compareAndSet("A", third.getVersion(),
+        value));
+  }
+
 }
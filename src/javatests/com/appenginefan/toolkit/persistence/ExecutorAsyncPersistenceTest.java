@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.appenginefan.toolkit.unittests.BaseTest;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests the asynchronous operations, both on their own and
+ * composed through adapters.
+ */
+public class ExecutorAsyncPersistenceTest
+    extends BaseTest {
+
+  private ExecutorService executor;
+
+  private EntityBasedPersistence entities;
+
+  private StringPersistence persistence;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = ExecutorAsyncPersistence.newBoundedExecutor(2, 4);
+    entities = new EntityBasedPersistence(" foo ");
+    entities.setExecutor(executor);
+    persistence =
+        new StringPersistence(new DatastorePersistence(
+            entities));
+    persistence.mutate("k1", Functions.constant("v1"));
+    persistence.mutate("k2", Functions.constant("v2"));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testGetAsync() throws Exception {
+    Future<String> first = persistence.getAsync("k1");
+    Future<String> second = persistence.getAsync("k2");
+    Future<String> missing = persistence.getAsync("k3");
+    assertEquals("v1", first.get());
+    assertEquals("v2", second.get());
+    assertNull(missing.get());
+  }
+
+  public void testGetAllAsync() throws Exception {
+    Map<String, String> result =
+        persistence.getAllAsync(
+            Lists.newArrayList("k2", "k3", "k1")).get();
+    assertEquals(Lists.newArrayList("k2", "k1"), Lists
+        .newArrayList(result.keySet()));
+    assertEquals("v1", result.get("k1"));
+  }
+
+  public void testMutateAsync() throws Exception {
+    Future<String> result =
+        persistence.mutateAsync("k1",
+            new Function<String, String>() {
+              @Override
+              public String apply(String value) {
+                return value + "!";
+              }
+            });
+    assertEquals("v1!", result.get());
+    assertEquals("v1!", persistence.get("k1"));
+    assertNull(persistence.mutateAsync("k2",
+        Functions.constant((String) null)).get());
+    assertNull(persistence.get("k2"));
+  }
+
+  public void testScanAsync() throws Exception {
+    List<Entry<String, String>> result =
+        persistence.scanAsync("k", "l", 10).get();
+    assertEquals(2, result.size());
+    assertEquals("k1", result.get(0).getKey());
+    assertEquals("v2", result.get(1).getValue());
+  }
+
+  public void testErrorsAreWrapped() throws Exception {
+    Future<String> result =
+        persistence.mutateAsync("k1",
+            new Function<String, String>() {
+              @Override
+              public String apply(String value) {
+                throw new IllegalStateException("boom");
+              }
+            });
+    try {
+      result.get();
+      fail("expected ExecutionException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  public void testWithoutExecutor() throws Exception {
+    MapBasedPersistence<String> map =
+        new MapBasedPersistence<String>();
+    map.mutate("a", Functions.constant("b"));
+    Future<String> result =
+        new ExecutorAsyncPersistence<String>(map, null)
+            .getAsync("a");
+    assertTrue(result.isDone());
+    assertEquals("b", result.get());
+  }
+}
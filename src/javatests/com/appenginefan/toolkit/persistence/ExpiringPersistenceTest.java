@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against an
+ * ExpiringPersistence, plus tests with a clock that the
+ * test controls.
+ */
+public class ExpiringPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private long time = 1000;
+
+  private MapBasedPersistence<byte[]> backend;
+
+  private MapBasedPersistence<byte[]> index;
+
+  private ExpiringPersistence expiring;
+
+  @Override
+  protected void setUp() throws Exception {
+    persistence =
+        new ExpiringPersistence(
+            new MapBasedPersistence<byte[]>(),
+            new MapBasedPersistence<byte[]>(), 60000);
+    supportsDefensiveCopy = true;
+    backend = new MapBasedPersistence<byte[]>();
+    index = new MapBasedPersistence<byte[]>();
+    expiring = new ExpiringPersistence(backend, index, 100) {
+      @Override
+      protected long now() {
+        return time;
+      }
+    };
+    super.setUp();
+  }
+
+  private static Function<Object, byte[]> set(String value) {
+    return Functions.constant(value.getBytes());
+  }
+
+  public void testExpiry() {
+    expiring.mutate("a", set("1"));
+    time += 50;
+    expiring.putAll(ImmutableMap.of("b", "2".getBytes()));
+    assertTrue(Arrays.equals("1".getBytes(), expiring.get("a")));
+    time += 50;
+    assertNull(expiring.get("a"));
+    assertEquals(Lists.newArrayList("b"), Lists.newArrayList(
+        expiring.getAll(Lists.newArrayList("a", "b")).keySet()));
+    assertEquals(1, expiring.scan("a", "z", 10).size());
+    assertEquals(1, expiring.scanReverse("a", "z", 10).size());
+    assertTrue(expiring.iterate("a", "z").hasNext());
+    assertEquals("b", expiring.iterate("a", "z").next().getKey());
+    // until swept, the key is still there
+    assertEquals(2, expiring.keyScan("a", "z", 10).size());
+  }
+
+  public void testMutatorSeesNullWhenExpired() {
+    expiring.mutate("a", set("1"));
+    time += 100;
+    final boolean[] sawNull = new boolean[1];
+    expiring.mutate("a", new Function<byte[], byte[]>() {
+      @Override
+      public byte[] apply(byte[] value) {
+        sawNull[0] = (value == null);
+        return "2".getBytes();
+      }
+    });
+    assertTrue(sawNull[0]);
+  }
+
+  public void testWritesExtendLifetime() {
+    expiring.mutate("a", set("1"));
+    time += 80;
+    expiring.mutate("a", set("2"));
+    time += 80;
+    assertTrue(Arrays.equals("2".getBytes(), expiring.get("a")));
+    assertEquals(1, index.keyScan("", "z", 10).size());
+  }
+
+  public void testSweep() {
+    expiring.mutate("a", set("1"));
+    expiring.mutate("b", set("2"));
+    expiring.putAll(ImmutableMap.of("c", "3".getBytes()));
+    time += 60;
+    expiring.putAll(ImmutableMap.of("c", "4".getBytes()));
+    time += 40;
+    assertEquals(1, expiring.sweep(1));
+    // b, and the outdated index entry of c
+    assertEquals(2, expiring.sweep(10));
+    assertEquals(0, expiring.sweep(10));
+    assertEquals(Lists.newArrayList("c"), backend.keyScan("",
+        "z", 10));
+    assertEquals(2, expiring.getSweptCount());
+    time += 100;
+    assertEquals(1, expiring.sweep(10));
+    assertTrue(backend.keyScan("", "z", 10).isEmpty());
+    assertTrue(index.keyScan("", "z", 10).isEmpty());
+  }
+
+  public void testDeleteKeepsConcurrentIndexEntry() {
+    final List<ExpiringPersistence> stores =
+        Lists.newArrayList();
+    // right after the deletion is stored, another write of
+    // the same key happens in the same millisecond
+    Persistence<byte[]> interleaving =
+        new ForwardingPersistence<byte[]>() {
+          private boolean interleaved;
+
+          @Override
+          protected Persistence<byte[]> delegate() {
+            return backend;
+          }
+
+          @Override
+          public byte[] mutate(String key,
+              Function<? super byte[], ? extends byte[]> mutator) {
+            byte[] result = super.mutate(key, mutator);
+            if (!interleaved && result == null) {
+              interleaved = true;
+              stores.get(0).mutate(key, set("2"));
+            }
+            return result;
+          }
+        };
+    ExpiringPersistence store =
+        new ExpiringPersistence(interleaving, index, 100) {
+          @Override
+          protected long now() {
+            return time;
+          }
+        };
+    stores.add(store);
+    store.mutate("a", set("1"));
+    store.mutate("a", Functions.constant((byte[]) null));
+    assertTrue(Arrays.equals("2".getBytes(), store.get("a")));
+    assertEquals(1, index.keyScan("", "z", 10).size());
+    time += 100;
+    assertEquals(1, store.sweep(10));
+    assertTrue(backend.keyScan("", "z", 10).isEmpty());
+  }
+
+  public void testDeleteThroughMutate() {
+    expiring.mutate("a", set("1"));
+    expiring.mutate("a", Functions.constant((byte[]) null));
+    assertNull(expiring.get("a"));
+    assertTrue(index.keyScan("", "z", 10).isEmpty());
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against an IndexedPersistence,
+ * plus tests for the index itself. Values are strings of
+ * the form &quot;city,name&quot;.
+ */
+public class IndexedPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private static final Function<String, String> CITY =
+      new Function<String, String>() {
+        @Override
+        public String apply(String value) {
+          int comma = value.indexOf(',');
+          return (comma < 0) ? null : value.substring(0, comma);
+        }
+      };
+
+  private MapBasedPersistence<byte[]> index;
+
+  private IndexedPersistence<String> people;
+
+  @Override
+  protected void setUp() throws Exception {
+    persistence =
+        new IndexedPersistence<byte[]>(
+            new MapBasedPersistence<byte[]>(),
+            new MapBasedPersistence<byte[]>(), ImmutableMap.of(
+                "length", new Function<byte[], String>() {
+                  @Override
+                  public String apply(byte[] value) {
+                    return String.valueOf(value.length);
+                  }
+                }));
+    supportsDefensiveCopy = false;
+    index = new MapBasedPersistence<byte[]>();
+    people =
+        new IndexedPersistence<String>(
+            new MapBasedPersistence<String>(), index,
+            ImmutableMap.of("city", CITY));
+    super.setUp();
+  }
+
+  private List<String> keys(List<Entry<String, String>> entries) {
+    List<String> result = Lists.newArrayList();
+    for (Entry<String, String> entry : entries) {
+      result.add(entry.getKey());
+    }
+    return result;
+  }
+
+  public void testLookup() {
+    people.mutate("p1", Functions.constant("Berlin,Ann"));
+    people.mutate("p2", Functions.constant("Paris,Bob"));
+    people.putAll(ImmutableMap.of("p3", "Berlin,Cy", "p4",
+        "noCity"));
+    assertEquals(Lists.newArrayList("p1", "p3"), keys(people
+        .lookupByIndex("city", "Berlin", 10)));
+    assertEquals(Lists.newArrayList("p2"), keys(people
+        .lookupByIndex("city", "Paris", 10)));
+    assertEquals(1, people.lookupByIndex("city", "Berlin", 1)
+        .size());
+    assertEquals(3, index.keyScan("", "\uffff", 10).size());
+  }
+
+  public void testIndexFollowsChanges() {
+    people.mutate("p1", Functions.constant("Berlin,Ann"));
+    people.mutate("p1", Functions.constant("Paris,Ann"));
+    assertTrue(people.lookupByIndex("city", "Berlin", 10)
+        .isEmpty());
+    assertEquals(Lists.newArrayList("p1"), keys(people
+        .lookupByIndex("city", "Paris", 10)));
+    people.deleteAll(Lists.newArrayList("p1"));
+    assertTrue(people.lookupByIndex("city", "Paris", 10)
+        .isEmpty());
+    // the lookups deleted the stale entries they found
+    assertTrue(index.keyScan("", "\uffff", 10).isEmpty());
+  }
+
+  public void testInterleavedMutators() {
+    final MapBasedPersistence<String> data =
+        new MapBasedPersistence<String>();
+    final List<IndexedPersistence<String>> indexed =
+        Lists.newArrayList();
+    // the first mutation stores Paris; before its index is
+    // updated, a second one changes the value back to Berlin
+    Persistence<String> interleaving =
+        new ForwardingPersistence<String>() {
+          private boolean interleaved;
+
+          @Override
+          protected Persistence<String> delegate() {
+            return data;
+          }
+
+          @Override
+          public String mutate(String key,
+              Function<? super String, ? extends String> mutator) {
+            String result = super.mutate(key, mutator);
+            if (!interleaved && "Paris,Ann".equals(result)) {
+              interleaved = true;
+              indexed.get(0).mutate(key, Functions
+                  .constant("Berlin,Ann"));
+            }
+            return result;
+          }
+        };
+    IndexedPersistence<String> cities =
+        new IndexedPersistence<String>(interleaving, index,
+            ImmutableMap.of("city", CITY));
+    indexed.add(cities);
+    cities.mutate("p1", Functions.constant("Berlin,Ann"));
+    cities.mutate("p1", Functions.constant("Paris,Ann"));
+    assertEquals("Berlin,Ann", data.get("p1"));
+    assertEquals(Lists.newArrayList("p1"), keys(cities
+        .lookupByIndex("city", "Berlin", 10)));
+    assertTrue(cities.lookupByIndex("city", "Paris", 10)
+        .isEmpty());
+    assertEquals(1, index.keyScan("", "\uffff", 10).size());
+  }
+
+  public void testEscaping() {
+    people.mutate("a/b", Functions.constant("Rome/Lazio,X"));
+    people.mutate("c", Functions.constant("Rome,Y"));
+    assertEquals(Lists.newArrayList("a/b"), keys(people
+        .lookupByIndex("city", "Rome/Lazio", 10)));
+    assertEquals(Lists.newArrayList("c"), keys(people
+        .lookupByIndex("city", "Rome", 10)));
+  }
+
+  public void testStaleEntriesAndRebuild() {
+    people.mutate("p1", Functions.constant("Berlin,Ann"));
+    Map<String, byte[]> stale =
+        ImmutableMap.of(IndexedPersistence.prefix("city",
+            "Oslo")
+            + "p1", new byte[0]);
+    index.putAll(stale);
+    index.deleteAll(Lists.newArrayList(IndexedPersistence
+        .prefix("city", "Berlin")
+        + "p1"));
+    assertTrue(people.lookupByIndex("city", "Oslo", 10)
+        .isEmpty());
+    assertTrue(people.lookupByIndex("city", "Berlin", 10)
+        .isEmpty());
+    people.rebuildIndexes();
+    assertEquals(Lists.newArrayList("p1"), keys(people
+        .lookupByIndex("city", "Berlin", 10)));
+    assertEquals(1, index.keyScan("", "\uffff", 10).size());
+  }
+}
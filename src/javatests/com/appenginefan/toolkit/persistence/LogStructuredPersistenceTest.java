@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs the byte array tests against a
+ * LogStructuredPersistence with a tiny memtable, so that
+ * most data ends up in segment files, plus tests for
+ * recovery and compaction.
+ */
+public class LogStructuredPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private File directory;
+
+  private LogStructuredPersistence store;
+
+  @Override
+  protected void setUp() throws Exception {
+    directory = File.createTempFile("lsm", "");
+    directory.delete();
+    store = open();
+    persistence = store;
+    supportsDefensiveCopy = true;
+    super.setUp();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    store.close();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  private LogStructuredPersistence open() {
+    return new LogStructuredPersistence(directory, 512, 100);
+  }
+
+  private void reopen() {
+    store.close();
+    store = open();
+    persistence = store;
+  }
+
+  private static Map<String, byte[]> entries(String prefix,
+      int count) {
+    Map<String, byte[]> result = Maps.newHashMap();
+    for (int i = 0; i < count; i++) {
+      result.put(prefix + (1000 + i), (prefix + i).getBytes());
+    }
+    return result;
+  }
+
+  public void testRecoveryFromLog() {
+    store.mutate("A", Functions.constant("A".getBytes()));
+    store.mutate("B", Functions.constant("B".getBytes()));
+    store.mutate("A", Functions.constant((byte[]) null));
+    assertEquals(0, store.getSegmentCount());
+    reopen();
+    assertNull(store.get("A"));
+    assertTrue(Arrays.equals("B".getBytes(), store.get("B")));
+  }
+
+  public void testRecoveryFromSegments() {
+    store.putAll(entries("A", 100));
+    store.deleteAll(Lists.newArrayList("A1010", "A1020"));
+    assertEquals(1, store.getSegmentCount());
+    assertNull(store.get("A1010"));
+    reopen();
+    assertEquals(98, store.keyScan("A", "B", 1000).size());
+    assertNull(store.get("A1010"));
+    assertTrue(Arrays.equals("A50".getBytes(), store
+        .get("A1050")));
+  }
+
+  public void testTornLogRecord() throws Exception {
+    store.mutate("A", Functions.constant("A".getBytes()));
+    store.mutate("B", Functions.constant("B".getBytes()));
+    store.close();
+    File log = new File(directory, "wal.log");
+    RandomAccessFile file = new RandomAccessFile(log, "rw");
+    file.setLength(file.length() - 1);
+    file.close();
+    store = open();
+    persistence = store;
+    assertTrue(Arrays.equals("A".getBytes(), store.get("A")));
+    assertNull(store.get("B"));
+    store.mutate("C", Functions.constant("C".getBytes()));
+    reopen();
+    assertEquals(Lists.newArrayList("A", "C"), store.keyScan(
+        "A", "Z", 10));
+  }
+
+  public void testCompaction() {
+    store.putAll(entries("A", 100));
+    store.putAll(entries("B", 100));
+    store.deleteAll(entries("A", 100).keySet());
+    store.mutate("B1000", Functions.constant("new"
+        .getBytes()));
+    store.flush();
+    assertTrue(store.getSegmentCount() > 1);
+    store.compact();
+    assertEquals(1, store.getSegmentCount());
+    assertTrue(store.keyScan("A", "B", 10).isEmpty());
+    assertEquals(100, store.keyScan("B", "C", 1000).size());
+    assertTrue(Arrays.equals("new".getBytes(), store
+        .get("B1000")));
+    assertEquals("B1099", store.keyScanReverse("B", "C", 1)
+        .get(0));
+    reopen();
+    assertEquals(1, store.getSegmentCount());
+    assertEquals(100, store.keyScan("A", "C", 1000).size());
+  }
+
+  public void testBackgroundCompaction() throws Exception {
+    store.close();
+    store = new LogStructuredPersistence(directory, 512, 2);
+    persistence = store;
+    for (int i = 0; i < 10; i++) {
+      store.putAll(entries("A" + i, 20));
+    }
+    store.close();
+    store = open();
+    persistence = store;
+    assertEquals(200, store.keyScan("A", "B", 1000).size());
+    assertTrue(store.getSegmentCount() < 10);
+  }
+
+  public void testClosed() {
+    store.close();
+    try {
+      store.get("A");
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+}
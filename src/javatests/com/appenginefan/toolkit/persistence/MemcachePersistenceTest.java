@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Arrays;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against a memcached
+ * DatastorePersistence, plus a few cache specific ones.
+ */
+public class MemcachePersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private Persistence<byte[]> uncached;
+
+  @Override
+  protected void setUp() throws Exception {
+    persistence = DatastorePersistence.createMemcached(" foo ");
+    uncached = new DatastorePersistence(" foo ");
+    supportsDefensiveCopy = true;
+    super.setUp();
+  }
+
+  public void testReadsComeFromMemcache() {
+    uncached.mutate("A", Functions.constant("A".getBytes()));
+    assertTrue(Arrays.equals("A".getBytes(), persistence
+        .get("A")));
+    uncached.mutate("A", Functions.constant("B".getBytes()));
+    assertTrue(Arrays.equals("A".getBytes(), persistence
+        .get("A")));
+    assertTrue(Arrays.equals("A".getBytes(), persistence
+        .getAll(Lists.newArrayList("A")).get("A")));
+  }
+
+  public void testMutateIsVisibleToOtherInstances() {
+    Persistence<byte[]> other =
+        DatastorePersistence.createMemcached(" foo ");
+    persistence.mutate("A", Functions.constant("A"
+        .getBytes()));
+    assertTrue(Arrays.equals("A".getBytes(), other.get("A")));
+    persistence.mutate("A", Functions.constant("B"
+        .getBytes()));
+    assertTrue(Arrays.equals("B".getBytes(), other.get("A")));
+    persistence.mutate("A", Functions
+        .constant((byte[]) null));
+    assertNull(other.get("A"));
+  }
+
+  public void testMutateDoesNotCache() {
+    persistence.mutate("A", Functions.constant("A"
+        .getBytes()));
+    uncached.mutate("A", Functions.constant("B".getBytes()));
+    assertTrue(Arrays.equals("B".getBytes(), persistence
+        .get("A")));
+  }
+
+  public void testVersionsNeedVersionedBackend() {
+    final Persistence<Entity> entities =
+        new EntityBasedPersistence(" foo ");
+    Persistence<Entity> unversioned =
+        new ForwardingPersistence<Entity>() {
+          @Override
+          protected Persistence<Entity> delegate() {
+            return entities;
+          }
+        };
+    assertFalse(new MemcachePersistence(unversioned, null,
+        " foo ") instanceof VersionedPersistence<?>);
+    assertTrue(persistence instanceof VersionedPersistence<?>);
+  }
+
+  public void testPartitionsDoNotShareEntries() {
+    Persistence<byte[]> other =
+        DatastorePersistence.createMemcached(" bar ");
+    persistence.mutate("A", Functions.constant("A"
+        .getBytes()));
+    assertNull(other.get("A"));
+  }
+}
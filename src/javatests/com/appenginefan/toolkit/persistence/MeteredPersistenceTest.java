@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against a MeteredPersistence,
+ * and checks what it measures.
+ */
+public class MeteredPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private MeteredPersistence<byte[]> metered;
+
+  @Override
+  protected void setUp() throws Exception {
+    metered =
+        new MeteredPersistence<byte[]>(
+            new MapBasedPersistence<byte[]>(), "test",
+            MeteredPersistence.BYTE_ARRAY_LENGTH);
+    persistence = metered;
+    supportsDefensiveCopy = false;
+    super.setUp();
+  }
+
+  public void testHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getPercentile(50));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000, histogram.getMax());
+    assertEquals(500.5, histogram.getMean(), 0.001);
+    long median = histogram.getPercentile(50);
+    assertTrue(median >= 500 && median <= 500 * 9 / 8);
+    long p99 = histogram.getPercentile(99);
+    assertTrue(p99 >= 990 && p99 <= 1000);
+    assertEquals(1, histogram.getPercentile(0));
+  }
+
+  public void testBuckets() {
+    for (long value : new long[] { 0, 7, 8, 9, 100, 12345,
+        Long.MAX_VALUE }) {
+      int bucket = LatencyHistogram.bucketFor(value);
+      assertTrue(LatencyHistogram.highestValueIn(bucket)
+          >= value);
+      if (bucket > 0) {
+        assertTrue(LatencyHistogram.highestValueIn(bucket - 1)
+            < value);
+      }
+    }
+  }
+
+  public void testCounts() {
+    metered.mutate("a", Functions.constant(new byte[10]));
+    metered.mutate("b", Functions.constant(new byte[5]));
+    metered.get("a");
+    metered.get("c");
+    metered.scan("a", "z", 10);
+    metered.keyScan("a", "z", 10);
+    Map<String, Long> snapshot = metered.getSnapshot();
+    assertEquals(2L, (long) snapshot.get("mutate.count"));
+    assertEquals(15L, (long) snapshot.get("mutate.bytes"));
+    assertEquals(2L, (long) snapshot.get("get.count"));
+    assertEquals(1L, (long) snapshot.get("get.results"));
+    assertEquals(10L, (long) snapshot.get("get.bytes"));
+    assertEquals(2L, (long) snapshot.get("scan.results"));
+    assertEquals(15L, (long) snapshot.get("scan.bytes"));
+    assertEquals(2L, (long) snapshot.get("keyScan.results"));
+    assertEquals(0L, (long) snapshot.get("scanReverse.count"));
+    assertEquals(2, metered.getLatency("get").getCount());
+  }
+
+  public void testIterate() {
+    metered.mutate("a", Functions.constant(new byte[10]));
+    metered.mutate("b", Functions.constant(new byte[5]));
+    CloseableIterator<Map.Entry<String, byte[]>> entries =
+        metered.iterate("a", "z");
+    assertEquals(0L, (long) metered.getSnapshot().get(
+        "iterate.results"));
+    entries.next();
+    entries.close();
+    Map<String, Long> snapshot = metered.getSnapshot();
+    assertEquals(1L, (long) snapshot.get("iterate.count"));
+    assertEquals(1L, (long) snapshot.get("iterate.results"));
+    assertEquals(10L, (long) snapshot.get("iterate.bytes"));
+    assertEquals(0L, (long) snapshot.get("iterate.errors"));
+  }
+
+  public void testErrors() {
+    try {
+      metered.mutate("a", new Function<byte[], byte[]>() {
+        @Override
+        public byte[] apply(byte[] value) {
+          throw new StoreException("failed");
+        }
+      });
+      fail("expected StoreException");
+    } catch (StoreException e) {
+      // expected
+    }
+    assertEquals(1L, (long) metered.getSnapshot().get(
+        "mutate.errors"));
+    assertEquals(1L, (long) metered.getSnapshot().get(
+        "mutate.count"));
+  }
+
+  public void testMBean() throws Exception {
+    metered.getAll(Lists.newArrayList("a", "b"));
+    MBeanServer server =
+        ManagementFactory.getPlatformMBeanServer();
+    metered.registerMBean();
+    try {
+      assertEquals(1L, server.getAttribute(metered
+          .getObjectName(), "getAll.count"));
+      assertEquals(metered.getSnapshot().size(), server
+          .getMBeanInfo(metered.getObjectName())
+          .getAttributes().length);
+    } finally {
+      metered.unregisterMBean();
+    }
+    assertFalse(server.isRegistered(metered.getObjectName()));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs the byte array tests against an OffHeapPersistence,
+ * plus a few tests for the slab allocation.
+ */
+public class OffHeapPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private OffHeapPersistence offHeap;
+
+  @Override
+  protected void setUp() throws Exception {
+    offHeap = new OffHeapPersistence(1 << 20, 1024);
+    persistence = offHeap;
+    supportsDefensiveCopy = true;
+    super.setUp();
+  }
+
+  public void testChunksAreReused() {
+    offHeap.mutate("A", Functions.constant(new byte[100]));
+    assertEquals(1024, offHeap.getAllocatedBytes());
+    assertEquals(128, offHeap.getUsedBytes());
+    offHeap.mutate("A", Functions.constant(new byte[120]));
+    assertEquals(128, offHeap.getUsedBytes());
+    offHeap.mutate("A", Functions.constant(new byte[10]));
+    assertEquals(16, offHeap.getUsedBytes());
+    assertEquals(2048, offHeap.getAllocatedBytes());
+    offHeap.deleteAll(Lists.newArrayList("A"));
+    assertEquals(0, offHeap.getUsedBytes());
+    for (int i = 0; i < 8; i++) {
+      offHeap.mutate("B" + i, Functions
+          .constant(new byte[100]));
+    }
+    assertEquals(2048, offHeap.getAllocatedBytes());
+  }
+
+  public void testLargeValues() {
+    byte[] large = new byte[5000];
+    large[4999] = 42;
+    offHeap.mutate("A", Functions.constant(large));
+    assertEquals(8192, offHeap.getUsedBytes());
+    assertTrue(Arrays.equals(large, offHeap.get("A")));
+  }
+
+  public void testBudget() {
+    offHeap = new OffHeapPersistence(2048, 1024);
+    offHeap.mutate("A", Functions.constant("A".getBytes()));
+    Map<String, byte[]> entries = Maps.newHashMap();
+    entries.put("B", new byte[500]);
+    entries.put("C", new byte[5000]);
+    try {
+      offHeap.putAll(entries);
+      fail();
+    } catch (StoreException e) {
+      // expected
+    }
+    assertNull(offHeap.get("B"));
+    assertEquals(16, offHeap.getUsedBytes());
+    try {
+      offHeap.mutate("A", Functions.constant(new byte[5000]));
+      fail();
+    } catch (StoreException e) {
+      // expected
+    }
+    assertTrue(Arrays.equals("A".getBytes(), offHeap
+        .get("A")));
+    offHeap.clear();
+    assertEquals(0, offHeap.getAllocatedBytes());
+    assertNull(offHeap.get("A"));
+  }
+}
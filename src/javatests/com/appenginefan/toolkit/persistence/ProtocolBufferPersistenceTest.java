@@ -19,6 +19,8 @@
 package com.appenginefan.toolkit.persistence;
 
 import com.appenginefan.toolkit.persistence.TestData.Person;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
 
 import junit.framework.TestCase;
 
@@ -46,4 +48,62 @@ public class ProtocolBufferPersistenceTest
     assertEquals(cloned, original);
   }
 
+  public void testBuilderIsReused() {
+    Person first =
+        TestData.Person.newBuilder().setEmail("first")
+            .setName("First").build();
+    Person second =
+        TestData.Person.newBuilder().setName("Second").build();
+    assertEquals(first, persistence.makeType(persistence
+        .makeArray(first)));
+    Person decoded =
+        persistence.makeType(persistence.makeArray(second));
+    assertEquals(second, decoded);
+    assertFalse(decoded.hasEmail());
+  }
+
+  public void testProjection() {
+    persistence.mutate("A", Functions
+        .constant(TestData.Person.newBuilder().setEmail(
+            "foo@example.com").setName("John Doe").build()));
+    Person nameOnly = persistence.withProjection(1).get("A");
+    assertEquals("John Doe", nameOnly.getName());
+    assertFalse(nameOnly.hasEmail());
+    Person emailOnly =
+        persistence.withProjection(2).scan("A", "B", 1).get(0)
+            .getValue();
+    assertEquals("foo@example.com", emailOnly.getEmail());
+    assertFalse(emailOnly.hasName());
+    assertEquals(persistence.get("A"), persistence
+        .withProjection(2, 1).get("A"));
+  }
+
+  public void testProjectionOfPaddedVarints() {
+    MapBasedPersistence<byte[]> backend =
+        new MapBasedPersistence<byte[]>();
+    backend.putAll(ImmutableMap.of("A", new byte[] {
+        // name = "ab", with tag and length padded to two bytes
+        (byte) 0x8A, 0x00, (byte) 0x82, 0x00, 'a', 'b',
+        // email = "c"
+        0x12, 0x01, 'c' }));
+    ProtocolBufferPersistence<Person> padded =
+        new ProtocolBufferPersistence<Person>(backend, Person
+            .newBuilder().buildPartial());
+    assertEquals("c", padded.withProjection(2).get("A")
+        .getEmail());
+    assertEquals("ab", padded.withProjection(1).get("A")
+        .getName());
+  }
+
+  public void testProjectionIsReadOnly() {
+    try {
+      persistence.withProjection(1).mutate("A",
+          Functions.constant(TestData.Person.newBuilder()
+              .setName("x").build()));
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
 }
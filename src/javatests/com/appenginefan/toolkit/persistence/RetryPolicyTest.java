@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.appenginefan.toolkit.unittests.BaseTest;
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.base.Function;
+
+/**
+ * Tests the retry policies, and how EntityBasedPersistence
+ * uses them when transactions collide.
+ */
+public class RetryPolicyTest
+    extends BaseTest {
+
+  private EntityBasedPersistence persistence;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    persistence = new EntityBasedPersistence(" foo ");
+    persistence.setRetryPolicy(new RetryPolicy(3, 1, 2, 1000));
+  }
+
+  public void testBackoffGrowsUpToLimit() {
+    RetryPolicy policy = new RetryPolicy(100, 10, 1000, 5000);
+    assertEquals(10, policy.getMaxBackoffMillis(1));
+    assertEquals(20, policy.getMaxBackoffMillis(2));
+    assertEquals(640, policy.getMaxBackoffMillis(7));
+    assertEquals(1000, policy.getMaxBackoffMillis(8));
+    assertEquals(1000, policy.getMaxBackoffMillis(90));
+    for (int i = 1; i < 20; i++) {
+      long backoff = policy.getBackoffMillis(i);
+      assertTrue(backoff >= 0);
+      assertTrue(backoff <= policy.getMaxBackoffMillis(i));
+    }
+  }
+
+  public void testShouldRetry() {
+    RetryPolicy policy = new RetryPolicy(3, 10, 100, 500);
+    assertTrue(policy.shouldRetry(1, 0, 10));
+    assertTrue(policy.shouldRetry(2, 400, 100));
+    assertFalse(policy.shouldRetry(3, 0, 0));
+    assertFalse(policy.shouldRetry(2, 450, 100));
+    assertEquals(0, RetryPolicy.IMMEDIATE.getBackoffMillis(5));
+  }
+
+  /**
+   * Returns a mutator that changes the entity behind the
+   * transaction's back for the first few calls, so that
+   * committing them fails.
+   */
+  private Function<Entity, Entity> interfering(
+      final int collisions, final AtomicInteger calls) {
+    return new Function<Entity, Entity>() {
+      @Override
+      public Entity apply(Entity entity) {
+        if (calls.getAndIncrement() < collisions) {
+          persistence.mutate("key",
+              new Function<Entity, Entity>() {
+                @Override
+                public Entity apply(Entity other) {
+                  other.setProperty("p", "other");
+                  return other;
+                }
+              });
+        }
+        entity.setProperty("p", "mine");
+        return entity;
+      }
+    };
+  }
+
+  public void testRetriesAfterCollision() {
+    AtomicInteger calls = new AtomicInteger();
+    persistence.mutate("key", interfering(2, calls));
+    assertEquals(3, calls.get());
+    assertEquals("mine", persistence.get("key")
+        .getProperty("p"));
+    assertEquals(2, persistence.getRetryCount());
+    assertEquals(0, persistence.getGiveUpCount());
+  }
+
+  public void testGivesUp() {
+    AtomicInteger calls = new AtomicInteger();
+    try {
+      persistence.mutate("key", interfering(100, calls));
+      fail("expected StoreException");
+    } catch (StoreException e) {
+      // expected
+    }
+    assertEquals(3, calls.get());
+    assertEquals(2, persistence.getRetryCount());
+    assertEquals(1, persistence.getGiveUpCount());
+  }
+}
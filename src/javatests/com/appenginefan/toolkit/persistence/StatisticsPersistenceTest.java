@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against a
+ * StatisticsPersistence, and checks that its numbers follow
+ * the writes.
+ */
+public class StatisticsPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  private StatisticsPersistence<byte[]> statistics;
+
+  @Override
+  protected void setUp() throws Exception {
+    statistics =
+        new StatisticsPersistence<byte[]>(
+            new MapBasedPersistence<byte[]>(),
+            new MapBasedPersistence<byte[]>(),
+            MeteredPersistence.BYTE_ARRAY_LENGTH);
+    persistence = statistics;
+    supportsDefensiveCopy = false;
+    super.setUp();
+  }
+
+  private void assertStatistics(String prefix, long count,
+      long bytes) {
+    RangeStatistics actual = statistics.getStatistics(prefix);
+    assertEquals(count, actual.getCount());
+    assertEquals(bytes, actual.getBytes());
+  }
+
+  public void testMutate() {
+    statistics.mutate("/q/1", Functions.constant(new byte[10]));
+    statistics.mutate("/q/2", Functions.constant(new byte[5]));
+    assertStatistics("/q/", 2, 15);
+    statistics.mutate("/q/1", Functions.constant(new byte[2]));
+    assertStatistics("/q/", 2, 7);
+    statistics.mutate("/q/2", Functions.constant((byte[]) null));
+    assertStatistics("/q/", 1, 2);
+    statistics.mutate("/q/1", Functions.constant((byte[]) null));
+    assertStatistics("/q/", 0, 0);
+  }
+
+  public void testPutAllAndDeleteAll() {
+    statistics.putAll(ImmutableMap.of("/a/1", new byte[1],
+        "/a/2", new byte[2], "/b/1", new byte[4]));
+    statistics.putAll(ImmutableMap.of("/a/1", new byte[3]));
+    assertStatistics("/a/", 2, 5);
+    assertStatistics("/b/", 1, 4);
+    statistics.deleteAll(Lists.newArrayList("/a/2", "/b/1",
+        "/c/1"));
+    assertStatistics("/a/", 1, 3);
+    assertStatistics("/b/", 0, 0);
+  }
+
+  public void testEstimate() {
+    statistics.putAll(ImmutableMap.of("/a/1", new byte[1],
+        "/b/1", new byte[2], "/b/2", new byte[3], "/c/1",
+        new byte[4]));
+    assertEquals(4, statistics.estimate("", "z").getCount());
+    assertEquals(3, statistics.estimate("/b/", "/c/~")
+        .getCount());
+    // a range that starts within a prefix counts all of it
+    assertEquals(2, statistics.estimate("/b/2", "/c/")
+        .getCount());
+  }
+
+  public void testEstimateWithNestedPrefixes() {
+    statistics.putAll(ImmutableMap.of("/a/b/x", new byte[1],
+        "/a/c", new byte[2], "/d", new byte[3]));
+    // "/a/c" and "/d" sort after the start, but their
+    // prefixes ("/a/" and "/") sort before it
+    assertEquals(3, statistics.estimate("/a/b/x", "~")
+        .getCount());
+  }
+}
@@ -19,10 +19,13 @@
 package com.appenginefan.toolkit.persistence;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import junit.framework.TestCase;
 
@@ -54,6 +57,16 @@ public class StringPersistenceTest
     }
   }
 
+  public void testVersionsNeedVersionedBackend() {
+    Persistence<String> unversioned =
+        new StringPersistence(
+            new ConcurrentMapBasedPersistence<byte[]>());
+    assertFalse(unversioned instanceof VersionedPersistence<?>);
+    assertTrue(Utilities.putIfAbsent(unversioned, "A", "A"));
+    assertFalse(Utilities.putIfAbsent(unversioned, "A", "B"));
+    assertEquals("A", unversioned.get("A"));
+  }
+
   public void testBasicSetAndGet() {
     persistence.mutate("A", Functions.constant("A"));
     assertEquals(persistence.get("A"), "A");
@@ -70,6 +83,28 @@ public class StringPersistenceTest
     assertNull(persistence.get("A"));
   }
 
+  public void testGetAll() {
+    persistence.mutate("A", Functions.constant("A"));
+    persistence.mutate("B", Functions.constant("B"));
+    Map<String, String> result =
+        persistence.getAll(Lists.newArrayList("B", "X", "A"));
+    assertEquals(2, result.size());
+    assertEquals("A", result.get("A"));
+    assertEquals("B", result.get("B"));
+  }
+
+  public void testPutAllAndDeleteAll() {
+    Map<String, String> entries = Maps.newHashMap();
+    entries.put("A", "A");
+    entries.put("B", "B");
+    persistence.putAll(entries);
+    assertEquals("A", persistence.get("A"));
+    assertEquals("B", persistence.get("B"));
+    persistence.deleteAll(Lists.newArrayList("A"));
+    assertNull(persistence.get("A"));
+    assertEquals("B", persistence.get("B"));
+  }
+
   public void testDelete() {
     persistence.mutate("A", Functions.constant("A"));
     assertNull(persistence.mutate("A", Functions
@@ -138,4 +173,41 @@ public class StringPersistenceTest
     scanResult = persistence.scanReverse("A0", "A4", 0);
     assertEquals(0, scanResult.size());
   }
+
+  public void testIterate() {
+    persistence.mutate("A1", Functions.constant("A1"));
+    persistence.mutate("A2", Functions.constant("A2"));
+    persistence.mutate("B1", Functions.constant("B1"));
+    CloseableIterator<Entry<String, String>> iterator =
+        persistence.iterate("A", "B");
+    List<String> values = Lists.newArrayList();
+    while (iterator.hasNext()) {
+      Entry<String, String> entry = iterator.next();
+      assertEquals(entry.getKey(), entry.getValue());
+      values.add(entry.getValue());
+    }
+    iterator.close();
+    assertEquals(Lists.newArrayList("A1", "A2"), values);
+  }
+
+  public void testDeferredDecoding() {
+    persistence.mutate("A1", Functions.constant("A1"));
+    persistence.mutate("A2", Functions.constant("A2"));
+    persistence.mutate("A3", Functions.constant("A3"));
+    List<Entry<String, String>> scanResult =
+        persistence.scan("A", "B", 10);
+    assertEquals(3, persistence.getDeferredDecodeCount());
+    assertEquals(3, persistence.getSkippedDecodeCount());
+    assertEquals("A2", scanResult.get(1).getValue());
+    assertEquals("A2", scanResult.get(1).getValue());
+    assertEquals(2, persistence.getSkippedDecodeCount());
+    assertEquals(Maps.immutableEntry("A1", "A1"), scanResult
+        .get(0));
+    assertEquals(scanResult.get(0), Maps.immutableEntry(
+        "A1", "A1"));
+    assertEquals(1, persistence.getSkippedDecodeCount());
+    persistence.scanReverse("A", "B", 10);
+    assertEquals(6, persistence.getDeferredDecodeCount());
+    assertEquals(4, persistence.getSkippedDecodeCount());
+  }
 }
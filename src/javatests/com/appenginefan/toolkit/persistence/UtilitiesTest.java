@@ -18,8 +18,15 @@
 
 package com.appenginefan.toolkit.persistence;
 
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.appenginefan.toolkit.unittests.BaseTest;
 import com.google.appengine.repackaged.com.google.common.collect.Maps;
+import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.collect.Lists;
 
@@ -100,4 +107,92 @@ public class UtilitiesTest
         "k1", "v1")), Utilities.scanReverseExclusive(
         persistence, "k", "k2", 100));
   }
+
+  public void testMiddle() {
+    assertEquals("b", Utilities.middle("a", "c").substring(0, 1));
+    String middle = Utilities.middle("k1", "k2");
+    assertTrue(middle.compareTo("k1") > 0);
+    assertTrue(middle.compareTo("k2") < 0);
+  }
+
+  public void testSplitRange() {
+    for (int i = 10; i < 90; i++) {
+      persistence.mutate("p" + i, Functions.constant("v"));
+    }
+    List<String> boundaries =
+        Utilities.splitRange(persistence, "p", "q", 4);
+    assertEquals(5, boundaries.size());
+    assertEquals("p", boundaries.get(0));
+    assertEquals("q", boundaries.get(4));
+    for (int i = 0; i < 4; i++) {
+      int size =
+          persistence.keyScan(boundaries.get(i),
+              boundaries.get(i + 1), 100).size();
+      assertTrue(boundaries.toString(), size >= 10 && size <= 30);
+    }
+    assertEquals(Lists.newArrayList("k", "l"), Utilities
+        .splitRange(persistence, "k", "l", 1));
+    assertEquals(2, Utilities.splitRange(persistence, "k",
+        "l", 8).size() - 1);
+    assertEquals(1, Utilities.splitRange(persistence, "x",
+        "z", 8).size() - 1);
+  }
+
+  public void testProcessRange() throws Exception {
+    Persistence<String> local = new MapBasedPersistence<String>();
+    for (int i = 1000; i < 2000; i++) {
+      local.mutate("p" + i, Functions.constant("v"));
+    }
+    final AtomicLong sum = new AtomicLong();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      long count =
+          Utilities.processRange(local, "p", "q", 8, executor,
+              new Function<Entry<String, String>, Void>() {
+                @Override
+                public Void apply(Entry<String, String> entry) {
+                  sum.addAndGet(Long.parseLong(entry.getKey()
+                      .substring(1)));
+                  return null;
+                }
+              });
+      assertEquals(1000, count);
+      assertEquals(1499500, sum.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testCountRange() {
+    for (int i = 0; i < 2500; i++) {
+      persistence.mutate("c" + i, Functions.constant("v"));
+    }
+    assertEquals(2500, Utilities.countRange(persistence, "c",
+        "d"));
+    assertEquals(2, Utilities.countRange(persistence, "k",
+        "l"));
+    assertEquals(0, Utilities.countRange(persistence, "x",
+        "z"));
+  }
+
+  public void testEstimateRange() {
+    RangeStatistics counted =
+        Utilities.estimateRange(persistence, "k", "l");
+    assertTrue(counted.isExact());
+    assertEquals(2, counted.getCount());
+    assertEquals(-1, counted.getBytes());
+    StatisticsPersistence<byte[]> withStatistics =
+        new StatisticsPersistence<byte[]>(
+            new MapBasedPersistence<byte[]>(),
+            new MapBasedPersistence<byte[]>(),
+            MeteredPersistence.BYTE_ARRAY_LENGTH);
+    withStatistics.mutate("/a/1", Functions.constant(new byte[3]));
+    withStatistics.mutate("/b/1", Functions.constant(new byte[4]));
+    withStatistics.mutate("/b/2", Functions.constant(new byte[5]));
+    RangeStatistics estimated =
+        Utilities.estimateRange(withStatistics, "/b/", "/c/");
+    assertFalse(estimated.isExact());
+    assertEquals(2, estimated.getCount());
+    assertEquals(9, estimated.getBytes());
+  }
 }
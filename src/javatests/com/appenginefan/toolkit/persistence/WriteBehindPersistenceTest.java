@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2009 Jens Scheffler (appenginefan.com)
+ * 
+ * Licensed under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the
+ * License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See
+ * the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.appenginefan.toolkit.persistence;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the byte array tests against a
+ * WriteBehindPersistence, plus tests for batching and
+ * coalescing.
+ */
+public class WriteBehindPersistenceTest
+    extends ByteArrayBasedPersistenceTest {
+
+  /**
+   * Counts the batches written to it, can be told to fail,
+   * and can run a hook after a value is read.
+   */
+  private static class Backend extends
+      MapBasedPersistence<String> {
+
+    final AtomicInteger batches = new AtomicInteger();
+
+    volatile boolean failing;
+
+    volatile Runnable afterGet;
+
+    @Override
+    public String get(String key) {
+      String result = super.get(key);
+      Runnable hook = afterGet;
+      afterGet = null;
+      if (hook != null) {
+        hook.run();
+      }
+      return result;
+    }
+
+    @Override
+    public synchronized void putAll(
+        Map<String, ? extends String> entries) {
+      if (failing) {
+        throw new StoreException("down");
+      }
+      batches.incrementAndGet();
+      super.putAll(entries);
+    }
+
+    @Override
+    public synchronized void deleteAll(
+        Collection<String> keys) {
+      if (failing) {
+        throw new StoreException("down");
+      }
+      batches.incrementAndGet();
+      super.deleteAll(keys);
+    }
+  }
+
+  private static final Function<String, String> APPEND =
+      new Function<String, String>() {
+        @Override
+        public String apply(String value) {
+          return (value == null) ? "x" : value + "x";
+        }
+      };
+
+  @Override
+  protected void setUp() throws Exception {
+    persistence =
+        new WriteBehindPersistence<byte[]>(
+            new MapBasedPersistence<byte[]>(), 3);
+    supportsDefensiveCopy = false;
+    super.setUp();
+  }
+
+  public void testCoalescing() {
+    Backend backend = new Backend();
+    WriteBehindPersistence<String> store =
+        new WriteBehindPersistence<String>(backend, 10);
+    for (int i = 0; i < 5; i++) {
+      store.mutate("a", APPEND);
+    }
+    assertEquals("xxxxx", store.get("a"));
+    assertNull(backend.get("a"));
+    assertEquals(1, store.getPendingCount());
+    assertEquals(4, store.getCoalescedCount());
+    store.flush();
+    assertEquals("xxxxx", backend.get("a"));
+    assertEquals(1, backend.batches.get());
+    assertEquals(1, store.getWrittenCount());
+    assertEquals(0, store.getPendingCount());
+  }
+
+  public void testSizeTrigger() {
+    Backend backend = new Backend();
+    WriteBehindPersistence<String> store =
+        new WriteBehindPersistence<String>(backend, 3);
+    store.mutate("a", APPEND);
+    store.mutate("b", APPEND);
+    assertEquals(0, backend.batches.get());
+    store.mutate("c", APPEND);
+    assertEquals(1, backend.batches.get());
+    assertEquals("x", backend.get("c"));
+  }
+
+  public void testDeletesAndGetAll() {
+    Backend backend = new Backend();
+    backend.putAll(ImmutableMap.of("a", "1", "b", "2"));
+    WriteBehindPersistence<String> store =
+        new WriteBehindPersistence<String>(backend, 10);
+    store.deleteAll(Lists.newArrayList("a"));
+    store.putAll(ImmutableMap.of("c", "3"));
+    assertNull(store.get("a"));
+    assertEquals(ImmutableMap.of("b", "2", "c", "3"), store
+        .getAll(Lists.newArrayList("a", "b", "c")));
+    assertEquals("1", backend.get("a"));
+    assertEquals(Lists.newArrayList("b", "c"), store.keyScan(
+        "a", "z", 10));
+    assertNull(backend.get("a"));
+  }
+
+  public void testFailedFlushKeepsChanges() {
+    Backend backend = new Backend();
+    WriteBehindPersistence<String> store =
+        new WriteBehindPersistence<String>(backend, 10);
+    store.mutate("a", APPEND);
+    backend.failing = true;
+    try {
+      store.flush();
+      fail("expected StoreException");
+    } catch (StoreException e) {
+      // expected
+    }
+    assertEquals(1, store.getPendingCount());
+    assertEquals("x", store.get("a"));
+    backend.failing = false;
+    store.close();
+    assertEquals("x", backend.get("a"));
+    try {
+      store.mutate("a", APPEND);
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  public void testBackgroundFlush() throws Exception {
+    Backend backend = new Backend();
+    WriteBehindPersistence<String> store =
+        new WriteBehindPersistence<String>(backend, 100,
+            1000, 10);
+    try {
+      store.mutate("a", Functions.constant("1"));
+      for (int i = 0; i < 100 && backend.get("a") == null; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals("1", backend.get("a"));
+    } finally {
+      store.close();
+    }
+  }
+
+  public void testBackpressure() throws Exception {
+    Backend backend = new Backend();
+    WriteBehindPersistence<String> store =
+        new WriteBehindPersistence<String>(backend, 2, 4,
+            60000);
+    try {
+      for (int i = 0; i < 50; i++) {
+        store.mutate("k" + i, APPEND);
+        assertTrue(store.getPendingCount() < 4);
+      }
+    } finally {
+      store.close();
+    }
+    assertEquals(50, backend.keyScan("", "z", 100).size());
+  }
+
+  public void testMutateRereadsAfterConcurrentFlush() {
+    Backend backend = new Backend();
+    backend.putAll(ImmutableMap.of("a", "1"));
+    final WriteBehindPersistence<String> store =
+        new WriteBehindPersistence<String>(backend, 10);
+    backend.afterGet = new Runnable() {
+      @Override
+      public void run() {
+        // another change to the key is recorded and flushed
+        // while the first mutate() reads the backend
+        store.mutate("a", APPEND);
+        store.flush();
+      }
+    };
+    assertEquals("1xx", store.mutate("a", APPEND));
+    store.flush();
+    assertEquals("1xx", backend.get("a"));
+  }
+}